@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.corpusstats;
+
+import org.jpetrak.gate8.api.plugins.AbstractDocumentProcessor;
+import gate.*;
+import gate.creole.metadata.*;
+import gate.util.Benchmark;
+import gate.util.Files;
+import gate.util.GateRuntimeException;
+import gate.util.InvalidOffsetException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Assign the collocation statistics from a collocation store to the pairs
+ * of input annotations which occur within a window of each other.
+ *
+ * Each pair found in the store gets an annotation from the start of the
+ * first to the end of the second input annotation, with the terms, the
+ * pair count and the statistics from the stats list as features. If a
+ * threshold is set, only pairs where the threshold metric is at least
+ * the threshold get an annotation, e.g. to mark multiword expressions.
+ *
+ * @author Johann Petrak
+ */
+@CreoleResource(name = "AssignCollocationStatsPR",
+        helpURL = "https://gatenlp.github.io/gateplugin-CorpusStats/doc-AssignCollocationStatsPR",
+        comment = "Lookup and assign collocation statistics to pairs of annotations")
+public class AssignCollocationStatsPR extends AbstractDocumentProcessor {
+
+  private static final long serialVersionUID = 1L;
+
+  protected String inputASName = "";
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Input annotation set",
+          defaultValue = "")
+  public void setInputAnnotationSet(String ias) {
+    inputASName = ias;
+  }
+
+  public String getInputAnnotationSet() {
+    return inputASName;
+  }
+
+  protected String inputType = "";
+
+  @RunTime
+  @CreoleParameter(
+          comment = "The input annotation type",
+          defaultValue = "Token")
+  public void setInputAnnotationType(String val) {
+    this.inputType = val;
+  }
+
+  public String getInputAnnotationType() {
+    return inputType;
+  }
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The optional containing annotation type: only pairs within the same containing annotation are used",
+          defaultValue = "")
+  public void setContainingAnnotationType(String val) {
+    this.containingType = val;
+  }
+
+  public String getContainingAnnotationType() {
+    return containingType;
+  }
+  protected String containingType = "";
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The feature from the input annotation to use as term string, if left blank the document text",
+          defaultValue = "")
+  public void setKeyFeature(String val) {
+    this.keyFeature = val;
+  }
+
+  public String getKeyFeature() {
+    return keyFeature;
+  }
+  protected String keyFeature = "";
+
+  private URL dataFileUrl;
+
+  @RunTime
+  @CreoleParameter(
+          comment = "The URL of the collocation store saved by the CorpusStatsCollocationsPR"
+  )
+  public void setDataFileUrl(URL u) {
+    dataFileUrl = u;
+  }
+
+  public URL getDataFileUrl() {
+    return dataFileUrl;
+  }
+
+  private int windowSize = 2;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Pairs are formed within this many consecutive input annotations, if 0, all pairs within the containing annotation, which must then be set",
+          defaultValue = "2"
+  )
+  public void setWindowSize(Integer val) {
+    windowSize = (val == null) ? 2 : val;
+  }
+
+  public Integer getWindowSize() {
+    return windowSize;
+  }
+
+  private String statsList = "pmi,npmi,chi2_p";
+  private String[] statsNames = statsList.split(",");
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "A comma/semicolon/whitespace separated list of stats names to add to the pair annotations",
+          defaultValue = "pmi,npmi,chi2_p"
+  )
+  public void setStatsList(String val) {
+    statsList = val;
+    statsNames = val == null ? new String[0] : val.trim().split("[,;\\s]+");
+  }
+
+  public String getStatsList() {
+    return statsList;
+  }
+
+  private String featurePrefix = "cs_";
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The prefix of all feature names to be added.",
+          defaultValue = "cs_"
+  )
+  public void setFeaturePrefix(String val) {
+    featurePrefix = val;
+  }
+
+  public String getFeaturePrefix() {
+    return featurePrefix;
+  }
+
+  private String outputType = "Collocation";
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The type of the annotations added for the pairs, in the input annotation set",
+          defaultValue = "Collocation"
+  )
+  public void setOutputAnnotationType(String val) {
+    outputType = val;
+  }
+
+  public String getOutputAnnotationType() {
+    return outputType;
+  }
+
+  private String thresholdMetric = "npmi";
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The statistic which is compared to the threshold",
+          defaultValue = "npmi"
+  )
+  public void setThresholdMetric(String val) {
+    thresholdMetric = val;
+  }
+
+  public String getThresholdMetric() {
+    return thresholdMetric;
+  }
+
+  private Double threshold = null;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If set, only pairs where the threshold metric is at least this value get annotated"
+  )
+  public void setThreshold(Double val) {
+    threshold = val;
+  }
+
+  public Double getThreshold() {
+    return threshold;
+  }
+
+  ////////////////////// FIELDS
+  private static final int BATCH_SIZE = 1024;
+  // the maximum number of pairs of a span which get looked up at once
+  private static final int MAX_PAIRS_PER_LOOKUP = 1 << 20;
+  // the batch used by this duplicate
+  private transient PairStatsBatch batch;
+
+  ////////////////////// PROCESSING
+  @Override
+  protected void process(Document document) {
+    AnnotationSet inputAS;
+    if (inputASName == null
+            || inputASName.isEmpty()) {
+      inputAS = document.getAnnotations();
+    } else {
+      inputAS = document.getAnnotations(inputASName);
+    }
+
+    if (inputType == null || inputType.isEmpty()) {
+      throw new GateRuntimeException("Input annotation type must not be empty!");
+    }
+    AnnotationSet inputAnns = inputAS.get(inputType);
+
+    AnnotationSet containingAnns = null;
+    if (containingType != null && !containingType.isEmpty()) {
+      containingAnns = inputAS.get(containingType);
+    }
+
+    // the store is shared between all duplicates of the PR, it is read-only
+    // and can be used from several threads; it is opened for each run
+    CollocationStore store = (CollocationStore) getSharedData().get("collocationStore");
+    if (batch == null) {
+      batch = new PairStatsBatch(BATCH_SIZE);
+    }
+
+    long startTime = Benchmark.startPoint();
+
+    // the input annotations get sorted once, not for each span
+    SortedAnnotations sortedAnns = new SortedAnnotations(inputAnns);
+    if (containingAnns == null) {
+      assignSpan(store, inputAS, sortedAnns.inDocumentOrder());
+    } else {
+      for (Annotation containingAnn : containingAnns) {
+        assignSpan(store, inputAS, sortedAnns.get(sortedAnns.select(
+                containingAnn.getStartNode().getOffset(),
+                containingAnn.getEndNode().getOffset())));
+        if (isInterrupted()) {
+          throw new GateRuntimeException("AssignCollocationStatsPR has been interrupted");
+        }
+      }
+    }
+
+    benchmarkCheckpoint(startTime, "__AssignCollocationsProcess");
+  }
+
+  // Get the term string for the annotation or null if there is no term.
+  // The store converts the case when looking up the term.
+  private String getTermKey(Annotation ann) {
+    if (getKeyFeature() == null || getKeyFeature().isEmpty()) {
+      return Utils.cleanStringFor(document, ann);
+    } else {
+      return (String) ann.getFeatures().get(getKeyFeature());
+    }
+  }
+
+  /**
+   * Find and annotate the pairs within one span.
+   *
+   * The pair counts are looked up for all pairs of the span at once, in key
+   * order, or in chunks of pairs for long spans with a big window, and the
+   * statistics get calculated for a whole batch of pairs.
+   *
+   * @param store the collocation statistics
+   * @param outputAS the set to add the pair annotations to
+   * @param anns the input annotations of the span, in document order
+   */
+  private void assignSpan(CollocationStore store, AnnotationSet outputAS, List<Annotation> anns) {
+    int n = anns.size();
+    if (n < 2) {
+      return;
+    }
+    int[] ids = new int[n];
+    for (int p = 0; p < n; p++) {
+      String key = getTermKey(anns.get(p));
+      ids[p] = key == null ? -1 : store.getTermId(key);
+    }
+    int window = (windowSize <= 0 || windowSize >= n) ? n : windowSize;
+    // the number of pairs of positions: window-1 for each start position, 
+    // fewer for the last window-1 start positions
+    long maxPairs = (long) (n - window + 1) * (window - 1) + (long) (window - 1) * (window - 2) / 2;
+    int size = (int) Math.min(maxPairs, MAX_PAIRS_PER_LOOKUP);
+    long[] keys = new long[size];
+    int[] firsts = new int[size];
+    int[] seconds = new int[size];
+    int nPairs = 0;
+    for (int i = 0; i < n; i++) {
+      if (ids[i] < 0) {
+        continue;
+      }
+      int to = Math.min(n, i + window);
+      for (int j = i + 1; j < to; j++) {
+        if (ids[j] >= 0) {
+          if (nPairs == size) {
+            assignPairs(store, outputAS, anns, ids, keys, firsts, seconds, nPairs);
+            nPairs = 0;
+          }
+          keys[nPairs] = store.pairKey(ids[i], ids[j]);
+          firsts[nPairs] = i;
+          seconds[nPairs] = j;
+          nPairs++;
+        }
+      }
+    }
+    if (nPairs > 0) {
+      assignPairs(store, outputAS, anns, ids, keys, firsts, seconds, nPairs);
+    }
+  }
+
+  // Look up the counts of the first nPairs pairs and annotate the ones found
+  private void assignPairs(CollocationStore store, AnnotationSet outputAS, List<Annotation> anns,
+          int[] ids, long[] keys, int[] firsts, int[] seconds, int nPairs) {
+    long[] sortedKeys = Arrays.copyOf(keys, nPairs);
+    Arrays.sort(sortedKeys);
+    long[] sortedCounts = new long[nPairs];
+    store.getPairCounts(sortedKeys, nPairs, sortedCounts);
+
+    batch.clear();
+    List<Integer> inBatch = new ArrayList<>();
+    for (int k = 0; k < nPairs; k++) {
+      long count = sortedCounts[Arrays.binarySearch(sortedKeys, keys[k])];
+      if (count == 0) {
+        continue;
+      }
+      batch.add(count, store.getTerm1Count(ids[firsts[k]]), store.getTerm2Count(ids[seconds[k]]));
+      inBatch.add(k);
+      if (batch.isFull()) {
+        annotateBatch(store, outputAS, anns, firsts, seconds, inBatch);
+      }
+    }
+    if (batch.size() > 0) {
+      annotateBatch(store, outputAS, anns, firsts, seconds, inBatch);
+    }
+  }
+
+  private void annotateBatch(CollocationStore store, AnnotationSet outputAS, List<Annotation> anns,
+          int[] firsts, int[] seconds, List<Integer> inBatch) {
+    store.calcStats(batch);
+    double[] thresholdValues = threshold == null ? null : batch.getMetric(thresholdMetric);
+    String prefix = featurePrefix == null ? "" : featurePrefix;
+    for (int b = 0; b < batch.size(); b++) {
+      if (thresholdValues != null && !(thresholdValues[b] >= threshold)) {
+        continue;
+      }
+      int k = inBatch.get(b);
+      Annotation first = anns.get(firsts[k]);
+      Annotation second = anns.get(seconds[k]);
+      FeatureMap fm = Factory.newFeatureMap();
+      fm.put(prefix + "term1", getTermKey(first));
+      fm.put(prefix + "term2", getTermKey(second));
+      fm.put(prefix + "freqp", batch.pairCount[b]);
+      for (String name : statsNames) {
+        fm.put(prefix + name, batch.getMetric(name)[b]);
+      }
+      try {
+        outputAS.add(first.getStartNode().getOffset(), second.getEndNode().getOffset(), outputType, fm);
+      } catch (InvalidOffsetException ex) {
+        throw new GateRuntimeException("Could not add pair annotation", ex);
+      }
+    }
+    batch.clear();
+    inBatch.clear();
+  }
+
+  @Override
+  protected void beforeFirstDocument(Controller ctrl) {
+    if (dataFileUrl == null || dataFileUrl.toExternalForm().isEmpty()) {
+      throw new GateRuntimeException("A dataFileUrl must be specified");
+    }
+    for (String name : statsNames) {
+      if (!Arrays.asList(PairStatsBatch.METRICS).contains(name)) {
+        throw new GateRuntimeException("Not a known statistic in statsList: " + name);
+      }
+    }
+    if (threshold != null && !Arrays.asList(PairStatsBatch.METRICS).contains(thresholdMetric)) {
+      throw new GateRuntimeException("Not a known metric for thresholdMetric: " + thresholdMetric);
+    }
+    // all pairs of a whole document would need memory quadratic in its length
+    if (windowSize <= 0 && (containingType == null || containingType.isEmpty())) {
+      throw new GateRuntimeException("A windowSize of 0 needs a containingType");
+    }
+    // the store gets opened again for each run, in case the data file changed
+    synchronized (SYNC_OBJECT) {
+      sharedData.put("collocationStore", CollocationStore.open(Files.fileFromURL(dataFileUrl)));
+    }
+  }
+
+  @Override
+  protected void afterLastDocument(Controller ctrl, Throwable t) {
+    sharedData.remove("collocationStore");
+  }
+
+  @Override
+  protected void finishedNoDocument(Controller ctrl, Throwable t) {
+    sharedData.remove("collocationStore");
+  }
+
+}
@@ -26,8 +26,11 @@ import gate.creole.metadata.*;
 import gate.util.Benchmark;
 import gate.util.GateRuntimeException;
 import java.net.URL;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.LongAdder;
 
@@ -140,8 +143,123 @@ public class AssignStatsTfIdfPR extends AbstractDocumentProcessor {
   public String getFeaturePrefix() {
     return featurePrefix;
   }
-  
-  
+
+  private boolean assignTermFeatures = true;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If false, do not add the statistics features to the input annotations, e.g. if only the top-K terms are needed",
+          defaultValue = "true"
+  )
+  public void setAssignTermFeatures(Boolean val) {
+    assignTermFeatures = (val == null) ? true : val;
+  }
+  public Boolean getAssignTermFeatures() {
+    return assignTermFeatures;
+  }
+
+  private int topK = 0;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If > 0, the number of highest scoring distinct terms to add as a feature to the document or each containing annotation",
+          defaultValue = "0"
+  )
+  public void setTopK(Integer val) {
+    topK = (val == null) ? 0 : val;
+  }
+  public Integer getTopK() {
+    return topK;
+  }
+
+  private String topKStatistic = "tfidf";
+  private StatsTfIdfFunction topKFunction = StatsTfIdfFunctions.names2functions("tfidf").get("tfidf");
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The name of the statistic used for ranking the top-K terms",
+          defaultValue = "tfidf"
+  )
+  public void setTopKStatistic(String val) {
+    val = (val == null || val.trim().isEmpty()) ? "tfidf" : val.trim();
+    topKFunction = StatsTfIdfFunctions.names2functions(val).get(val);
+    topKStatistic = val;
+  }
+  public String getTopKStatistic() {
+    return topKStatistic;
+  }
+
+  private String topKFeature = "topterms";
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The name of the feature (after the prefix) that receives the map of top-K terms to their scores",
+          defaultValue = "topterms"
+  )
+  public void setTopKFeature(String val) {
+    topKFeature = val;
+  }
+  public String getTopKFeature() {
+    return topKFeature;
+  }
+
+  private double bm25K1 = 1.2;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The k1 parameter of the bm25 statistic",
+          defaultValue = "1.2"
+  )
+  public void setBm25K1(Double val) {
+    bm25K1 = (val == null) ? 1.2 : val;
+  }
+  public Double getBm25K1() {
+    return bm25K1;
+  }
+
+  private double bm25B = 0.75;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The b (document length normalization) parameter of the bm25 statistic",
+          defaultValue = "0.75"
+  )
+  public void setBm25B(Double val) {
+    bm25B = (val == null) ? 0.75 : val;
+  }
+  public Double getBm25B() {
+    return bm25B;
+  }
+
+  private double pivotSlope = 0.2;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The slope for the pivoted length normalization statistic pivtfidf",
+          defaultValue = "0.2"
+  )
+  public void setPivotSlope(Double val) {
+    pivotSlope = (val == null) ? 0.2 : val;
+  }
+  public Double getPivotSlope() {
+    return pivotSlope;
+  }
+
+  private double pivotQuantile = 0.0;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If > 0, use this quantile of the document lengths as the pivot for pivtfidf instead of the mean, if the data file has the lengths of all documents",
+          defaultValue = "0.0"
+  )
+  public void setPivotQuantile(Double val) {
+    pivotQuantile = (val == null) ? 0.0 : val;
+  }
+  public Double getPivotQuantile() {
+    return pivotQuantile;
+  }
+
+
 
   // The actual important parameters:
   // What values should get added? 
@@ -170,10 +288,9 @@ public class AssignStatsTfIdfPR extends AbstractDocumentProcessor {
   private int mostFrequentWordFreq = 0;
   private int documentWordFreq = 0;
   
-  // The following map is a placeholder for the options map to pass to each
-  // of the stats functions. This is not used yet, so we just use this empty
-  // map for now
-  static final Map<String,Object> DUMMY_OPTIONS = new HashMap<String,Object>();
+  // The options map to pass to each of the stats functions, this gets 
+  // initialized before the first document from the parameters and the corpus stats
+  private Map<String,Object> statsOptions = new HashMap<String,Object>();
 
   ////////////////////// PROCESSING
   @Override
@@ -233,24 +350,50 @@ public class AssignStatsTfIdfPR extends AbstractDocumentProcessor {
       }
     }
     
-    if (containingAnns == null) {
-      // go through all input annotations 
-      for (Annotation ann : inputAnns) {
-        assignStats(document, ann, wordcounts);
-        if (isInterrupted()) {
-          throw new GateRuntimeException("AssignStatsTfIdfPR has been interrupted");
-        }
-      }
-    } else {
-      // go through the input annotations contained in the containing annotations
-      for (Annotation containingAnn : containingAnns) {
-        AnnotationSet containedAnns = gate.Utils.getContainedAnnotations(inputAnns, containingAnn);
-        for (Annotation ann : containedAnns) {
+    if (assignTermFeatures) {
+      if (containingAnns == null) {
+        // go through all input annotations 
+        for (Annotation ann : inputAnns) {
           assignStats(document, ann, wordcounts);
           if (isInterrupted()) {
             throw new GateRuntimeException("AssignStatsTfIdfPR has been interrupted");
           }
         }
+      } else {
+        // go through the input annotations contained in the containing annotations
+        for (Annotation containingAnn : containingAnns) {
+          AnnotationSet containedAnns = gate.Utils.getContainedAnnotations(inputAnns, containingAnn);
+          for (Annotation ann : containedAnns) {
+            assignStats(document, ann, wordcounts);
+            if (isInterrupted()) {
+              throw new GateRuntimeException("AssignStatsTfIdfPR has been interrupted");
+            }
+          }
+        }
+      }
+    }
+
+    if (topK > 0) {
+      String fn = topKFeature;
+      if(featurePrefix!=null && !featurePrefix.isEmpty()) {
+        fn = featurePrefix+fn;
+      }
+      if (containingAnns == null) {
+        document.getFeatures().put(fn, topTerms(wordcounts.keySet(), wordcounts));
+      } else {
+        // the scores are still based on the document counts, but only the 
+        // terms which occur within the containing annotation are candidates
+        for (Annotation containingAnn : containingAnns) {
+          AnnotationSet containedAnns = gate.Utils.getContainedAnnotations(inputAnns, containingAnn);
+          Set<String> terms = new HashSet<>();
+          for (Annotation ann : containedAnns) {
+            String key = getTermKey(ann);
+            if (key != null) {
+              terms.add(key);
+            }
+          }
+          containingAnn.getFeatures().put(fn, topTerms(terms, wordcounts));
+        }
       }
     }
     
@@ -261,40 +404,59 @@ public class AssignStatsTfIdfPR extends AbstractDocumentProcessor {
     //fireStatusChanged("AssignStatsTfIdfPR: processing complete!");
   }
 
-  private void assignStats(Document doc, Annotation ann, Map<String, Integer> wordmap) {
-    // to calculate the various measures we have available the following building blocks
-    // * wordmap[word]: the tf of the word in the document
-    // * mostFrequentWordFreq: the most frequent term count (for ntf)
-    // * documentWordFreq: the total number of terms (for wtf)
-    // * all from TermStats for a word from the corpus.
+  // Get the term string for the annotation, case-folded if necessary, or 
+  // null if there is no term for the annotation
+  private String getTermKey(Annotation ann) {
     String key;
-    FeatureMap fm = ann.getFeatures();
     if (getKeyFeature() == null || getKeyFeature().isEmpty()) {
       key = Utils.cleanStringFor(document, ann);
     } else {
-      key = (String) fm.get(getKeyFeature());
+      key = (String) ann.getFeatures().get(getKeyFeature());
     }
-    if(!corpusStats.isCaseSensitive) {
+    if(key != null && !corpusStats.isCaseSensitive) {
       key = key.toLowerCase(corpusStats.ccLocale);
     }    
+    return key;
+  }
+
+  // Calculate a single statistic for a term from the corpus stats and the 
+  // local counts for the current document
+  private Double calcStat(StatsTfIdfFunction function, String key, Map<String, Integer> wordmap) {
+    TermStats termStats = corpusStats.map.get(key);
+    Integer tf = wordmap.get(key);
+    if(tf==null) {
+      tf = 0;
+    }
+    if(termStats==null) {
+      termStats = new TermStats();
+    }
+    return function.apply(termStats, 
+            nDocs, 
+            nWords, 
+            nTerms,
+            tf, 
+            mostFrequentWordFreq, 
+            documentWordFreq, 
+            statsOptions);
+  }
+
+  // Find the topK terms among the candidates with the highest value of the
+  // topK statistic, ordered by descending value
+  private Map<String,Double> topTerms(Collection<String> terms, Map<String, Integer> wordmap) {
+    return TopKTerms.select(terms, topK, term -> calcStat(topKFunction, term, wordmap));
+  }
+
+  private void assignStats(Document doc, Annotation ann, Map<String, Integer> wordmap) {
+    // to calculate the various measures we have available the following building blocks
+    // * wordmap[word]: the tf of the word in the document
+    // * mostFrequentWordFreq: the most frequent term count (for ntf)
+    // * documentWordFreq: the total number of terms (for wtf)
+    // * all from TermStats for a word from the corpus.
+    FeatureMap fm = ann.getFeatures();
+    String key = getTermKey(ann);
     if (key != null) {
-      TermStats termStats = corpusStats.map.get(key);
-      Integer tf = wordmap.get(key);
-      if(tf==null) {
-        tf = 0;
-      }
-      if(termStats==null) {
-        termStats = new TermStats();
-      }
       for(String fname : statsFunctions.keySet()) {
-        Double stat = statsFunctions.get(fname).apply(termStats, 
-                nDocs, 
-                nWords, 
-                nTerms,
-                tf, 
-                mostFrequentWordFreq, 
-                documentWordFreq, 
-                DUMMY_OPTIONS);
+        Double stat = calcStat(statsFunctions.get(fname), key, wordmap);
         String fn = fname;
         if(featurePrefix!=null && !featurePrefix.isEmpty()) {
           fn = featurePrefix+fn;
@@ -306,16 +468,7 @@ public class AssignStatsTfIdfPR extends AbstractDocumentProcessor {
   
   
   private void calcLocalStats(Document doc, Annotation ann, Map<String, Integer> wordmap) {
-    String key;
-    FeatureMap fm = ann.getFeatures();
-    if (getKeyFeature() == null || getKeyFeature().isEmpty()) {
-      key = Utils.cleanStringFor(document, ann);
-    } else {
-      key = (String) fm.get(getKeyFeature());
-    }
-    if(!corpusStats.isCaseSensitive) {
-      key = key.toLowerCase(corpusStats.ccLocale);
-    }    
+    String key = getTermKey(ann);
     // we actually have a word to count
     if (key != null) {
       documentWordFreq += 1;
@@ -352,6 +505,25 @@ public class AssignStatsTfIdfPR extends AbstractDocumentProcessor {
       nDocs = corpusStats.nDocs.longValue();
       nWords = corpusStats.nWords.longValue();
       nTerms = corpusStats.map.size();
+      // the average document length and pivot for the length normalized statistics:
+      // the document length distribution is only used if it covers all documents,
+      // data saved by older versions does not have it and data which was
+      // added to an existing data file only has it for the added documents.
+      // Both are at least 1, since they get divided by: the corpus can have 
+      // no words and a low quantile can be in the bucket of empty documents.
+      double avgdl = Math.max(1.0, nDocs == 0 ? 1.0 : nWords / (double)nDocs);
+      double pivot = avgdl;
+      if(pivotQuantile > 0.0 && nDocs > 0 && corpusStats.docLengths != null && 
+              corpusStats.docLengths.getNDocs() == nDocs) {
+        pivot = Math.max(1.0, corpusStats.docLengths.getQuantile(pivotQuantile));
+      }
+      Map<String,Object> options = new HashMap<>();
+      options.put("k1", bm25K1);
+      options.put("b", bm25B);
+      options.put("avgdl", avgdl);
+      options.put("slope", pivotSlope);
+      options.put("pivot", pivot);
+      statsOptions = options;
     }
   }
 
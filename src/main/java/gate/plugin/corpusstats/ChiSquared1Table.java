@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
+
+/**
+ * Fast approximation of the cumulative distribution function of the
+ * chi-squared distribution with one degree of freedom.
+ *
+ * For one degree of freedom, P(X &lt;= x) = g(sqrt(x)) with
+ * g(s) = erf(s/sqrt(2)), which is smooth in s, so the table contains g at
+ * the points s = i*h, with h = 1/1024, for s from 0 to 8 (x from 0 to 64),
+ * and values in between are linearly interpolated.
+ * The interpolation error is at most h^2/8 * max|g''(s)|, where
+ * g''(s) = -sqrt(2/pi) s exp(-s^2/2), which has its maximum absolute value
+ * 0.4839 at s=1, so the absolute error is at most 5.8e-8 (plus the error of
+ * the table values, which are calculated with commons-math3).
+ * For x outside of the table range, and for NaN, the exact calculation of
+ * commons-math3 is used.
+ *
+ * @author Johann Petrak
+ */
+public class ChiSquared1Table {
+
+  private static final int STEPS_PER_UNIT = 1024;
+  private static final double MAX_S = 8.0;
+  public static final double MAX_X = MAX_S * MAX_S;
+  /**
+   * The maximum absolute difference to the exact value inside the table range.
+   */
+  public static final double MAX_ERROR = 5.8e-8;
+
+  private static final ChiSquaredDistribution CHDIST = new ChiSquaredDistribution(1);
+  private static final double[] TABLE = createTable();
+
+  private static double[] createTable() {
+    int n = (int) (MAX_S * STEPS_PER_UNIT) + 1;
+    double[] table = new double[n + 1];
+    for (int i = 0; i < n; i++) {
+      double s = (double) i / STEPS_PER_UNIT;
+      table[i] = CHDIST.cumulativeProbability(s * s);
+    }
+    // so that interpolating at the last point does not need a special case
+    table[n] = table[n - 1];
+    return table;
+  }
+
+  private ChiSquared1Table() {
+  }
+
+  /**
+   * The probability that a chi-squared distributed value with one degree
+   * of freedom is at most x.
+   * @param x the value
+   * @return the cumulative probability
+   */
+  public static double cumulativeProbability(double x) {
+    if (x >= 0.0 && x <= MAX_X) {
+      double pos = Math.sqrt(x) * STEPS_PER_UNIT;
+      int i = (int) pos;
+      double frac = pos - i;
+      return TABLE[i] + frac * (TABLE[i + 1] - TABLE[i]);
+    }
+    return CHDIST.cumulativeProbability(x);
+  }
+
+  /**
+   * The exact probability, as calculated by commons-math3.
+   * @param x the value
+   * @return the cumulative probability
+   */
+  public static double exactCumulativeProbability(double x) {
+    return CHDIST.cumulativeProbability(x);
+  }
+}
@@ -0,0 +1,836 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import gate.util.GateRuntimeException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A binary file with collocation counts which is read by memory-mapping.
+ *
+ * The file starts with a header of fixed size, followed by these sections,
+ * each aligned to 8 bytes (all numbers are big-endian):
+ * <ul>
+ * <li>the case conversion language tag, as its length and UTF-8 bytes</li>
+ * <li>the terms, sorted by their UTF-8 bytes: nTerms+1 long offsets of
+ * each term into the term bytes, followed by the term bytes. The id of a
+ * term in the store is its index in this order.</li>
+ * <li>the counts of type 1 for each term id, then the counts of type 2 if
+ * there are two types</li>
+ * <li>the pair keys as packed by PairCounts.pairKey from the store term
+ * ids, sorted, then the count for each pair. For unordered pairs of one
+ * type, the smaller id comes first.</li>
+ * <li>the index of the pairs by term1 (compressed sparse rows): for each
+ * term id, the index of its first pair as term1, nTerms+1 longs. Since
+ * the pairs are sorted by term1, the pairs of a term are the range up to
+ * the first pair of the next term.</li>
+ * <li>the index of the pairs by term2 (compressed sparse columns): for each
+ * term id, the offset of its first entry in the column entries, nTerms+1
+ * longs, then the column entries, which are the indices of the pairs
+ * sorted by term2 and term1.</li>
+ * </ul>
+ * Looking up a term or a pair is a binary search in the mapped file, so
+ * the store can be used without loading anything into the heap and by
+ * several threads at the same time. The store is written from the counts
+ * of a CorpusStatsCollocationsData in a streaming way, so this also works
+ * if the pair counts have been spilled to disk. With the two indices, the
+ * partners of a term can be found without scanning the pairs, in both
+ * directions.
+ *
+ * @author Johann Petrak
+ */
+public class CollocationStore {
+
+  private static final byte[] MAGIC = "CSCOLLOC".getBytes(StandardCharsets.US_ASCII);
+  public static final int VERSION = 2;
+  private static final int HEADER_SIZE = 256;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private static final int FLAG_TWO_TYPES = 1;
+  private static final int FLAG_ORDERED = 2;
+  private static final int FLAG_CASE_SENSITIVE = 4;
+
+  private final File file;
+  private final boolean haveTwoTypes;
+  private final boolean orderIsSignificant;
+  private final boolean isCaseSensitive;
+  private final Locale ccLocale;
+  private final long nContexts;
+  private final long nDocs;
+  private final double laplaceCoefficient;
+  private final int nTerms;
+  private final long nTerms1;
+  private final long nTerms2;
+  private final long nPairs;
+
+  private final MappedLongs termOffsets;
+  private final MappedByteBuffer termBytes;
+  private final MappedLongs counts1;
+  private final MappedLongs counts2;
+  private final MappedLongs pairKeys;
+  private final MappedLongs pairCounts;
+  private final MappedLongs rowOffsets;
+  private final MappedLongs colOffsets;
+  private final MappedLongs colEntries;
+
+  // for calculating the stats with the totals of the store
+  private final CorpusStatsCollocationsData calculator;
+
+  private CollocationStore(File file) {
+    this.file = file;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel()) {
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new GateRuntimeException("Not a collocation store: " + file);
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new GateRuntimeException("Not a supported collocation store version: " + version);
+      }
+      int flags = header.getInt();
+      haveTwoTypes = (flags & FLAG_TWO_TYPES) != 0;
+      orderIsSignificant = (flags & FLAG_ORDERED) != 0;
+      isCaseSensitive = (flags & FLAG_CASE_SENSITIVE) != 0;
+      nContexts = header.getLong();
+      nDocs = header.getLong();
+      laplaceCoefficient = header.getDouble();
+      nTerms = (int) header.getLong();
+      nTerms1 = header.getLong();
+      nTerms2 = header.getLong();
+      nPairs = header.getLong();
+      long offTermOffsets = header.getLong();
+      long offTermBytes = header.getLong();
+      long offCounts1 = header.getLong();
+      long offCounts2 = header.getLong();
+      long offPairKeys = header.getLong();
+      long offPairCounts = header.getLong();
+      long offRowOffsets = header.getLong();
+      long offColOffsets = header.getLong();
+      long offColEntries = header.getLong();
+
+      ByteBuffer localeBuffer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, offTermOffsets - HEADER_SIZE);
+      byte[] tag = new byte[localeBuffer.getInt()];
+      localeBuffer.get(tag);
+      ccLocale = Locale.forLanguageTag(new String(tag, StandardCharsets.UTF_8));
+
+      termOffsets = new MappedLongs(channel, FileChannel.MapMode.READ_ONLY, offTermOffsets, nTerms + 1L);
+      termBytes = channel.map(FileChannel.MapMode.READ_ONLY, offTermBytes, termOffsets.get(nTerms));
+      counts1 = new MappedLongs(channel, FileChannel.MapMode.READ_ONLY, offCounts1, nTerms);
+      counts2 = haveTwoTypes ? new MappedLongs(channel, FileChannel.MapMode.READ_ONLY, offCounts2, nTerms) : counts1;
+      pairKeys = new MappedLongs(channel, FileChannel.MapMode.READ_ONLY, offPairKeys, nPairs);
+      pairCounts = new MappedLongs(channel, FileChannel.MapMode.READ_ONLY, offPairCounts, nPairs);
+      rowOffsets = new MappedLongs(channel, FileChannel.MapMode.READ_ONLY, offRowOffsets, nTerms + 1L);
+      colOffsets = new MappedLongs(channel, FileChannel.MapMode.READ_ONLY, offColOffsets, nTerms + 1L);
+      colEntries = new MappedLongs(channel, FileChannel.MapMode.READ_ONLY, offColEntries, nPairs);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not open collocation store " + file, ex);
+    }
+    calculator = new CorpusStatsCollocationsData();
+    calculator.haveTwoTypes = haveTwoTypes;
+    calculator.orderIsSignificant = orderIsSignificant;
+    calculator.laplaceCoefficient = laplaceCoefficient;
+    calculator.initStats(nContexts, nPairs, nTerms1, nTerms2);
+  }
+
+  /**
+   * Open a store for reading. The mapped file stays open until the store
+   * gets garbage collected.
+   * @param file the file
+   * @return the store
+   */
+  public static CollocationStore open(File file) {
+    return new CollocationStore(file);
+  }
+
+  /**
+   * Check if the data from the stream looks like a store.
+   * @param is the stream, this reads the first few bytes from it
+   * @return true if the stream starts with the magic bytes of a store
+   * @throws IOException if the stream cannot be read
+   */
+  public static boolean isStore(InputStream is) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    int n = 0;
+    while (n < magic.length) {
+      int read = is.read(magic, n, magic.length - n);
+      if (read < 0) {
+        return false;
+      }
+      n += read;
+    }
+    return Arrays.equals(magic, MAGIC);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public boolean haveTwoTypes() {
+    return haveTwoTypes;
+  }
+
+  public boolean orderIsSignificant() {
+    return orderIsSignificant;
+  }
+
+  public boolean isCaseSensitive() {
+    return isCaseSensitive;
+  }
+
+  public Locale getCaseConversionLocale() {
+    return ccLocale;
+  }
+
+  public long getNumberOfContexts() {
+    return nContexts;
+  }
+
+  public long getNumberOfDocuments() {
+    return nDocs;
+  }
+
+  public int getNumberOfTerms() {
+    return nTerms;
+  }
+
+  public long getNumberOfPairs() {
+    return nPairs;
+  }
+
+  /**
+   * Get the id of a term in the store. If the store is not case sensitive,
+   * the term is converted to lower case first.
+   * @param term the term
+   * @return the id or -1 if the term is not in the store
+   */
+  public int getTermId(String term) {
+    if (!isCaseSensitive) {
+      term = term.toLowerCase(ccLocale);
+    }
+    byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+    int lo = 0;
+    int hi = nTerms - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = compareTerm(mid, bytes);
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  // Compare the bytes of the term with the id to the given bytes
+  private int compareTerm(int id, byte[] bytes) {
+    int from = (int) termOffsets.get(id);
+    int length = (int) termOffsets.get(id + 1L) - from;
+    int n = Math.min(length, bytes.length);
+    for (int i = 0; i < n; i++) {
+      int cmp = Integer.compare(termBytes.get(from + i) & 0xff, bytes[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return Integer.compare(length, bytes.length);
+  }
+
+  /**
+   * Get the term for an id of the store.
+   * @param id the id
+   * @return the term
+   */
+  public String getTerm(int id) {
+    int from = (int) termOffsets.get(id);
+    byte[] bytes = new byte[(int) termOffsets.get(id + 1L) - from];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = termBytes.get(from + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * The number of contexts of a term as term1 (or as any term with one type).
+   * @param id the id of the term, or -1
+   * @return the count
+   */
+  public long getTerm1Count(int id) {
+    return id < 0 ? 0L : counts1.get(id);
+  }
+
+  /**
+   * The number of contexts of a term as term2 (or as any term with one type).
+   * @param id the id of the term, or -1
+   * @return the count
+   */
+  public long getTerm2Count(int id) {
+    return id < 0 ? 0L : counts2.get(id);
+  }
+
+  /**
+   * Get the key of a pair of ids of the store, for unordered pairs of
+   * one type, the smaller id comes first.
+   * @param id1 the id of the first term
+   * @param id2 the id of the second term
+   * @return the key
+   */
+  public long pairKey(int id1, int id2) {
+    if (!haveTwoTypes && !orderIsSignificant && id2 < id1) {
+      return PairCounts.pairKey(id2, id1);
+    }
+    return PairCounts.pairKey(id1, id2);
+  }
+
+  /**
+   * Find the index of a pair in the sorted pairs, by binary search within
+   * the pairs of its first term.
+   * @param key the pair key
+   * @return the index or -1 if the pair is not in the store
+   */
+  public long findPair(long key) {
+    int id1 = PairCounts.term1(key);
+    if (id1 < 0 || id1 >= nTerms) {
+      return -1;
+    }
+    long lo = rowOffsets.get(id1);
+    long hi = rowOffsets.get(id1 + 1L) - 1;
+    while (lo <= hi) {
+      long mid = (lo + hi) >>> 1;
+      long midKey = pairKeys.get(mid);
+      if (midKey < key) {
+        lo = mid + 1;
+      } else if (midKey > key) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Look up the counts of several pairs at once. The keys must be sorted,
+   * so each search can start where the previous one ended.
+   * @param keys the pair keys, in ascending order
+   * @param n the number of keys to look up
+   * @param counts receives the count for each key, 0 if not in the store
+   */
+  public void getPairCounts(long[] keys, int n, long[] counts) {
+    long lo = 0;
+    for (int k = 0; k < n; k++) {
+      long key = keys[k];
+      long hi = nPairs - 1;
+      counts[k] = 0L;
+      while (lo <= hi) {
+        long mid = (lo + hi) >>> 1;
+        long midKey = pairKeys.get(mid);
+        if (midKey < key) {
+          lo = mid + 1;
+        } else if (midKey > key) {
+          hi = mid - 1;
+        } else {
+          counts[k] = pairCounts.get(mid);
+          lo = mid;
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * The key of the pair at an index of the sorted pairs.
+   * @param index the index
+   * @return the key
+   */
+  public long getPairKeyAt(long index) {
+    return pairKeys.get(index);
+  }
+
+  /**
+   * The count of the pair at an index of the sorted pairs.
+   * @param index the index
+   * @return the count
+   */
+  public long getPairCountAt(long index) {
+    return pairCounts.get(index);
+  }
+
+  /**
+   * The number of contexts of a pair.
+   * @param id1 the id of the first term, or -1
+   * @param id2 the id of the second term, or -1
+   * @return the count
+   */
+  public long getPairCount(int id1, int id2) {
+    if (id1 < 0 || id2 < 0) {
+      return 0L;
+    }
+    long index = findPair(pairKey(id1, id2));
+    return index < 0 ? 0L : pairCounts.get(index);
+  }
+
+  /**
+   * Calculate the statistics for a pair of terms.
+   * @param term1 the first term
+   * @param term2 the second term
+   * @return the statistics, based on counts of 0 for terms or pairs which
+   * are not in the store
+   */
+  public PairStats getPairStats(String term1, String term2) {
+    return getPairStats(getTermId(term1), getTermId(term2));
+  }
+
+  /**
+   * Calculate the statistics for a pair of term ids.
+   * @param id1 the id of the first term, or -1
+   * @param id2 the id of the second term, or -1
+   * @return the statistics
+   */
+  public PairStats getPairStats(int id1, int id2) {
+    return calculator.calcStats_worker(getPairCount(id1, id2), getTerm1Count(id1), getTerm2Count(id2));
+  }
+
+  /**
+   * Find the partners of a term with the highest value of a statistic.
+   * @param term the term
+   * @param asTerm1 if true, the partners are the second terms of the pairs
+   * with the term as first term, otherwise the first terms of the pairs with
+   * the term as second term. For unordered pairs of one type, the partners
+   * from both sides are used.
+   * @param metric the statistic, one of PairStatsBatch.METRICS
+   * @param n the maximum number of partners
+   * @return a map from partner term to the statistic, best first
+   */
+  public Map<String, Double> getTopPartners(String term, boolean asTerm1, String metric, int n) {
+    return getTopPartners(getTermId(term), asTerm1, metric, n);
+  }
+
+  /**
+   * Find the partners of a term id with the highest value of a statistic.
+   * The pairs of the term are found with the row or column index, then the
+   * statistics get calculated one batch of partners at a time.
+   * @param id the term id, or -1
+   * @param asTerm1 see getTopPartners(String, boolean, String, int)
+   * @param metric the statistic, one of PairStatsBatch.METRICS
+   * @param n the maximum number of partners
+   * @return a map from partner term to the statistic, best first
+   */
+  public Map<String, Double> getTopPartners(int id, boolean asTerm1, String metric, int n) {
+    Map<String, Double> ret = new LinkedHashMap<>();
+    if (id < 0 || n <= 0) {
+      return ret;
+    }
+    boolean bothSides = !haveTwoTypes && !orderIsSignificant;
+    TopKPairs top = new TopKPairs(n);
+    PairStatsBatch batch = new PairStatsBatch(PARTNER_BATCH_SIZE);
+    long[] partners = new long[PARTNER_BATCH_SIZE];
+    if (asTerm1 || bothSides) {
+      long end = rowOffsets.get(id + 1L);
+      for (long i = rowOffsets.get(id); i < end; i++) {
+        int partner = PairCounts.term2(pairKeys.get(i));
+        partners[batch.add(pairCounts.get(i), counts1.get(id), counts2.get(partner))] = partner;
+        if (batch.isFull()) {
+          offerPartners(batch, partners, metric, top);
+        }
+      }
+    }
+    if (!asTerm1 || bothSides) {
+      long end = colOffsets.get(id + 1L);
+      for (long c = colOffsets.get(id); c < end; c++) {
+        long i = colEntries.get(c);
+        int partner = PairCounts.term1(pairKeys.get(i));
+        if (bothSides && partner == id) {
+          // the pair of the term with itself is also in its row
+          continue;
+        }
+        partners[batch.add(pairCounts.get(i), counts1.get(partner), counts2.get(id))] = partner;
+        if (batch.isFull()) {
+          offerPartners(batch, partners, metric, top);
+        }
+      }
+    }
+    offerPartners(batch, partners, metric, top);
+    double[] scores = new double[top.size()];
+    long[] best = top.drainKeys(scores);
+    for (int i = 0; i < best.length; i++) {
+      ret.put(getTerm((int) best[i]), scores[i]);
+    }
+    return ret;
+  }
+
+  private static final int PARTNER_BATCH_SIZE = 256;
+
+  private void offerPartners(PairStatsBatch batch, long[] partners, String metric, TopKPairs top) {
+    calculator.calcStats(batch);
+    double[] values = batch.getMetric(metric);
+    for (int b = 0; b < batch.size(); b++) {
+      top.offer(values[b], partners[b]);
+    }
+    batch.clear();
+  }
+
+  /**
+   * Calculate the statistics for all pairs in the batch from their counts,
+   * using the totals of the store.
+   * @param batch the batch
+   */
+  public void calcStats(PairStatsBatch batch) {
+    calculator.calcStats(batch);
+  }
+
+  /**
+   * Call the procedure for all pairs, in key order.
+   * @param proc the procedure to call with the pair key and count
+   */
+  public void forEachPair(LongLongHashMap.LongLongProcedure proc) {
+    for (long i = 0; i < nPairs; i++) {
+      proc.apply(pairKeys.get(i), pairCounts.get(i));
+    }
+  }
+
+  /**
+   * Add all counts of the store to the counts of the data.
+   * @param data the data to add to
+   */
+  public void addTo(CorpusStatsCollocationsData data) {
+    int[] idById = new int[nTerms];
+    for (int id = 0; id < nTerms; id++) {
+      String term = getTerm(id);
+      idById[id] = data.terms.intern(term);
+      long count1 = counts1.get(id);
+      if (count1 > 0) {
+        data.countsTerms1.computeIfAbsent(term, t -> new LongAdder()).add(count1);
+      }
+      if (haveTwoTypes) {
+        long count2 = counts2.get(id);
+        if (count2 > 0) {
+          data.countsTerms2.computeIfAbsent(term, t -> new LongAdder()).add(count2);
+        }
+      }
+    }
+    data.totalContexts.add(nContexts);
+    data.nDocs.add(nDocs);
+    LongLongHashMap local = new LongLongHashMap(BUFFER_SIZE);
+    for (long i = 0; i < nPairs; i++) {
+      long key = pairKeys.get(i);
+      local.addTo(data.pairKey(idById[PairCounts.term1(key)], idById[PairCounts.term2(key)]), pairCounts.get(i));
+      if (local.size() >= BUFFER_SIZE) {
+        data.countsPairs.addAll(local);
+        local.clear();
+      }
+    }
+    data.countsPairs.addAll(local);
+  }
+
+  /**
+   * Write the counts of the data to a store file.
+   *
+   * The terms and the term counts are kept in memory, the pairs are
+   * processed one partition at a time: the keys are converted to the store
+   * ids, sorted and written to a temporary run, then the runs of all
+   * partitions get merged into the file.
+   *
+   * @param data the data
+   * @param file the file to write
+   */
+  public static void write(CorpusStatsCollocationsData data, File file) {
+    TermDictionary terms = data.terms;
+    // the terms which have counts or are in a pair, the dictionary may also
+    // contain terms which were never counted, e.g. from a tf file
+    int dictSize = terms.size();
+    boolean[] used = new boolean[dictSize];
+    for (String term : data.countsTerms1.keySet()) {
+      used[terms.intern(term)] = true;
+    }
+    for (String term : data.countsTerms2.keySet()) {
+      used[terms.intern(term)] = true;
+    }
+    if (terms.size() > dictSize) {
+      used = Arrays.copyOf(used, terms.size());
+      dictSize = terms.size();
+    }
+    boolean[] usedInPairs = used;
+    data.countsPairs.forEach((key, count) -> {
+      usedInPairs[PairCounts.term1(key)] = true;
+      usedInPairs[PairCounts.term2(key)] = true;
+    });
+    List<Integer> ids = new ArrayList<>();
+    byte[][] bytesById = new byte[dictSize][];
+    for (int id = 0; id < dictSize; id++) {
+      if (used[id]) {
+        ids.add(id);
+        bytesById[id] = terms.getTerm(id).getBytes(StandardCharsets.UTF_8);
+      }
+    }
+    ids.sort((id1, id2) -> compareBytes(bytesById[id1], bytesById[id2]));
+    int nTerms = ids.size();
+    int[] storeIdById = new int[dictSize];
+    long termBytesLength = 0;
+    for (int i = 0; i < nTerms; i++) {
+      storeIdById[ids.get(i)] = i;
+      termBytesLength += bytesById[ids.get(i)].length;
+    }
+    if (termBytesLength > Integer.MAX_VALUE) {
+      throw new GateRuntimeException("Too many terms for a collocation store");
+    }
+    boolean haveTwoTypes = data.haveTwoTypes;
+    boolean unordered = !haveTwoTypes && !data.orderIsSignificant;
+
+    SortedPairRun run = new SortedPairRun(data.countsPairs.getNumberOfPartitions());
+    try {
+      for (int p = 0; p < data.countsPairs.getNumberOfPartitions(); p++) {
+        LongLongHashMap converted = new LongLongHashMap();
+        data.countsPairs.forEachInPartition(p, (key, count) -> {
+          int id1 = storeIdById[PairCounts.term1(key)];
+          int id2 = storeIdById[PairCounts.term2(key)];
+          if (unordered && id2 < id1) {
+            converted.put(PairCounts.pairKey(id2, id1), count);
+          } else {
+            converted.put(PairCounts.pairKey(id1, id2), count);
+          }
+        });
+        long[] keys = converted.sortedKeys();
+        long[] counts = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+          counts[i] = converted.get(keys[i]);
+        }
+        run.writePartition(p, keys, counts);
+      }
+      run.finish();
+      long nPairs = run.size();
+
+      byte[] tag = data.ccLocale.toLanguageTag().getBytes(StandardCharsets.UTF_8);
+      long offTermOffsets = align(HEADER_SIZE + 4 + tag.length);
+      long offTermBytes = offTermOffsets + 8L * (nTerms + 1);
+      long offCounts1 = align(offTermBytes + termBytesLength);
+      long offCounts2 = haveTwoTypes ? offCounts1 + 8L * nTerms : offCounts1;
+      long offPairKeys = offCounts2 + 8L * nTerms;
+      long offPairCounts = offPairKeys + 8L * nPairs;
+      long offRowOffsets = offPairCounts + 8L * nPairs;
+      long offColOffsets = offRowOffsets + 8L * (nTerms + 1);
+      long offColEntries = offColOffsets + 8L * (nTerms + 1);
+
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+              FileChannel channel = raf.getChannel()) {
+        raf.setLength(0);
+        Output out = new Output(channel, 0);
+        out.putBytes(MAGIC);
+        out.putInt(VERSION);
+        out.putInt((haveTwoTypes ? FLAG_TWO_TYPES : 0) |
+                (data.orderIsSignificant ? FLAG_ORDERED : 0) |
+                (data.isCaseSensitive ? FLAG_CASE_SENSITIVE : 0));
+        out.putLong(data.totalContexts.sum());
+        out.putLong(data.nDocs.sum());
+        out.putDouble(data.laplaceCoefficient);
+        out.putLong(nTerms);
+        out.putLong(data.countsTerms1.size());
+        out.putLong(haveTwoTypes ? data.countsTerms2.size() : data.countsTerms1.size());
+        out.putLong(nPairs);
+        out.putLong(offTermOffsets);
+        out.putLong(offTermBytes);
+        out.putLong(offCounts1);
+        out.putLong(offCounts2);
+        out.putLong(offPairKeys);
+        out.putLong(offPairCounts);
+        out.putLong(offRowOffsets);
+        out.putLong(offColOffsets);
+        out.putLong(offColEntries);
+        out.padTo(HEADER_SIZE);
+        out.putInt(tag.length);
+        out.putBytes(tag);
+        out.padTo(offTermOffsets);
+        long offset = 0;
+        for (int i = 0; i < nTerms; i++) {
+          out.putLong(offset);
+          offset += bytesById[ids.get(i)].length;
+        }
+        out.putLong(offset);
+        for (int i = 0; i < nTerms; i++) {
+          out.putBytes(bytesById[ids.get(i)]);
+        }
+        out.padTo(offCounts1);
+        writeCounts(out, data.countsTerms1, terms, storeIdById, nTerms);
+        if (haveTwoTypes) {
+          writeCounts(out, data.countsTerms2, terms, storeIdById, nTerms);
+        }
+        out.flush();
+
+        // the keys and counts of the pairs get written at the same time,
+        // each to its own section, and the pairs of each term get counted
+        // for the row and column offsets
+        Output keysOut = new Output(channel, offPairKeys);
+        Output countsOut = new Output(channel, offPairCounts);
+        long[] rowStarts = new long[nTerms + 1];
+        long[] colStarts = new long[nTerms + 1];
+        List<SortedPairRun.Cursor> cursors = new ArrayList<>();
+        try {
+          for (int p = 0; p < data.countsPairs.getNumberOfPartitions(); p++) {
+            cursors.add(run.open(p));
+          }
+          SortedPairRun.merge(cursors, (key, count) -> {
+            keysOut.putLong(key);
+            countsOut.putLong(count);
+            rowStarts[PairCounts.term1(key) + 1]++;
+            colStarts[PairCounts.term2(key) + 1]++;
+          });
+        } finally {
+          for (SortedPairRun.Cursor cursor : cursors) {
+            cursor.close();
+          }
+        }
+        keysOut.flush();
+        countsOut.flush();
+        for (int i = 0; i < nTerms; i++) {
+          rowStarts[i + 1] += rowStarts[i];
+          colStarts[i + 1] += colStarts[i];
+        }
+        Output indexOut = new Output(channel, offRowOffsets);
+        for (long start : rowStarts) {
+          indexOut.putLong(start);
+        }
+        for (long start : colStarts) {
+          indexOut.putLong(start);
+        }
+        indexOut.flush();
+        // going through the pairs in order puts the entries of each column
+        // in the order of term1
+        MappedLongs keys = new MappedLongs(channel, FileChannel.MapMode.READ_ONLY, offPairKeys, nPairs);
+        MappedLongs entries = new MappedLongs(channel, FileChannel.MapMode.READ_WRITE, offColEntries, nPairs);
+        for (long i = 0; i < nPairs; i++) {
+          entries.put(colStarts[PairCounts.term2(keys.get(i))]++, i);
+        }
+      }
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not write collocation store " + file, ex);
+    } finally {
+      run.delete();
+    }
+  }
+
+  private static void writeCounts(Output out, Map<String, LongAdder> counts, TermDictionary terms,
+          int[] storeIdById, int nTerms) {
+    long[] byStoreId = new long[nTerms];
+    for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+      byStoreId[storeIdById[terms.getId(entry.getKey())]] = entry.getValue().sum();
+    }
+    for (long count : byStoreId) {
+      out.putLong(count);
+    }
+  }
+
+  private static long align(long offset) {
+    return (offset + 7) & ~7L;
+  }
+
+  // Compare as unsigned bytes, which is the order of the code points for UTF-8
+  private static int compareBytes(byte[] a, byte[] b) {
+    int n = Math.min(a.length, b.length);
+    for (int i = 0; i < n; i++) {
+      int cmp = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return Integer.compare(a.length, b.length);
+  }
+
+  // Buffered writing to a file channel from a given position on
+  private static class Output {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long position;
+
+    Output(FileChannel channel, long position) {
+      this.channel = channel;
+      this.position = position;
+    }
+
+    private void ensure(int n) {
+      if (buffer.remaining() < n) {
+        flush();
+      }
+    }
+
+    void putInt(int value) {
+      ensure(4);
+      buffer.putInt(value);
+    }
+
+    void putLong(long value) {
+      ensure(8);
+      buffer.putLong(value);
+    }
+
+    void putDouble(double value) {
+      ensure(8);
+      buffer.putDouble(value);
+    }
+
+    void putBytes(byte[] bytes) {
+      int from = 0;
+      while (from < bytes.length) {
+        ensure(1);
+        int n = Math.min(buffer.remaining(), bytes.length - from);
+        buffer.put(bytes, from, n);
+        from += n;
+      }
+    }
+
+    // Write zero bytes up to the offset
+    void padTo(long offset) {
+      while (position + buffer.position() < offset) {
+        ensure(1);
+        buffer.put((byte) 0);
+      }
+    }
+
+    void flush() {
+      buffer.flip();
+      try {
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+      } catch (IOException ex) {
+        throw new GateRuntimeException("Could not write to file", ex);
+      }
+      buffer.clear();
+    }
+  }
+}
@@ -0,0 +1,746 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Counts contexts, terms and pairs for the spans of a document.
+ *
+ * A span is given as arrays of term ids, annotation types (1 or 2) and
+ * flags which indicate if the term at a position may be used at all (e.g.
+ * because of the minimum tf). Each context (the whole span or each position
+ * of the sliding window) counts every distinct term and every distinct pair
+ * in it once:
+ * <ul>
+ * <li>with one type, pairs are formed from all eligible positions m &lt; n
+ * with different terms; if the order is not significant, the smaller id
+ * goes first in the pair key</li>
+ * <li>with two types, pairs are formed from all eligible positions of type
+ * 1 with all positions of type 2, the type 1 term goes first</li>
+ * </ul>
+ * The counts get accumulated in the local maps term1counts, term2counts and
+ * paircounts until reset() is called. Instances are not thread-safe, each
+ * duplicate of the PR uses its own.
+ * <p>
+ * For the two-pass mode, the counting of pairs or of terms and contexts can
+ * be switched off, and the pairs can be restricted to terms which are
+ * marked as pairable by their id. The contexts and terms are still counted
+ * from all eligible positions, so they do not depend on this restriction.
+ * <p>
+ * With one type and a significant order, the counter can also count the
+ * contexts which contain a pair in both orders in bothcounts, with the 
+ * smaller id first. The number of contexts of the unordered pair is then 
+ * the sum of the counts of both orders minus that count.
+ * <p>
+ * The number of pairs counted for a context which is a whole span can be 
+ * limited: if there are more different pairs, a uniform random sample of
+ * them gets counted. The pairs in a whole span only depend on its distinct
+ * terms (and for an ordered pair, on the first position of the first and 
+ * the last position of the second term), so the sample is drawn from the
+ * distinct terms and the cost is linear in the length of the span plus the
+ * limit, not quadratic in the length. The number of pairs in these 
+ * contexts and of the counted pairs are kept in contextPairs and
+ * contextPairsKept, so that the sampling rate is known. Sliding windows
+ * are not limited, they have at most windowSize*(windowSize-1) pairs.
+ *
+ * @author Johann Petrak
+ */
+public class CollocationsCounter {
+
+  public final LongLongHashMap term1counts = new LongLongHashMap();
+  public final LongLongHashMap term2counts = new LongLongHashMap();
+  public final LongLongHashMap paircounts = new LongLongHashMap(1024);
+  public final LongLongHashMap bothcounts = new LongLongHashMap();
+  public long contexts = 0;
+  // if the pairs are limited: the number of pairs in the contexts and how
+  // many of them were counted
+  public long contextPairs = 0;
+  public long contextPairsKept = 0;
+
+  private final boolean haveTwoTypes;
+  private final boolean orderIsSignificant;
+
+  private boolean countTerms = true;
+  private boolean countPairs = true;
+  private boolean countBothOrders = false;
+  // the reservoir of pairs for the current context, if the pairs are limited
+  private int maxPairsPerContext = 0;
+  private Random random = null;
+  private long[] sampledPairs = null;
+  private int nSampledPairs = 0;
+  private long nPairsInContext = 0;
+  private LongStampSet sampledPairsSet = null;
+  // if not null, only terms with an id smaller than the length and true
+  // in the array are used for pairs
+  private boolean[] pairable1 = null;
+  private boolean[] pairable2 = null;
+
+  // for a whole span as context: the distinct terms and pairs, a term is 
+  // in the context if its stamp is equal to the current context generation,
+  // so starting a new context does not need to clear anything
+  private final TermStamps term1sForContext = new TermStamps();
+  private final TermStamps term2sForContext = new TermStamps();
+  private final LongStampSet pairsForContext = new LongStampSet(1024);
+  private int contextGeneration = 0;
+
+  // for sliding windows: how often each term and pair occurs in the current window
+  private final LongLongHashMap term1sInWindow = new LongLongHashMap();
+  private final LongLongHashMap term2sInWindow = new LongLongHashMap();
+  private final LongLongHashMap pairsInWindow = new LongLongHashMap(1024);
+
+  // with two types: the positions of each type in the current span, in order
+  private int[] positions1 = new int[64];
+  private int[] positions2 = new int[64];
+  private int nPositions1;
+  private int nPositions2;
+
+  // if the pairs are limited, for a whole span: the distinct terms in the 
+  // order of their first position, with one type also the index in 
+  // positions1 of their first and last position
+  private int[] distinct1 = new int[64];
+  private int[] distinct2 = new int[64];
+  private int[] first1 = new int[64];
+  private int[] last1 = new int[64];
+
+  public CollocationsCounter(boolean haveTwoTypes, boolean orderIsSignificant) {
+    this.haveTwoTypes = haveTwoTypes;
+    this.orderIsSignificant = orderIsSignificant;
+  }
+
+  public boolean haveTwoTypes() {
+    return haveTwoTypes;
+  }
+
+  public boolean orderIsSignificant() {
+    return orderIsSignificant;
+  }
+
+  /**
+   * Set what gets counted for the following spans.
+   * @param countTerms if the contexts and terms should get counted
+   * @param countPairs if the pairs should get counted
+   */
+  public void setCounting(boolean countTerms, boolean countPairs) {
+    this.countTerms = countTerms;
+    this.countPairs = countPairs;
+  }
+
+  /**
+   * Set if the contexts with a pair in both orders get counted, only 
+   * used with one type if the order is significant.
+   * @param countBothOrders if the contexts get counted in bothcounts
+   */
+  public void setCountBothOrders(boolean countBothOrders) {
+    this.countBothOrders = countBothOrders && !haveTwoTypes && orderIsSignificant;
+  }
+
+  /**
+   * Limit the number of pairs counted for each context which is a whole
+   * span to a random sample.
+   * @param maxPairsPerContext the maximum number of pairs, 0 for no limit
+   * @param random the source of randomness for choosing the sample
+   */
+  public void setMaxPairsPerContext(int maxPairsPerContext, Random random) {
+    this.maxPairsPerContext = maxPairsPerContext;
+    this.random = random;
+    if (maxPairsPerContext > 0 && (sampledPairs == null || sampledPairs.length != maxPairsPerContext)) {
+      sampledPairs = new long[maxPairsPerContext];
+      sampledPairsSet = new LongStampSet(Math.min(maxPairsPerContext, 1 << 16));
+    }
+  }
+
+  /**
+   * Set the seed for the random samples of the following spans, so that
+   * the sample of a span does not depend on the spans counted before.
+   * @param seed the seed
+   */
+  public void setSeed(long seed) {
+    if (random != null) {
+      random.setSeed(seed);
+    }
+  }
+
+  /**
+   * Restrict the pairs to terms which are pairable.
+   * @param pairable1 for each term id, if the term can be the first term
+   * (or any term, with one type), terms with an id not smaller than the 
+   * length cannot, if null, all terms can 
+   * @param pairable2 the same for the second term, only used with two types
+   */
+  public void setPairable(boolean[] pairable1, boolean[] pairable2) {
+    this.pairable1 = pairable1;
+    this.pairable2 = pairable2;
+  }
+
+  /**
+   * Remove all the local counts.
+   */
+  public void reset() {
+    term1counts.clear();
+    term2counts.clear();
+    paircounts.clear();
+    bothcounts.clear();
+    contexts = 0;
+    contextPairs = 0;
+    contextPairsKept = 0;
+  }
+
+  /**
+   * Count a span.
+   *
+   * @param ids the term id for each position
+   * @param types the annotation type (1 or 2) for each position, only used with two types
+   * @param eligible for each position, if the term may be counted at all
+   * @param length the number of positions in the span
+   * @param windowSize the size of the sliding window, if 0 or not smaller
+   * than the length, the whole span is the only context
+   */
+  public void countSpan(int[] ids, byte[] types, boolean[] eligible, int length, int windowSize) {
+    findPositions(types, eligible, length);
+    boolean wholeSpan = windowSize <= 0 || windowSize >= length;
+    boolean restrictPairs = countPairs && pairable1 != null;
+    if (countTerms || (countPairs && !restrictPairs)) {
+      countPositions(ids, length, windowSize, wholeSpan, countTerms, countPairs && !restrictPairs);
+    }
+    if (restrictPairs) {
+      // the pairs are counted separately, from only the pairable positions
+      restrictToPairable(ids);
+      countPositions(ids, length, windowSize, wholeSpan, false, true);
+    }
+    if (countTerms) {
+      contexts += wholeSpan ? 1 : length - windowSize + 1;
+    }
+  }
+
+  /**
+   * Split the sliding windows of a span into pieces which can be counted
+   * separately, so that the counts of the pieces add up to the counts of 
+   * the span. The last positions of a piece are also the first positions 
+   * of the next. Each piece has at least two windows: a piece with a
+   * single window would have the length of the window and get counted as 
+   * a whole span, so a last single window is added to the piece before.
+   *
+   * @param length the number of positions in the span
+   * @param windowSize the size of the sliding window, bigger than 0 and 
+   * smaller than the length
+   * @param windowsPerPiece the number of windows in each piece, the last
+   * piece can have fewer or one more
+   * @return for each piece the first position and the position after the 
+   * last one
+   */
+  public static List<int[]> splitWindows(int length, int windowSize, int windowsPerPiece) {
+    // the windows starting in from..to-1 are in positions from..to+windowSize-2
+    int nWindows = length - windowSize + 1;
+    int step = Math.max(2, windowsPerPiece);
+    List<int[]> ranges = new ArrayList<>();
+    int from = 0;
+    while (from < nWindows) {
+      int to = Math.min(nWindows, from + step);
+      if (nWindows - to == 1) {
+        to = nWindows;
+      }
+      ranges.add(new int[] { from, to + windowSize - 1 });
+      from = to;
+    }
+    return ranges;
+  }
+
+  private void countPositions(int[] ids, int length, int windowSize, boolean wholeSpan, 
+          boolean terms, boolean pairs) {
+    if (haveTwoTypes) {
+      if (wholeSpan) {
+        countWholeSpanTwoTypes(ids, terms, pairs);
+      } else {
+        countSlidingWindowsTwoTypes(ids, length, windowSize, terms, pairs);
+      }
+    } else {
+      if (wholeSpan) {
+        countWholeSpan(ids, terms, pairs);
+      } else {
+        countSlidingWindows(ids, length, windowSize, terms, pairs);
+      }
+    }
+  }
+
+  // Index the positions that can take part in pairs once per span, so that 
+  // the pair loops only iterate over those: with one type, positions1 
+  // contains the eligible positions, with two types, positions1 contains 
+  // the eligible positions of type 1 and positions2 all positions of type 2
+  // (the tf filter is only used for the first term).
+  private void findPositions(byte[] types, boolean[] eligible, int length) {
+    if (positions1.length < length) {
+      positions1 = new int[Math.max(length, positions1.length * 2)];
+      positions2 = new int[positions1.length];
+    }
+    nPositions1 = 0;
+    nPositions2 = 0;
+    for (int p = 0; p < length; p++) {
+      if (haveTwoTypes && types[p] != 1) {
+        positions2[nPositions2++] = p;
+      } else if (eligible[p]) {
+        positions1[nPositions1++] = p;
+      }
+    }
+  }
+
+  // Remove the positions with terms which are not pairable
+  private void restrictToPairable(int[] ids) {
+    nPositions1 = restrict(ids, positions1, nPositions1, pairable1);
+    if (haveTwoTypes) {
+      nPositions2 = restrict(ids, positions2, nPositions2, pairable2);
+    }
+  }
+
+  private static int restrict(int[] ids, int[] positions, int n, boolean[] pairable) {
+    int kept = 0;
+    for (int i = 0; i < n; i++) {
+      int id = ids[positions[i]];
+      if (id < pairable.length && pairable[id]) {
+        positions[kept++] = positions[i];
+      }
+    }
+    return kept;
+  }
+
+  private long pairKey(int id1, int id2) {
+    if (!haveTwoTypes && !orderIsSignificant && id2 < id1) {
+      return PairCounts.pairKey(id2, id1);
+    }
+    return PairCounts.pairKey(id1, id2);
+  }
+
+  private void newContext() {
+    pairsForContext.clear();
+    if (++contextGeneration == Integer.MAX_VALUE) {
+      term1sForContext.reset();
+      term2sForContext.reset();
+      contextGeneration = 1;
+    }
+  }
+
+  // The span is a single context: count each distinct term and pair in it 
+  // when it is first seen
+  private void countWholeSpan(int[] ids, boolean terms, boolean pairs) {
+    newContext();
+    if (pairs && maxPairsPerContext > 0) {
+      sampleWholeSpan(ids, terms);
+      return;
+    }
+    for (int a = 0; a < nPositions1; a++) {
+      int id1 = ids[positions1[a]];
+      if (terms && term1sForContext.mark(id1, contextGeneration)) {
+        term1counts.addTo(id1, 1);
+      }
+      if (!pairs) {
+        continue;
+      }
+      for (int b = a + 1; b < nPositions1; b++) {
+        int id2 = ids[positions1[b]];
+        // NOTE: for now we do not add pairs of identical words because of
+        // the difficulty to find a counts for chi2 by inclusion/exclusion
+        if (id1 != id2) {
+          long key = pairKey(id1, id2);
+          if (pairsForContext.add(key)) {
+            paircounts.addTo(key, 1);
+            if (countBothOrders && pairsForContext.contains(PairCounts.pairKey(id2, id1))) {
+              bothcounts.addTo(PairCounts.pairKey(Math.min(id1, id2), Math.max(id1, id2)), 1);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private void countWholeSpanTwoTypes(int[] ids, boolean terms, boolean pairs) {
+    newContext();
+    if (pairs && maxPairsPerContext > 0) {
+      sampleWholeSpan(ids, terms);
+      return;
+    }
+    for (int a = 0; a < nPositions1; a++) {
+      int id1 = ids[positions1[a]];
+      if (terms && term1sForContext.mark(id1, contextGeneration)) {
+        term1counts.addTo(id1, 1);
+      }
+      if (!pairs) {
+        continue;
+      }
+      for (int b = 0; b < nPositions2; b++) {
+        long key = PairCounts.pairKey(id1, ids[positions2[b]]);
+        if (pairsForContext.add(key)) {
+          paircounts.addTo(key, 1);
+        }
+      }
+    }
+    if (!terms) {
+      return;
+    }
+    for (int b = 0; b < nPositions2; b++) {
+      int id2 = ids[positions2[b]];
+      if (term2sForContext.mark(id2, contextGeneration)) {
+        term2counts.addTo(id2, 1);
+      }
+    }
+  }
+
+  // The span is a single context and the pairs are limited: find the
+  // distinct terms, count them if needed, and from them the number of 
+  // different pairs. If there are not many more pairs than the limit, they 
+  // are all enumerated into the reservoir, otherwise pairs of distinct 
+  // terms are drawn at random until the sample is full. With one type and
+  // a significant order, a drawn pair only exists if the first term occurs
+  // before the last occurrence of the second term, other draws are 
+  // rejected. Each pair exists at least in one order, so at least half of 
+  // the draws are accepted, and as the sample is at most half of the pairs,
+  // at most half of the accepted draws are repeats.
+  private void sampleWholeSpan(int[] ids, boolean terms) {
+    if (distinct1.length < nPositions1) {
+      int size = Math.max(nPositions1, distinct1.length * 2);
+      distinct1 = new int[size];
+      first1 = new int[size];
+      last1 = new int[size];
+    }
+    int k1 = 0;
+    for (int a = 0; a < nPositions1; a++) {
+      int id = ids[positions1[a]];
+      if (term1sForContext.mark(id, contextGeneration)) {
+        if (terms) {
+          term1counts.addTo(id, 1);
+        }
+        term1sForContext.setSlot(id, k1);
+        distinct1[k1] = id;
+        first1[k1++] = a;
+      }
+      last1[term1sForContext.slot(id)] = a;
+    }
+    int k2 = 0;
+    if (haveTwoTypes) {
+      if (distinct2.length < nPositions2) {
+        distinct2 = new int[Math.max(nPositions2, distinct2.length * 2)];
+      }
+      for (int b = 0; b < nPositions2; b++) {
+        int id = ids[positions2[b]];
+        if (term2sForContext.mark(id, contextGeneration)) {
+          if (terms) {
+            term2counts.addTo(id, 1);
+          }
+          distinct2[k2++] = id;
+        }
+      }
+    }
+    long nPairs;
+    if (haveTwoTypes) {
+      nPairs = (long) k1 * k2;
+    } else if (!orderIsSignificant) {
+      nPairs = (long) k1 * (k1 - 1) / 2;
+    } else {
+      // for each second term, the terms with a first position before its 
+      // last position, except itself; first1 is in ascending order
+      nPairs = 0;
+      for (int j = 0; j < k1; j++) {
+        int before = Arrays.binarySearch(first1, 0, k1, last1[j]);
+        nPairs += before < 0 ? -before - 1 : before;
+        if (first1[j] < last1[j]) {
+          nPairs--;
+        }
+      }
+    }
+    if (nPairs <= 2L * maxPairsPerContext) {
+      for (int i = 0; i < k1; i++) {
+        if (haveTwoTypes) {
+          for (int j = 0; j < k2; j++) {
+            samplePair(PairCounts.pairKey(distinct1[i], distinct2[j]));
+          }
+        } else {
+          for (int j = orderIsSignificant ? 0 : i + 1; j < k1; j++) {
+            if (j != i && first1[i] < last1[j]) {
+              samplePair(pairKey(distinct1[i], distinct1[j]));
+            }
+          }
+        }
+      }
+    } else {
+      sampledPairsSet.clear();
+      while (nSampledPairs < maxPairsPerContext) {
+        int i = random.nextInt(k1);
+        long key;
+        if (haveTwoTypes) {
+          key = PairCounts.pairKey(distinct1[i], distinct2[random.nextInt(k2)]);
+        } else {
+          int j = random.nextInt(k1 - 1);
+          if (j >= i) {
+            j++;
+          }
+          if (orderIsSignificant && first1[i] >= last1[j]) {
+            continue;
+          }
+          key = pairKey(distinct1[i], distinct1[j]);
+        }
+        if (sampledPairsSet.add(key)) {
+          sampledPairs[nSampledPairs++] = key;
+        }
+      }
+      nPairsInContext = nPairs;
+    }
+    finishSampledPairs();
+  }
+
+  // Reservoir sampling: the n-th pair of the context replaces a random 
+  // pair of the sample with probability maxPairsPerContext/n
+  private void samplePair(long key) {
+    nPairsInContext++;
+    if (nSampledPairs < maxPairsPerContext) {
+      sampledPairs[nSampledPairs++] = key;
+    } else {
+      long j = (long) (random.nextDouble() * nPairsInContext);
+      if (j < maxPairsPerContext) {
+        sampledPairs[(int) j] = key;
+      }
+    }
+  }
+
+  // Count the sampled pairs of the context, with both orders only if both
+  // are in the sample
+  private void finishSampledPairs() {
+    if (maxPairsPerContext <= 0) {
+      return;
+    }
+    contextPairs += nPairsInContext;
+    contextPairsKept += nSampledPairs;
+    if (countBothOrders) {
+      sampledPairsSet.clear();
+      for (int i = 0; i < nSampledPairs; i++) {
+        sampledPairsSet.add(sampledPairs[i]);
+      }
+    }
+    for (int i = 0; i < nSampledPairs; i++) {
+      long key = sampledPairs[i];
+      paircounts.addTo(key, 1);
+      if (countBothOrders) {
+        long reverse = reverseKey(key);
+        if (key < reverse && sampledPairsSet.contains(reverse)) {
+          bothcounts.addTo(key, 1);
+        }
+      }
+    }
+    nSampledPairs = 0;
+    nPairsInContext = 0;
+  }
+
+  // Sliding windows: instead of re-creating the sets of terms and pairs
+  // for every window position, we keep the number of occurrences of each
+  // term and pair in the window and update them when a position leaves and
+  // a position enters the window, which is O(W) instead of O(W^2) per step.
+  // The number of windows a term or pair is in is derived from the steps
+  // where it appears and disappears: when it appears in window k, -k is
+  // added to its count, when it disappears in window k, +k is added, and
+  // after the last window, the number of windows is added for all terms
+  // and pairs still present.
+  // The indexed positions inside the window are the ranges from1..to1-1 of 
+  // positions1 and from2..to2-1 of positions2.
+  private void countSlidingWindows(int[] ids, int length, int windowSize, boolean terms, boolean pairs) {
+    int lastWindow = length - windowSize;
+    int from1 = 0;
+    int to1 = 0;
+    for (int k = 0; k <= lastWindow; k++) {
+      // the position k-1 leaves the window
+      if (from1 < to1 && positions1[from1] == k - 1) {
+        int id = ids[positions1[from1++]];
+        if (terms) {
+          decrement(term1sInWindow, term1counts, id, k);
+        }
+        for (int b = from1; pairs && b < to1; b++) {
+          int id2 = ids[positions1[b]];
+          if (id != id2) {
+            decrementPair(pairKey(id, id2), k);
+          }
+        }
+      }
+      // the positions up to k+windowSize-1 enter the window, for all but
+      // the first window this is at most one
+      while (to1 < nPositions1 && positions1[to1] < k + windowSize) {
+        int id = ids[positions1[to1]];
+        if (terms) {
+          increment(term1sInWindow, term1counts, id, k);
+        }
+        for (int a = from1; pairs && a < to1; a++) {
+          int id1 = ids[positions1[a]];
+          if (id1 != id) {
+            incrementPair(pairKey(id1, id), k);
+          }
+        }
+        to1++;
+      }
+    }
+    finishSlidingWindows(lastWindow + 1);
+  }
+
+  private void countSlidingWindowsTwoTypes(int[] ids, int length, int windowSize, boolean terms, boolean pairs) {
+    int lastWindow = length - windowSize;
+    int from1 = 0;
+    int to1 = 0;
+    int from2 = 0;
+    int to2 = 0;
+    for (int k = 0; k <= lastWindow; k++) {
+      if (from1 < to1 && positions1[from1] == k - 1) {
+        int id = ids[positions1[from1++]];
+        if (terms) {
+          decrement(term1sInWindow, term1counts, id, k);
+        }
+        for (int b = from2; pairs && b < to2; b++) {
+          decrement(pairsInWindow, paircounts, PairCounts.pairKey(id, ids[positions2[b]]), k);
+        }
+      } else if (from2 < to2 && positions2[from2] == k - 1) {
+        int id = ids[positions2[from2++]];
+        if (terms) {
+          decrement(term2sInWindow, term2counts, id, k);
+        }
+        for (int a = from1; pairs && a < to1; a++) {
+          decrement(pairsInWindow, paircounts, PairCounts.pairKey(ids[positions1[a]], id), k);
+        }
+      }
+      while (to1 < nPositions1 && positions1[to1] < k + windowSize) {
+        int id = ids[positions1[to1++]];
+        if (terms) {
+          increment(term1sInWindow, term1counts, id, k);
+        }
+        for (int b = from2; pairs && b < to2; b++) {
+          increment(pairsInWindow, paircounts, PairCounts.pairKey(id, ids[positions2[b]]), k);
+        }
+      }
+      while (to2 < nPositions2 && positions2[to2] < k + windowSize) {
+        int id = ids[positions2[to2++]];
+        if (terms) {
+          increment(term2sInWindow, term2counts, id, k);
+        }
+        for (int a = from1; pairs && a < to1; a++) {
+          increment(pairsInWindow, paircounts, PairCounts.pairKey(ids[positions1[a]], id), k);
+        }
+      }
+    }
+    finishSlidingWindows(lastWindow + 1);
+  }
+
+  // With one type, a pair which enters or leaves the window while the
+  // pair in the other order is in it starts or ends a run of windows with 
+  // both orders, which get counted in the same way as the pairs.
+  private void incrementPair(long key, int window) {
+    if (increment(pairsInWindow, paircounts, key, window) && countBothOrders) {
+      long reverse = reverseKey(key);
+      if (pairsInWindow.containsKey(reverse)) {
+        bothcounts.addTo(Math.min(key, reverse), -window);
+      }
+    }
+  }
+
+  private void decrementPair(long key, int window) {
+    if (decrement(pairsInWindow, paircounts, key, window) && countBothOrders) {
+      long reverse = reverseKey(key);
+      if (pairsInWindow.containsKey(reverse)) {
+        bothcounts.addTo(Math.min(key, reverse), window);
+      }
+    }
+  }
+
+  private static long reverseKey(long key) {
+    return PairCounts.pairKey(PairCounts.term2(key), PairCounts.term1(key));
+  }
+
+  private void finishSlidingWindows(long nWindows) {
+    if (countBothOrders) {
+      pairsInWindow.forEach((key, mult) -> {
+        long reverse = reverseKey(key);
+        if (key < reverse && pairsInWindow.containsKey(reverse)) {
+          bothcounts.addTo(key, nWindows);
+        }
+      });
+    }
+    flush(term1sInWindow, term1counts, nWindows);
+    flush(term2sInWindow, term2counts, nWindows);
+    flush(pairsInWindow, paircounts, nWindows);
+  }
+
+  private static void flush(LongLongHashMap inWindow, LongLongHashMap counts, long nWindows) {
+    inWindow.forEach((key, mult) -> counts.addTo(key, nWindows));
+    inWindow.clear();
+  }
+
+  // Returns true if the key entered the window
+  private static boolean increment(LongLongHashMap inWindow, LongLongHashMap counts, long key, int window) {
+    if (inWindow.addTo(key, 1) == 1) {
+      counts.addTo(key, -window);
+      return true;
+    }
+    return false;
+  }
+
+  // Returns true if the key left the window
+  private static boolean decrement(LongLongHashMap inWindow, LongLongHashMap counts, long key, int window) {
+    if (inWindow.addTo(key, -1) == 0) {
+      inWindow.remove(key);
+      counts.addTo(key, window);
+      return true;
+    }
+    return false;
+  }
+
+  // The generation of the context in which each term id has last been seen
+  // and optionally a slot for each term seen in the current context
+  private static class TermStamps {
+    private int[] stamps = new int[1024];
+    private int[] slots = null;
+
+    // Mark the term as seen in the context and return true if it has not
+    // been seen in the context before
+    boolean mark(int id, int generation) {
+      if (id >= stamps.length) {
+        stamps = Arrays.copyOf(stamps, Math.max(id + 1, stamps.length * 2));
+        if (slots != null) {
+          slots = Arrays.copyOf(slots, stamps.length);
+        }
+      }
+      if (stamps[id] == generation) {
+        return false;
+      }
+      stamps[id] = generation;
+      return true;
+    }
+
+    // Set the slot of a term after marking it
+    void setSlot(int id, int slot) {
+      if (slots == null) {
+        slots = new int[stamps.length];
+      }
+      slots[id] = slot;
+    }
+
+    int slot(int id) {
+      return slots[id];
+    }
+
+    void reset() {
+      Arrays.fill(stamps, 0);
+    }
+  }
+}
@@ -21,22 +21,42 @@ package gate.plugin.corpusstats;
 
 import gate.util.Files;
 import gate.util.GateRuntimeException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import org.apache.commons.math3.distribution.TDistribution;
-import org.apache.commons.math3.distribution.ChiSquaredDistribution;
 
 /**
  * Class representing pairwise collocation statistics. Also has methods for
@@ -64,12 +84,18 @@ public class CorpusStatsCollocationsData implements Serializable {
           = new ConcurrentHashMap<>(); // used to estimate p(t1)
   public ConcurrentHashMap<String, LongAdder> countsTerms2
           = new ConcurrentHashMap<>(); // used to estimate p(t2) if different types
-  public ConcurrentHashMap<String, LongAdder> countsPairs
-          = new ConcurrentHashMap<>(); // used to estimate p(t1,t2)
+  // All terms of both types get an int id from the same dictionary, 
+  // pairs are counted using keys packed from the two term ids (see PairCounts).
+  public TermDictionary terms = new TermDictionary();
+  public PairCounts countsPairs
+          = new PairCounts(); // used to estimate p(t1,t2)
   // total number of single term occurrences, used to estimate p(t) 
   public LongAdder totalContexts = new LongAdder();
   
   public boolean haveTwoTypes = false;
+  // If the order is not significant and we have just one type, the
+  // pair key is always built with the smaller id first
+  public boolean orderIsSignificant = false;
 
   // We do not need this but still good to know the number of documents
   public LongAdder nDocs = new LongAdder();
@@ -82,6 +108,37 @@ public class CorpusStatsCollocationsData implements Serializable {
   public long minContexts_p = 1;
   
   public double laplaceCoefficient = 0.0;
+  // the number of threads to use for calculating the stats when saving,
+  // if 0, the number of available processors
+  public int saveThreads = 0;
+  // if bigger than 0, only save the topK pairs with the highest topKMetric
+  public int topK = 0;
+  // the name of the metric used to select the best pairs, one of PairStatsBatch.METRICS
+  public String topKMetric = "npmi";
+  // if bigger than 0, also save the best topKPerTerm1 pairs for each term1
+  public int topKPerTerm1 = 0;
+  // For the two-pass mode: which terms satisfy the minimum contexts and
+  // can be part of a pair, indexed by term id, null if all terms can be
+  public transient boolean[] pairable1ById = null;
+  public transient boolean[] pairable2ById = null;
+  // For the two-pass mode within one run: the spans spilled by each 
+  // duplicate in the first pass, by duplicate id
+  public transient ConcurrentHashMap<Integer, SpanSpill> spills = null;
+  // If the order is significant and there is one type, the statistics for
+  // unordered pairs can be derived when saving: if not null, the number of
+  // contexts which contain a pair in both orders, with the smaller id first
+  public transient PairCounts countsPairsBothOrders = null;
+  // Sampling: the threshold for the subsampling of frequent terms, 0 if 
+  // not used, and the maximum number of pairs counted per context, 0 for
+  // no limit. If used, the number of term occurrences in the spans and how
+  // many were kept, and the number of pairs in the limited contexts and 
+  // how many were counted, get saved with the sums.
+  public double subsamplingThreshold = 0.0;
+  public int maxPairsPerContext = 0;
+  public LongAdder nTokens = new LongAdder();
+  public LongAdder nTokensKept = new LongAdder();
+  public LongAdder nContextPairs = new LongAdder();
+  public LongAdder nContextPairsKept = new LongAdder();
   public double nPairsD;
   public double nTerms1D;
   public double nTerms2D;
@@ -101,37 +158,42 @@ public class CorpusStatsCollocationsData implements Serializable {
         tryOpen = UrlUtils.exists(dataUrl);
       }
       if (tryOpen) {
-        try (InputStream is = dataUrl.openStream();
-                GZIPInputStream gis = new GZIPInputStream(is);
-                ObjectInputStream ois = new ObjectInputStream(gis)) {
-          Object obj = ois.readObject();
-          if (obj instanceof CorpusStatsCollocationsData) {
-            CorpusStatsCollocationsData other = (CorpusStatsCollocationsData) obj;
-            countsTerms1 = other.countsTerms1;
-            countsTerms1 = other.countsTerms1;            
-            countsPairs = other.countsPairs;
-            
-            if(haveTwoTypes != other.haveTwoTypes || 
-                    minContexts_p != other.minContexts_p ||
-                    minContexts_t1 == other.minContexts_t1 ||
-                    minContexts_t2 == other.minContexts_t2) {
-              throw new GateRuntimeException("Loaded data file has different settings");
-            }
-            // NOTE: if the loaded stats file has a different case sensitivity setting, 
-            // we throw an error, this does not make sense to have!
-            if (isCaseSensitive != other.isCaseSensitive) {
-              throw new GateRuntimeException("Data file loaded has a different caseSensitivy setting");
-            }
-            if (!ccLocale.equals(other.ccLocale)) {
-              throw new GateRuntimeException("Data file loaded has a different case conversion language");
+        boolean isStore;
+        try (InputStream is = dataUrl.openStream()) {
+          isStore = CollocationStore.isStore(is);
+        } catch (IOException ex) {
+          throw new GateRuntimeException("Error when trying to restore data from " + dataUrl, ex);
+        }
+        if (isStore) {
+          if (!UrlUtils.isFile(dataUrl)) {
+            throw new GateRuntimeException("A collocation store can only be loaded from a file: " + dataUrl);
+          }
+          CollocationStore store = CollocationStore.open(Files.fileFromURL(dataUrl));
+          checkSettings(store.haveTwoTypes(), store.orderIsSignificant(),
+                  store.isCaseSensitive(), store.getCaseConversionLocale());
+          store.addTo(this);
+        } else {
+          // the old format, a serialized instance of this class
+          try (InputStream is = dataUrl.openStream();
+                  GZIPInputStream gis = new GZIPInputStream(is);
+                  ObjectInputStream ois = new ObjectInputStream(gis)) {
+            Object obj = ois.readObject();
+            if (obj instanceof CorpusStatsCollocationsData) {
+              CorpusStatsCollocationsData other = (CorpusStatsCollocationsData) obj;
+              checkSettings(other.haveTwoTypes, other.orderIsSignificant,
+                      other.isCaseSensitive, other.ccLocale);
+              addAll(other);
             }
+          } catch (IOException | ClassNotFoundException ex) {
+            throw new GateRuntimeException("Error when trying to restore data from " + dataUrl, ex);
           }
-        } catch (Exception ex) {
-          throw new GateRuntimeException("Error when trying to restore data from " + dataUrl, ex);
         }
-
+        haveLoaded = true;
       }
     }
+    if (haveLoaded) {
+      return;
+    }
     // If we arrive here we did not load a data file, so try loading from
     // the TSV files.
     // We do not know the case sensitivity setting of the files we load,
@@ -141,6 +203,364 @@ public class CorpusStatsCollocationsData implements Serializable {
     // !!!!TODO !!!! TODO !!!! TODO
   }
 
+  // The minimum context settings are not checked since the loaded counts
+  // are the raw counts which do not depend on them.
+  private void checkSettings(boolean otherHaveTwoTypes, boolean otherOrderIsSignificant,
+          boolean otherIsCaseSensitive, Locale otherCcLocale) {
+    if (haveTwoTypes != otherHaveTwoTypes || orderIsSignificant != otherOrderIsSignificant) {
+      throw new GateRuntimeException("Loaded data file has different settings");
+    }
+    // NOTE: if the loaded stats file has a different case sensitivity setting, 
+    // we throw an error, this does not make sense to have!
+    if (isCaseSensitive != otherIsCaseSensitive) {
+      throw new GateRuntimeException("Data file loaded has a different caseSensitivy setting");
+    }
+    if (!ccLocale.equals(otherCcLocale)) {
+      throw new GateRuntimeException("Data file loaded has a different case conversion language");
+    }
+  }
+
+  // Add all counts of the other data, which has its own term ids
+  private void addAll(CorpusStatsCollocationsData other) {
+    int[] idByOtherId = new int[other.terms.size()];
+    for (int id = 0; id < idByOtherId.length; id++) {
+      idByOtherId[id] = terms.intern(other.terms.getTerm(id));
+    }
+    other.countsTerms1.forEach((term, count) -> 
+            countsTerms1.computeIfAbsent(term, t -> new LongAdder()).add(count.sum()));
+    other.countsTerms2.forEach((term, count) -> 
+            countsTerms2.computeIfAbsent(term, t -> new LongAdder()).add(count.sum()));
+    LongLongHashMap local = new LongLongHashMap();
+    other.countsPairs.forEach((key, count) -> 
+            local.addTo(pairKey(idByOtherId[PairCounts.term1(key)], idByOtherId[PairCounts.term2(key)]), count));
+    countsPairs.addAll(local);
+    totalContexts.add(other.totalContexts.sum());
+    nDocs.add(other.nDocs.sum());
+  }
+
+  // The version of the format of the first pass file
+  private static final int FIRST_PASS_VERSION = 1;
+
+  /**
+   * Save the counts of the first pass of the two-pass mode. 
+   * 
+   * This saves the number of contexts and documents and the term counts, 
+   * together with the settings which influence them, so that a later
+   * run over the same corpus can skip the first pass.
+   * 
+   * @param url where to save the file, gzip-compressed
+   * @param windowSize the sliding window size used for counting
+   */
+  public void saveFirstPass(URL url, int windowSize) {
+    File file = gate.util.Files.fileFromURL(url);
+    System.err.println("Storing first pass counts to file " + file);
+    try (
+            FileOutputStream fos = new FileOutputStream(file);
+            GZIPOutputStream gos = new GZIPOutputStream(fos);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(gos))) {
+      dos.writeInt(FIRST_PASS_VERSION);
+      dos.writeBoolean(haveTwoTypes);
+      dos.writeBoolean(isCaseSensitive);
+      dos.writeUTF(ccLocale.toLanguageTag());
+      dos.writeInt(windowSize);
+      dos.writeLong(totalContexts.sum());
+      dos.writeLong(nDocs.sum());
+      writeTermCounts(dos, countsTerms1);
+      if (haveTwoTypes) {
+        writeTermCounts(dos, countsTerms2);
+      }
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not save first pass counts to " + file, ex);
+    }
+  }
+
+  private static void writeTermCounts(DataOutputStream dos, Map<String, LongAdder> counts) throws IOException {
+    dos.writeInt(counts.size());
+    for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+      dos.writeUTF(entry.getKey());
+      dos.writeLong(entry.getValue().sum());
+    }
+  }
+
+  /**
+   * Load the counts of a first pass and find the pairable terms from them.
+   * 
+   * Only the terms which satisfy the minimum contexts get added to the 
+   * term dictionary. The counts of the current run are not changed, so the
+   * documents still get counted as usual, only the pairs are restricted to
+   * the pairable terms. 
+   * 
+   * @param url the file saved by saveFirstPass
+   * @param windowSize the sliding window size used for counting, must be
+   * the same as for the first pass
+   */
+  public void loadFirstPass(URL url, int windowSize) {
+    try (
+            InputStream is = url.openStream();
+            GZIPInputStream gis = new GZIPInputStream(is);
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(gis))) {
+      int version = dis.readInt();
+      if (version != FIRST_PASS_VERSION) {
+        throw new GateRuntimeException("Not a supported first pass file version: " + version);
+      }
+      if (dis.readBoolean() != haveTwoTypes || dis.readBoolean() != isCaseSensitive ||
+              !dis.readUTF().equals(ccLocale.toLanguageTag()) || dis.readInt() != windowSize) {
+        throw new GateRuntimeException("Loaded first pass file has different settings");
+      }
+      long contexts = dis.readLong();
+      long docs = dis.readLong();
+      if (haveTwoTypes) {
+        List<Integer> ids1 = readPairableTerms(dis, minContexts_t1);
+        List<Integer> ids2 = readPairableTerms(dis, minContexts_t2);
+        pairable1ById = pairableById(ids1);
+        pairable2ById = pairableById(ids2);
+      } else {
+        pairable1ById = pairableById(readPairableTerms(dis, Math.min(minContexts_t1, minContexts_t2)));
+        pairable2ById = pairable1ById;
+      }
+      System.err.println("INFO: loaded first pass counts for " + docs + " documents and " + 
+              contexts + " contexts from " + url);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Error when trying to load first pass counts from " + url, ex);
+    }
+  }
+
+  // Read the term counts and intern the terms with at least minContexts, return their ids
+  private List<Integer> readPairableTerms(DataInputStream dis, long minContexts) throws IOException {
+    int n = dis.readInt();
+    List<Integer> ret = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      String term = dis.readUTF();
+      if (dis.readLong() >= minContexts) {
+        ret.add(terms.intern(term));
+      }
+    }
+    return ret;
+  }
+
+  private boolean[] pairableById(List<Integer> ids) {
+    boolean[] ret = new boolean[terms.size()];
+    for (int id : ids) {
+      ret[id] = true;
+    }
+    return ret;
+  }
+
+  /**
+   * Find the pairable terms from the term counts of the current run. 
+   * 
+   * A term is pairable if it satisfies the minimum contexts for its type,
+   * with just one type, a term can be the first or the second term of a 
+   * pair, so the smaller of the two minimums is used. Pairs of 
+   * non-pairable terms would not get saved anyway.
+   */
+  public void findPairableTerms() {
+    if (haveTwoTypes) {
+      pairable1ById = pairableById(countsTerms1, minContexts_t1);
+      pairable2ById = pairableById(countsTerms2, minContexts_t2);
+    } else {
+      pairable1ById = pairableById(countsTerms1, Math.min(minContexts_t1, minContexts_t2));
+      pairable2ById = pairable1ById;
+    }
+  }
+
+  private boolean[] pairableById(Map<String, LongAdder> counts, long minContexts) {
+    List<Integer> ids = new ArrayList<>();
+    for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+      if (entry.getValue().sum() >= minContexts) {
+        ids.add(terms.intern(entry.getKey()));
+      }
+    }
+    return pairableById(ids);
+  }
+
+  // The number of local pair counts after which the counts of a replay get
+  // added to the global counts
+  private static final int MAX_LOCAL_PAIRS = 1 << 18;
+
+  /**
+   * The second pass of the two-pass mode within one run: count the pairs 
+   * of pairable terms in the spans spilled by the duplicates. 
+   * 
+   * The pairable terms get found from the term counts first, then the 
+   * spills get replayed in parallel, each with its own counter. The spills
+   * are kept, so that the same spills can be replayed for another window 
+   * size, deleteSpills must be called when they are not needed any more.
+   * 
+   * @param windowSize the sliding window size used in the first pass
+   */
+  public void countPairsFromSpills(int windowSize) {
+    findPairableTerms();
+    int nThreads = saveThreads > 0 ? saveThreads : Runtime.getRuntime().availableProcessors();
+    ForkJoinPool pool = new ForkJoinPool(nThreads);
+    try {
+      List<Future<?>> replays = new ArrayList<>();
+      for (Map.Entry<Integer, SpanSpill> entry : spills.entrySet()) {
+        SpanSpill spill = entry.getValue();
+        // the sample of pairs depends on the duplicate which spilled the spans
+        long seed = LongLongHashMap.hash(entry.getKey());
+        replays.add(pool.submit(() -> {
+          CollocationsCounter counter = new CollocationsCounter(haveTwoTypes, orderIsSignificant);
+          counter.setCounting(false, true);
+          counter.setCountBothOrders(countsPairsBothOrders != null);
+          counter.setMaxPairsPerContext(maxPairsPerContext, new Random(seed));
+          counter.setPairable(pairable1ById, pairable2ById);
+          spill.replay((ids, types, eligible, length) -> {
+            counter.countSpan(ids, types, eligible, length, windowSize);
+            if (counter.paircounts.size() > MAX_LOCAL_PAIRS) {
+              addPairCounts(counter);
+              counter.reset();
+            }
+          });
+          addPairCounts(counter);
+        }));
+      }
+      for (Future<?> replay : replays) {
+        replay.get();
+      }
+    } catch (Exception ex) {
+      throw new GateRuntimeException("Could not count the pairs from the spilled spans", ex);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  // The approximate number of bytes for the count of a term, the term 
+  // string is the one from the dictionary
+  private static final int BYTES_PER_TERM_COUNT = 64;
+
+  /**
+   * The number of pairs in memory, found without locking, for monitoring.
+   * @return number of pairs
+   */
+  public long getPairsInMemory() {
+    return countsPairs.getSizeInMemory() + 
+            (countsPairsBothOrders == null ? 0 : countsPairsBothOrders.getSizeInMemory());
+  }
+
+  /**
+   * Estimate the heap memory used by the counts, without locking, for 
+   * monitoring.
+   * @param withTerms if the term dictionary should be included, which may
+   * be shared with other data
+   * @return number of bytes
+   */
+  public long estimateMemory(boolean withTerms) {
+    long ret = (long) (countsTerms1.size() + countsTerms2.size()) * BYTES_PER_TERM_COUNT + 
+            getPairsInMemory() * PairCounts.BYTES_PER_PAIR;
+    if (withTerms) {
+      ret += terms.estimateMemory();
+    }
+    return ret;
+  }
+
+  /**
+   * Add the pair counts of a counter.
+   * @param counter the counter
+   */
+  public void addPairCounts(CollocationsCounter counter) {
+    countsPairs.addAll(counter.paircounts);
+    if (countsPairsBothOrders != null) {
+      countsPairsBothOrders.addAll(counter.bothcounts);
+    }
+    nContextPairs.add(counter.contextPairs);
+    nContextPairsKept.add(counter.contextPairsKept);
+  }
+
+  /**
+   * Derive the data for unordered pairs from the data for ordered pairs.
+   * 
+   * This needs the counts of the contexts with pairs in both orders in
+   * countsPairsBothOrders. The count of the unordered pair {a,b} is the 
+   * count of (a,b) plus the count of (b,a) minus the count of the contexts
+   * which contain both. The term counts, contexts and the term dictionary
+   * are the same and get shared with the returned data.
+   * 
+   * @return the data for unordered pairs
+   */
+  public CorpusStatsCollocationsData foldOrders() {
+    if (countsPairsBothOrders == null || haveTwoTypes || !orderIsSignificant) {
+      throw new GateRuntimeException("Unordered pairs can only be derived from counts of ordered pairs of one type");
+    }
+    CorpusStatsCollocationsData ret = new CorpusStatsCollocationsData();
+    ret.countsTerms1 = countsTerms1;
+    ret.countsTerms2 = countsTerms2;
+    ret.terms = terms;
+    ret.totalContexts = totalContexts;
+    ret.nDocs = nDocs;
+    ret.haveTwoTypes = false;
+    ret.orderIsSignificant = false;
+    ret.isCaseSensitive = isCaseSensitive;
+    ret.ccLocale = ccLocale;
+    ret.minContexts_t1 = minContexts_t1;
+    ret.minContexts_t2 = minContexts_t2;
+    ret.minContexts_p = minContexts_p;
+    ret.laplaceCoefficient = laplaceCoefficient;
+    ret.saveThreads = saveThreads;
+    ret.topK = topK;
+    ret.topKMetric = topKMetric;
+    ret.topKPerTerm1 = topKPerTerm1;
+    ret.subsamplingThreshold = subsamplingThreshold;
+    ret.maxPairsPerContext = maxPairsPerContext;
+    ret.nTokens = nTokens;
+    ret.nTokensKept = nTokensKept;
+    ret.nContextPairs = nContextPairs;
+    ret.nContextPairsKept = nContextPairsKept;
+    if (countsPairs.getMemoryBudget() > 0) {
+      ret.countsPairs.setMemoryBudget(countsPairs.getMemoryBudget());
+    }
+    LongLongHashMap local = new LongLongHashMap(1024);
+    for (int p = 0; p < countsPairs.getNumberOfPartitions(); p++) {
+      countsPairs.forEachInPartition(p, (key, count) -> {
+        local.addTo(ret.pairKey(PairCounts.term1(key), PairCounts.term2(key)), count);
+        if (local.size() > MAX_LOCAL_PAIRS) {
+          ret.countsPairs.addAll(local);
+          local.clear();
+        }
+      });
+    }
+    countsPairsBothOrders.forEach((key, count) -> local.addTo(key, -count));
+    ret.countsPairs.addAll(local);
+    return ret;
+  }
+
+  /**
+   * Remove the files of all spills, if there are any.
+   */
+  public void deleteSpills() {
+    if (spills != null) {
+      for (SpanSpill spill : spills.values()) {
+        spill.delete();
+      }
+      spills = null;
+    }
+  }
+
+  /**
+   * Get the key for the pair of two term ids.
+   * If the order of the pair is not significant and there is only one type,
+   * both orders of the ids give the same key.
+   * @param id1 id of the first term
+   * @param id2 id of the second term
+   * @return key
+   */
+  public long pairKey(int id1, int id2) {
+    if (!haveTwoTypes && !orderIsSignificant && id2 < id1) {
+      return PairCounts.pairKey(id2, id1);
+    }
+    return PairCounts.pairKey(id1, id2);
+  }
+
+  /**
+   * Add to the count of a pair of term strings.
+   * @param term1 the first term
+   * @param term2 the second term
+   * @param by the count to add
+   */
+  public void addPairCount(String term1, String term2, long by) {
+    countsPairs.add(pairKey(terms.intern(term1), terms.intern(term2)), by);
+  }
+
   private final double LOG2 = Math.log(2.0);
 
   private double _log2(long value) {
@@ -163,14 +583,58 @@ public class CorpusStatsCollocationsData implements Serializable {
   private long N = 0L;
   private double Nfloat;
   private TDistribution tdist;
-  private ChiSquaredDistribution chdist = new ChiSquaredDistribution(1);
+
+  // The p-values only depend on the counts of the pair and the two terms,
+  // and in Zipfian data most pairs have the same few small count triples,
+  // so the p-values for triples of small counts get memoized. Each thread
+  // which calculates stats has its own direct-mapped memo, an entry just 
+  // gets replaced if another triple maps to the same slot.
+  private static final int MEMO_BITS = 16;
+  private static final long MEMO_MAX_COUNT = (1L << 21) - 1;
+  private transient ThreadLocal<PValueMemo> pValueMemo;
+
+  private static class PValueMemo {
+    final long[] keys = new long[1 << MEMO_BITS];
+    final double[] chi2_p = new double[1 << MEMO_BITS];
+    final double[] student_t_p = new double[1 << MEMO_BITS];
+
+    PValueMemo() {
+      Arrays.fill(keys, -1L);
+    }
+  }
+
+  // The key for a triple of counts, or -1 if one of the counts is too big
+  private static long memoKey(long pairCount, long term1Count, long term2Count) {
+    if (pairCount > MEMO_MAX_COUNT || term1Count > MEMO_MAX_COUNT || term2Count > MEMO_MAX_COUNT) {
+      return -1L;
+    }
+    return (pairCount << 42) | (term1Count << 21) | term2Count;
+  }
 
   /**
    * Initialise the global values for calculating statistics. This must be
    * called once before calcStats can be used repeatedly.
    */
   public void initStats() {
-    N = totalContexts.sum();
+    initStats(totalContexts.sum(), countsPairs.size(), countsTerms1.size(), 
+            haveTwoTypes ? countsTerms2.size() : countsTerms1.size());
+    termCounts1ById = termCountsById(countsTerms1);
+    termCounts2ById = haveTwoTypes ? termCountsById(countsTerms2) : termCounts1ById;
+  }
+
+  /**
+   * Initialise the global values for calculating statistics from the 
+   * given totals instead of the counts, e.g. for the totals of a 
+   * CollocationStore. After this, only the calcStats methods which get 
+   * the counts passed can be used.
+   * @param nContexts the number of contexts
+   * @param nPairs the number of different pairs
+   * @param nTerms1 the number of different terms of type 1
+   * @param nTerms2 the number of different terms of type 2, with only one 
+   * type the same as nTerms1
+   */
+  public void initStats(long nContexts, double nPairs, double nTerms1, double nTerms2) {
+    N = nContexts;
     Nfloat = N;
 
     if (N > 1) {
@@ -178,17 +642,31 @@ public class CorpusStatsCollocationsData implements Serializable {
     } else {
       System.err.println("WARNING: only one context, cannot calculate student-t p-value, setting to 0");
     }
-    nPairsD = countsPairs.size();
-    nTerms1D = countsTerms1.size();
-    if(haveTwoTypes) {
-      nTerms2D = countsTerms2.size();
-    } else {
-      nTerms2D = nTerms1D;
+    nPairsD = nPairs;
+    nTerms1D = nTerms1;
+    nTerms2D = nTerms2;
+    pValueMemo = ThreadLocal.withInitial(PValueMemo::new);
+    if(laplaceCoefficient != 0.0) {
+      System.err.println("DEBUG: !!!!!!!!!!!!!! Using Laplace Smoothing, c="+laplaceCoefficient);
     }
     laplacePairsN = Nfloat + laplaceCoefficient * nPairsD;
     laplaceTerms1N = Nfloat + laplaceCoefficient * nTerms1D;
     laplaceTerms2N = Nfloat + laplaceCoefficient * nTerms2D;
-    
+  }
+
+  // The term counts indexed by term id, these get initialized by initStats()
+  protected long[] termCounts1ById;
+  protected long[] termCounts2ById;
+
+  private long[] termCountsById(Map<String, LongAdder> counts) {
+    for (String term : counts.keySet()) {
+      terms.intern(term);
+    }
+    long[] ret = new long[terms.size()];
+    for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+      ret[terms.getId(entry.getKey())] = entry.getValue().sum();
+    }
+    return ret;
   }
 
 
@@ -200,97 +678,668 @@ public class CorpusStatsCollocationsData implements Serializable {
    * @return TODO
    */
   public PairStats calcStats(String pair) {
-    String[] terms = pair.split("\\t");
-    long pairCount = countsPairs.get(pair).sum();
-    long term1Count = countsTerms1.get(terms[0]).sum();
+    int tab = pair.indexOf('\t');
+    String term1 = pair.substring(0, tab);
+    String term2 = pair.substring(tab + 1);
+    long pairCount = countsPairs.get(pairKey(terms.getId(term1), terms.getId(term2)));
+    long term1Count = countsTerms1.get(term1).sum();
     long term2Count = haveTwoTypes ? 
-            countsTerms2.get(terms[1]).sum() :
-            countsTerms1.get(terms[1]).sum();
+            countsTerms2.get(term2).sum() :
+            countsTerms1.get(term2).sum();
     //System.out.println("DEBUG: retrieve counts for pair "+pair+"t0="+terms[0]+" t1="+terms[1]+
     //        "got: "+pairCount+"/"+term1Count+"/"+term2Count);              
     return calcStats_worker(pairCount, term1Count, term2Count);
   }
   
   public PairStats calcStats_worker(long pairCount, long term1Count, long term2Count) {
+    PairStatsBatch batch = new PairStatsBatch(1);
+    batch.add(pairCount, term1Count, term2Count);
+    calcStats(batch);
+    return batch.getPairStats(0);
+  }
 
-    if (N == 0L) {
+  /**
+   * Calculate the statistics for all pairs in the batch from their counts.
+   * 
+   * @param batch the batch, the counts for the pairs must have been added
+   */
+  public void calcStats(PairStatsBatch batch) {
+    if (N == 0L || pValueMemo == null) {
       initStats();
     }
-    PairStats ret = new PairStats();
-    ret.pairCount = pairCount;
-    ret.term1Count = term1Count;
-    ret.term2Count = term2Count;
+    int n = batch.size();
+    long[] pairCount = batch.pairCount;
+    long[] term1Count = batch.term1Count;
+    long[] term2Count = batch.term2Count;
+    double[] p_a_b = batch.p_a_b;
+    double[] p_a = batch.p_a;
+    double[] p_b = batch.p_b;
+
     // probability of the pair a,b is the number of contexts it appears in
     // divided by the total number of contexts
     if(laplaceCoefficient != 0.0) {
-      System.err.println("DEBUG: !!!!!!!!!!!!!! Using Laplace Smoothing, c="+laplaceCoefficient);
-      ret.p_a_b = (ret.pairCount + laplaceCoefficient) / laplacePairsN;
-      ret.p_a = (ret.term1Count + laplaceCoefficient) / laplaceTerms1N;
-      ret.p_b = (ret.term2Count + laplaceCoefficient) / laplaceTerms2N;      
+      for (int i = 0; i < n; i++) {
+        p_a_b[i] = (pairCount[i] + laplaceCoefficient) / laplacePairsN;
+        p_a[i] = (term1Count[i] + laplaceCoefficient) / laplaceTerms1N;
+        p_b[i] = (term2Count[i] + laplaceCoefficient) / laplaceTerms2N;
+      }
     } else {
-      ret.p_a_b = ret.pairCount / Nfloat;
-      ret.p_a = ret.term1Count / Nfloat;
-      ret.p_b = ret.term2Count / Nfloat;
+      for (int i = 0; i < n; i++) {
+        p_a_b[i] = pairCount[i] / Nfloat;
+        p_a[i] = term1Count[i] / Nfloat;
+        p_b[i] = term2Count[i] / Nfloat;
+      }
     }
 
     // TODO: skip this if we do not have a pair where the minimum
     // frequency of both terms is satisfied!
     // 1) calculate ordinary PMI
-    ret.pmi = _log2(ret.pairCount) + _log2(N) - _log2(ret.term1Count) - _log2(ret.term2Count);
-
     // 2) calculate normalized PMI
     // if pairCount is 1 then log of paircount is 0 so we would get -Inf or +inf
-    // here. Instead, we set this to 0.0 
-    ret.npmi = 0.0;
-    if (ret.pairCount == 1L) {
-      ret.npmi = -1.0;
-    } else {
-      ret.npmi = ret.pmi / -_log2(ret.p_a_b);
+    // here. Instead, we set this to -1.0 
+    double log2N = _log2(N);
+    for (int i = 0; i < n; i++) {
+      double pmi = _log2(pairCount[i]) + log2N - _log2(term1Count[i]) - _log2(term2Count[i]);
+      batch.pmi[i] = pmi;
+      if (pairCount[i] == 1L) {
+        batch.npmi[i] = -1.0;
+      } else {
+        batch.npmi[i] = pmi / -_log2(p_a_b[i]);
+      }
+      batch.wpmi[i] = p_a_b[i] * pmi;
     }
-    ret.wpmi = ret.p_a_b * ret.pmi;
 
     // 3) person's chi-squared 
-    // prob of b occuring in a context that does not have a is number of 
-    // times b occurs minus the times b occurs with a, then divided by ...
-    double c_a_b = ret.pairCount;
-    double c_na_b = (ret.term2Count - ret.pairCount);
-    // mirror image for a where b does not occur
-    double c_a_nb = (ret.term1Count - ret.pairCount);
-    // neither a nor b: total contexts minus where a occurs, minus where
-    // be occurs plus the ones where a and b occur together 
-    double c_na_nb = (Nfloat - ret.term1Count - ret.term2Count + ret.pairCount);
-    ret.p_na_b = (ret.term2Count - ret.pairCount) / Nfloat;
-    ret.p_a_nb = (ret.term1Count - ret.pairCount) / Nfloat;
-    ret.p_na_nb = (Nfloat - ret.term1Count - ret.term2Count + ret.pairCount) / Nfloat;
+    // 4) student t
+    for (int i = 0; i < n; i++) {
+      // prob of b occuring in a context that does not have a is number of 
+      // times b occurs minus the times b occurs with a, then divided by ...
+      double c_a_b = pairCount[i];
+      double c_na_b = (term2Count[i] - pairCount[i]);
+      // mirror image for a where b does not occur
+      double c_a_nb = (term1Count[i] - pairCount[i]);
+      // neither a nor b: total contexts minus where a occurs, minus where
+      // be occurs plus the ones where a and b occur together 
+      double c_na_nb = (Nfloat - term1Count[i] - term2Count[i] + pairCount[i]);
+      batch.p_na_b[i] = c_na_b / Nfloat;
+      batch.p_a_nb[i] = c_a_nb / Nfloat;
+      batch.p_na_nb[i] = c_na_nb / Nfloat;
+      // The following should work with both probabilities and counts, for now
+      // we use counts because maybe faster?
+      // !!! Also: this works with laplace smoothing for PMI switched on, but we cannot
+      // make laplace smoothing work with chi-squared because we cannot easily calculate
+      // the "number of values" needed.
+      double tmp = (c_a_b * c_na_nb - c_a_nb * c_na_b);
+      tmp = Nfloat * tmp * tmp;
+      batch.chi2[i] = tmp
+              / ((c_a_b + c_a_nb) * (c_a_b + c_na_b) * (c_a_nb + c_na_nb) * (c_na_b + c_na_nb));
+
+      double expected = p_a[i] * p_b[i];  // expected p if indep
+      batch.p_a_b_expected[i] = expected;
+      double samplevariance = p_a_b[i] * (1.0 - p_a_b[i]);
+      batch.student_t[i] = (p_a_b[i] - expected) / Math.sqrt(samplevariance / Nfloat);
+    }
+
+    // 5) the p-values, from the memo if possible
+    PValueMemo memo = pValueMemo.get();
+    for (int i = 0; i < n; i++) {
+      long key = memoKey(pairCount[i], term1Count[i], term2Count[i]);
+      int slot = (int) LongLongHashMap.hash(key) & ((1 << MEMO_BITS) - 1);
+      if (key >= 0 && memo.keys[slot] == key) {
+        batch.chi2_p[i] = memo.chi2_p[slot];
+        batch.student_t_p[i] = memo.student_t_p[slot];
+        continue;
+      }
+      batch.chi2_p[i] = ChiSquared1Table.cumulativeProbability(batch.chi2[i]);
+      if(tdist==null) {
+        batch.student_t_p[i] = 0.0;
+      } else {
+        batch.student_t_p[i] = tdist.cumulativeProbability(batch.student_t[i]);
+      }
+      if (key >= 0) {
+        memo.keys[slot] = key;
+        memo.chi2_p[slot] = batch.chi2_p[i];
+        memo.student_t_p[slot] = batch.student_t_p[i];
+      }
+    }
+  }
+
+  // The number of hash map slots for which the rows get formatted by one task
+  private static final int SLOTS_PER_TASK = 1 << 16;
+
+  /**
+   * Run tasks over all pairs in parallel.
+   * 
+   * The pairs are split into tasks of ranges of the hash map slots of each
+   * partition of the pair counts, or of whole partitions if the pair counts
+   * have been spilled to disk. The tasks run in a ForkJoinPool with 
+   * saveThreads threads and their results are passed to the consumer 
+   * in the order of the tasks. Only a few tasks per thread are queued at 
+   * any time so that the results waiting to get consumed do not use too 
+   * much memory.
+   * 
+   * @param task the task to run for each range of slots 
+   * @param consumer gets the result of each task
+   * @throws Exception if something goes wrong with one of the tasks
+   */
+  protected <T> void runPairTasks(PairTask<T> task, Consumer<T> consumer) throws Exception {
+    int nThreads = saveThreads > 0 ? saveThreads : Runtime.getRuntime().availableProcessors();
+    ForkJoinPool pool = new ForkJoinPool(nThreads);
+    try {
+      ArrayDeque<Future<T>> pending = new ArrayDeque<>();
+      boolean spilled = countsPairs.isSpilled();
+      for (int p = 0; p < countsPairs.getNumberOfPartitions(); p++) {
+        int capacity = countsPairs.getPartitionCapacity(p);
+        int slotsPerTask = spilled ? capacity : SLOTS_PER_TASK;
+        for (int from = 0; from < capacity; from += slotsPerTask) {
+          int partition = p;
+          int fromSlot = from;
+          int toSlot = Math.min(capacity, from + slotsPerTask);
+          pending.add(pool.submit(() -> task.run(partition, fromSlot, toSlot)));
+          if (pending.size() >= 4 * nThreads) {
+            consumer.accept(pending.poll().get());
+          }
+        }
+      }
+      while (!pending.isEmpty()) {
+        consumer.accept(pending.poll().get());
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * A task which processes the pairs in a range of slots of a partition. 
+   * @param <T> the type of the result
+   */
+  protected interface PairTask<T> {
+    T run(int partition, int fromSlot, int toSlot);
+  }
+
+  /**
+   * Write the rows for all pairs which satisfy the minimum counts. 
+   * Each task calculates the statistics and formats the rows into its own 
+   * buffer, the buffers are written in the order of the tasks.
+   * 
+   * @param pw where to write the rows
+   * @param lines gets incremented for each row
+   * @throws Exception if something goes wrong with one of the tasks
+   */
+  protected void writePairStats(PrintWriter pw, LongAdder lines) throws Exception {
+    runPairTasks((partition, fromSlot, toSlot) -> formatPairStats(partition, fromSlot, toSlot, lines), 
+            sb -> pw.append(sb));
+  }
+
+  // The number of pairs for which the stats get calculated together
+  private static final int BATCH_SIZE = 1024;
+
+  // If the pair satisfies the minimum counts, add it to the batch and 
+  // store the key for it with the terms in output order at the same index
+  // in keys, return the index or -1 if the pair was not added.
+  private int addToBatch(PairStatsBatch batch, long[] keys, long key, long pairCount) {
+    int id1 = PairCounts.term1(key);
+    int id2 = PairCounts.term2(key);
+    if (!haveTwoTypes && !orderIsSignificant && 
+            terms.getTerm(id1).compareTo(terms.getTerm(id2)) > 0) {
+      // the key has the smaller id first, but we output the lexically
+      // smaller term first
+      int tmpId = id1;
+      id1 = id2;
+      id2 = tmpId;
+    }
+    long term1Count = termCounts1ById[id1];
+    long term2Count = termCounts2ById[id2];
+
+    //System.err.println("DEBUG: PAIR="+term1+"/"+term2);
+    if(pairCount < minContexts_p || term1Count < minContexts_t1 || term2Count < minContexts_t2) {
+      return -1;
+    }
+    int i = batch.add(pairCount, term1Count, term2Count);
+    keys[i] = PairCounts.pairKey(id1, id2);
+    return i;
+  }
+
+  // Calculate the stats and format the rows for a range of slots of a partition
+  private StringBuilder formatPairStats(int partition, int fromSlot, int toSlot, LongAdder lines) {
+    StringBuilder sb = new StringBuilder(1 << 16);
+    PairStatsBatch batch = new PairStatsBatch(BATCH_SIZE);
+    long[] keys = new long[BATCH_SIZE];
+    countsPairs.forEachInPartition(partition, fromSlot, toSlot, (key, pairCount) -> {
+      if (addToBatch(batch, keys, key, pairCount) >= 0 && batch.isFull()) {
+        appendPairStats(sb, batch, keys, lines);
+      }
+    });
+    appendPairStats(sb, batch, keys, lines);
+    return sb;
+  }
+
+  // Calculate the stats for the batch, append the rows and clear the batch
+  private void appendPairStats(StringBuilder sb, PairStatsBatch batch, long[] keys, LongAdder lines) {
+    calcStats(batch);
+    lines.add(batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      // term1 - first term of pair (lexically smaller) 
+      // term2 - second term of pair (lexically larger or equal) 
+      // freq_pair = number of contexts the pair occurs in
+      // freq_term1 = 
+      // frequ_term2
+      // prob = estimated probability to find the pair in context
+      // pmi = log2(p(x,y) / p(x)p(y))
+      // npmi 
+      // chi2_p = p-value of the chi-squared statistic
+      // student_t_p - p-value of the student t value
+      sb.append(terms.getTerm(PairCounts.term1(keys[i]))).append('\t');
+      sb.append(terms.getTerm(PairCounts.term2(keys[i]))).append('\t');
+      sb.append(batch.pairCount[i]).append('\t');
+      sb.append(batch.term1Count[i]).append('\t');
+      sb.append(batch.term2Count[i]).append('\t');
+      sb.append(batch.p_a_b[i]).append('\t');
+      sb.append(batch.p_a_b_expected[i]).append('\t');
+      sb.append(batch.pmi[i]).append('\t');
+      sb.append(batch.npmi[i]).append('\t');
+      sb.append(batch.wpmi[i]).append('\t');
+      sb.append(batch.chi2[i]).append('\t');
+      sb.append(batch.chi2_p[i]).append('\t');
+      sb.append(batch.student_t[i]).append('\t');
+      sb.append(batch.student_t_p[i]).append(LINE_SEPARATOR);
+    }
+    batch.clear();
+  }
+
+  // The best pairs found by one thread, or all threads after merging:
+  // overall if topK is bigger than 0, and for each term1 if topKPerTerm1 
+  // is bigger than 0
+  private class TopKSelection {
+    final TopKPairs top = topK > 0 ? new TopKPairs(topK) : null;
+    final HashMap<Integer, TopKPairs> perTerm1 = topKPerTerm1 > 0 ? new HashMap<>() : null;
+    // after drain(): the selected keys, best first, and the counts of the
+    // selected pairs
+    long[] topKeys;
+    HashMap<Integer, long[]> perTerm1Keys;
+    LongLongHashMap pairCounts;
+
+    // Get the selected keys from the heaps and look up the counts of all 
+    // selected pairs at once, which is much faster if the pairs have been
+    // spilled to disk
+    void drain() {
+      LongLongHashMap needed = new LongLongHashMap();
+      if (top != null) {
+        topKeys = top.drainKeys();
+        for (long key : topKeys) {
+          needed.put(countsKey(key), 0L);
+        }
+      }
+      if (perTerm1 != null) {
+        perTerm1Keys = new HashMap<>();
+        for (Map.Entry<Integer, TopKPairs> entry : perTerm1.entrySet()) {
+          long[] keys = entry.getValue().drainKeys();
+          perTerm1Keys.put(entry.getKey(), keys);
+          for (long key : keys) {
+            needed.put(countsKey(key), 0L);
+          }
+        }
+      }
+      long[] keys = new long[needed.size()];
+      int[] n = new int[1];
+      needed.forEach((key, value) -> keys[n[0]++] = key);
+      pairCounts = countsPairs.getAll(keys);
+    }
+
+    void offer(double score, long key) {
+      if (top != null) {
+        top.offer(score, key);
+      }
+      if (perTerm1 != null) {
+        perTerm1.computeIfAbsent(PairCounts.term1(key), id -> new TopKPairs(topKPerTerm1)).offer(score, key);
+        if (!haveTwoTypes && !orderIsSignificant) {
+          // for unordered pairs, each term is a partner of the other, all 
+          // the stats are symmetric in the two terms
+          int id2 = PairCounts.term2(key);
+          perTerm1.computeIfAbsent(id2, id -> new TopKPairs(topKPerTerm1)).offer(score, 
+                  PairCounts.pairKey(id2, PairCounts.term1(key)));
+        }
+      }
+    }
+
+    void addAll(TopKSelection other) {
+      if (top != null) {
+        top.addAll(other.top);
+      }
+      if (perTerm1 != null) {
+        for (Map.Entry<Integer, TopKPairs> entry : other.perTerm1.entrySet()) {
+          perTerm1.computeIfAbsent(entry.getKey(), id -> new TopKPairs(topKPerTerm1)).addAll(entry.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * Find the best pairs by the topKMetric. Each worker thread keeps its 
+   * own bounded heaps, these get merged at the end.
+   * @return the merged selection
+   * @throws Exception if something goes wrong with one of the tasks
+   */
+  private TopKSelection selectTopK() throws Exception {
+    ConcurrentLinkedQueue<TopKSelection> selections = new ConcurrentLinkedQueue<>();
+    ThreadLocal<TopKSelection> selection = ThreadLocal.withInitial(() -> {
+      TopKSelection sel = new TopKSelection();
+      selections.add(sel);
+      return sel;
+    });
+    runPairTasks((partition, fromSlot, toSlot) -> {
+      PairStatsBatch batch = new PairStatsBatch(BATCH_SIZE);
+      long[] keys = new long[BATCH_SIZE];
+      TopKSelection sel = selection.get();
+      countsPairs.forEachInPartition(partition, fromSlot, toSlot, (key, pairCount) -> {
+        if (addToBatch(batch, keys, key, pairCount) >= 0 && batch.isFull()) {
+          offerBatch(batch, keys, sel);
+        }
+      });
+      offerBatch(batch, keys, sel);
+      return null;
+    }, result -> { });
+    TopKSelection merged = new TopKSelection();
+    for (TopKSelection sel : selections) {
+      merged.addAll(sel);
+    }
+    return merged;
+  }
+
+  private void offerBatch(PairStatsBatch batch, long[] keys, TopKSelection sel) {
+    calcStats(batch);
+    double[] scores = batch.getMetric(topKMetric);
+    for (int i = 0; i < batch.size(); i++) {
+      sel.offer(scores[i], keys[i]);
+    }
+    batch.clear();
+  }
+
+  // The key of the counts for a pair key in output order: for unordered 
+  // pairs in the per-term1 selection, the terms may be swapped
+  private long countsKey(long key) {
+    return pairKey(PairCounts.term1(key), PairCounts.term2(key));
+  }
+
+  // Write the rows for the pairs with the given keys in output order
+  private void writeSelectedPairs(PrintWriter pw, long[] selected, LongLongHashMap pairCounts, LongAdder lines) {
+    StringBuilder sb = new StringBuilder(1 << 16);
+    PairStatsBatch batch = new PairStatsBatch(BATCH_SIZE);
+    long[] keys = new long[BATCH_SIZE];
+    for (long key : selected) {
+      int id1 = PairCounts.term1(key);
+      int id2 = PairCounts.term2(key);
+      long pairCount = pairCounts.get(countsKey(key));
+      // the term counts are looked up by the actual first term
+      long term1Count = termCounts1ById[id1];
+      long term2Count = haveTwoTypes ? termCounts2ById[id2] : termCounts1ById[id2];
+      keys[batch.add(pairCount, term1Count, term2Count)] = key;
+      if (batch.isFull()) {
+        appendPairStats(sb, batch, keys, lines);
+        pw.append(sb);
+        sb.setLength(0);
+      }
+    }
+    appendPairStats(sb, batch, keys, lines);
+    pw.append(sb);
+  }
+
+  private static final String PAIR_STATS_HEADER = 
+          "term1\tterm2\tfreqp\tfreqt1\tfreqt2\tprob\tprobexp\tpmi\tnpmi\twpmi\tchi2\tchi2_p\tstudent_t\tstudent_t_p";
+
+  private static final String LINE_SEPARATOR = System.lineSeparator();
+
+  // Write the best topKPerTerm1 partners for each term1, sorted by term1 
+  // and best first for each term1
+  private void writePerTerm1(URL url, TopKSelection selection) throws IOException {
+    File file = gate.util.Files.fileFromURL(url);
+    System.err.println("Storing best pairs per term1 to file " + file);
+    List<Integer> ids = new ArrayList<>(selection.perTerm1Keys.keySet());
+    ids.sort((id1, id2) -> terms.getTerm(id1).compareTo(terms.getTerm(id2)));
+    LongAdder lines = new LongAdder();
+    try (
+            FileOutputStream fos = new FileOutputStream(file);
+            PrintWriter pw = new PrintWriter(fos)) {
+      pw.println(PAIR_STATS_HEADER);
+      for (int id : ids) {
+        writeSelectedPairs(pw, selection.perTerm1Keys.get(id), selection.pairCounts, lines);
+      }
+    }
+    System.err.println("Best pairs per term1 written to file, lines: " + lines);
+  }
+
+  /**
+   * The names of the statistics which can be exported as a matrix: all 
+   * metrics of PairStatsBatch and ppmi, the positive pmi.
+   */
+  public static final String[] MATRIX_METRICS = {
+    "ppmi", "prob", "pmi", "npmi", "wpmi", "chi2", "chi2_p", "student_t", "student_t_p"
+  };
+
+  /**
+   * Export a statistic for all pairs as a sparse term by term matrix.
+   * 
+   * The rows and columns are the terms in the vocabulary file, which has 
+   * the URL of the matrix file with ".vocab.tsv" appended, one line per 
+   * term in lexical order: the term, the count of the term as term1 and as 
+   * term2. Only pairs which satisfy the minimum counts are exported and 
+   * only terms which can be in such pairs are in the vocabulary. For the 
+   * ppmi, only pairs with a positive pmi are exported, for the other 
+   * statistics all pairs except where the value is NaN. If the order 
+   * of pairs is not significant and there is only one type, the matrix is
+   * symmetric and contains both (a,b) and (b,a).
+   * <p>
+   * With format "mtx", the matrix is written as a Matrix Market coordinate 
+   * file with 1-based indices. With format "csr", it is written as a 
+   * binary compressed sparse row file, all numbers big-endian: the 
+   * magic bytes "CSCSRMAT", the int version 1, an int 0, the long number of
+   * rows, columns and entries, the nRows+1 long offsets of the first entry 
+   * of each row, then the entries, each as the int column and the value as 
+   * a float, sorted by column within each row. 
+   * <p>
+   * Both formats get written straight from the pair counts, with the 
+   * statistics calculated by parallel tasks as for the stats TSV file.
+   * 
+   * @param matrixUrl the URL of the matrix file
+   * @param metric the statistic, one of MATRIX_METRICS
+   * @param format "csr" or "mtx"
+   */
+  public void saveMatrix(URL matrixUrl, String metric, String format) {
+    if (!Arrays.asList(MATRIX_METRICS).contains(metric)) {
+      throw new GateRuntimeException("Not a known metric for the matrix: " + metric);
+    }
+    if (!"csr".equals(format) && !"mtx".equals(format)) {
+      throw new GateRuntimeException("Not a known matrix format: " + format);
+    }
+    initStats();
+    File file = gate.util.Files.fileFromURL(matrixUrl);
+    File vocabFile = new File(file.getPath() + ".vocab.tsv");
+    System.err.println("Storing " + metric + " matrix to file " + file);
     
-    //System.err.println("DEBUG: N=" + Nfloat + ", t0c=" + ret.term1Count + ", t1c=" + ret.term2Count + ", pairc=" + ret.pairCount);
-    //System.err.println("DEBUG: p_a_b,p_na_b,p_a_nb,p_na_nb=" + ret.p_a_b + "," + ret.p_na_b + "," + ret.p_a_nb + "," + ret.p_na_nb);
-
-    // The following should work with both probabilities and counts, for now
-    // we use counts because maybe faster?
-    // !!! Also: this works with laplace smoothing for PMI switched on, but we cannot
-    // make laplace smoothing work with chi-squared because we cannot easily calculate
-    // the "number of values" needed.
-    double tmp = (c_a_b * c_na_nb - c_a_nb * c_na_b);
-    tmp = Nfloat * tmp * tmp;
-    ret.chi2 = tmp
-            / ((c_a_b + c_a_nb) * (c_a_b + c_na_b) * (c_a_nb + c_na_nb) * (c_na_b + c_na_nb));
-
-    //System.err.println("DEBUG: chi2=" + ret.chi2);
-    ret.chi2_p = chdist.cumulativeProbability(ret.chi2);
+    // the vocabulary, the terms which can be in a pair that satisfies
+    // the minimum counts, in lexical order
+    List<String> vocab = new ArrayList<>();
+    for (int id = 0; id < terms.size(); id++) {
+      long count1 = id < termCounts1ById.length ? termCounts1ById[id] : 0L;
+      long count2 = id < termCounts2ById.length ? termCounts2ById[id] : 0L;
+      if ((count1 > 0 && count1 >= minContexts_t1) || (count2 > 0 && count2 >= minContexts_t2)) {
+        vocab.add(terms.getTerm(id));
+      }
+    }
+    Collections.sort(vocab);
+    int[] indexById = new int[terms.size()];
+    Arrays.fill(indexById, -1);
+    try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+            new FileOutputStream(vocabFile), StandardCharsets.UTF_8))) {
+      for (int i = 0; i < vocab.size(); i++) {
+        int id = terms.getId(vocab.get(i));
+        indexById[id] = i;
+        long count1 = id < termCounts1ById.length ? termCounts1ById[id] : 0L;
+        long count2 = id < termCounts2ById.length ? termCounts2ById[id] : 0L;
+        pw.println(vocab.get(i) + "\t" + count1 + "\t" + count2);
+      }
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not save vocabulary to " + vocabFile, ex);
+    }
     
-       
-    // 4) calculate student t p-value
-    ret.p_a_b_expected = ret.p_a * ret.p_b;  // expected p if indep
-    double samplevariance = ret.p_a_b * (1.0 - ret.p_a_b);
-    ret.student_t = (ret.p_a_b - ret.p_a_b_expected) / Math.sqrt(samplevariance / Nfloat);
-
-    if(tdist==null) {
-      ret.student_t_p = 0.0;
-    } else {
-      ret.student_t_p = tdist.cumulativeProbability(ret.student_t);
+    try {
+      long nnz;
+      if ("mtx".equals(format)) {
+        nnz = writeMatrixMarket(file, vocab.size(), indexById, metric);
+      } else {
+        nnz = writeCsrMatrix(file, vocab.size(), indexById, metric);
+      }
+      System.err.println("Matrix written to file, terms: " + vocab.size() + ", entries: " + nnz);
+    } catch (Exception ex) {
+      throw new GateRuntimeException("Could not save matrix to " + file, ex);
     }
-    return ret;
+  }
+
+  // Gets the entries of the matrix
+  private interface MatrixEntryConsumer {
+    void accept(int row, int col, double value);
+  }
+
+  // Calculate the statistic for the pairs in a range of slots of a partition 
+  // and pass the matrix entries to the consumer
+  private void forMatrixEntries(int partition, int fromSlot, int toSlot, int[] indexById, 
+          String metric, MatrixEntryConsumer consumer) {
+    PairStatsBatch batch = new PairStatsBatch(BATCH_SIZE);
+    long[] keys = new long[BATCH_SIZE];
+    countsPairs.forEachInPartition(partition, fromSlot, toSlot, (key, pairCount) -> {
+      if (addToBatch(batch, keys, key, pairCount) >= 0 && batch.isFull()) {
+        emitMatrixEntries(batch, keys, indexById, metric, consumer);
+      }
+    });
+    emitMatrixEntries(batch, keys, indexById, metric, consumer);
+  }
+
+  // Calculate the stats for the batch, pass the entries and clear the batch
+  private void emitMatrixEntries(PairStatsBatch batch, long[] keys, int[] indexById, 
+          String metric, MatrixEntryConsumer consumer) {
+    calcStats(batch);
+    boolean ppmi = "ppmi".equals(metric);
+    double[] values = batch.getMetric(ppmi ? "pmi" : metric);
+    boolean symmetric = !haveTwoTypes && !orderIsSignificant;
+    for (int i = 0; i < batch.size(); i++) {
+      double value = values[i];
+      if (ppmi ? !(value > 0.0) : Double.isNaN(value)) {
+        continue;
+      }
+      int row = indexById[PairCounts.term1(keys[i])];
+      int col = indexById[PairCounts.term2(keys[i])];
+      consumer.accept(row, col, value);
+      if (symmetric && row != col) {
+        consumer.accept(col, row, value);
+      }
+    }
+    batch.clear();
+  }
+
+  // Write the entries as they come from the tasks, the number of entries 
+  // is only known at the end and gets filled into the space left for it 
+  // in the size line.
+  private long writeMatrixMarket(File file, int n, int[] indexById, String metric) throws Exception {
+    String header = "%%MatrixMarket matrix coordinate real general\n% " + metric + "\n";
+    String sizes = n + " " + n + " ";
+    LongAdder nnz = new LongAdder();
+    try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+            new FileOutputStream(file), StandardCharsets.US_ASCII))) {
+      pw.print(header);
+      pw.print(sizes);
+      pw.print(String.format("%20s%n", ""));
+      runPairTasks((partition, fromSlot, toSlot) -> {
+        StringBuilder sb = new StringBuilder(1 << 16);
+        forMatrixEntries(partition, fromSlot, toSlot, indexById, metric, (row, col, value) -> {
+          sb.append(row + 1).append(' ').append(col + 1).append(' ').append(value).append('\n');
+          nnz.increment();
+        });
+        return sb;
+      }, sb -> pw.append(sb));
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(header.length() + sizes.length());
+      raf.write(Long.toString(nnz.sum()).getBytes(StandardCharsets.US_ASCII));
+    }
+    return nnz.sum();
+  }
+
+  private static final byte[] CSR_MAGIC = "CSCSRMAT".getBytes(StandardCharsets.US_ASCII);
+  private static final int CSR_HEADER_SIZE = 40;
+  private static final int CSR_ROWS_PER_TASK = 4096;
+
+  // The entries of each row get counted first, then each entry gets written 
+  // to the next free place of its row in the mapped file, then each row
+  // gets sorted by column. An entry is packed into a long with the column
+  // in the upper half, so sorting the longs sorts by column.
+  private long writeCsrMatrix(File file, int n, int[] indexById, String metric) throws Exception {
+    AtomicIntegerArray rowSizes = new AtomicIntegerArray(n);
+    runPairTasks((partition, fromSlot, toSlot) -> {
+      forMatrixEntries(partition, fromSlot, toSlot, indexById, metric, 
+              (row, col, value) -> rowSizes.incrementAndGet(row));
+      return null;
+    }, ignored -> { });
+    long[] rowStarts = new long[n + 1];
+    for (int row = 0; row < n; row++) {
+      rowStarts[row + 1] = rowStarts[row] + rowSizes.get(row);
+    }
+    long nnz = rowStarts[n];
+    try (DataOutputStream dos = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+      dos.write(CSR_MAGIC);
+      dos.writeInt(1);
+      dos.writeInt(0);
+      dos.writeLong(n);
+      dos.writeLong(n);
+      dos.writeLong(nnz);
+      for (long start : rowStarts) {
+        dos.writeLong(start);
+      }
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel()) {
+      MappedLongs entries = new MappedLongs(channel, FileChannel.MapMode.READ_WRITE, 
+              CSR_HEADER_SIZE + 8L * (n + 1), nnz);
+      AtomicLongArray next = new AtomicLongArray(Arrays.copyOf(rowStarts, n));
+      runPairTasks((partition, fromSlot, toSlot) -> {
+        forMatrixEntries(partition, fromSlot, toSlot, indexById, metric, (row, col, value) -> 
+                entries.put(next.getAndIncrement(row), 
+                        ((long) col << 32) | (Float.floatToIntBits((float) value) & 0xffffffffL)));
+        return null;
+      }, ignored -> { });
+      int nThreads = saveThreads > 0 ? saveThreads : Runtime.getRuntime().availableProcessors();
+      ForkJoinPool pool = new ForkJoinPool(nThreads);
+      try {
+        List<Future<?>> sorts = new ArrayList<>();
+        for (int from = 0; from < n; from += CSR_ROWS_PER_TASK) {
+          int fromRow = from;
+          int toRow = Math.min(n, from + CSR_ROWS_PER_TASK);
+          sorts.add(pool.submit(() -> {
+            for (int row = fromRow; row < toRow; row++) {
+              long[] rowEntries = new long[rowSizes.get(row)];
+              for (int k = 0; k < rowEntries.length; k++) {
+                rowEntries[k] = entries.get(rowStarts[row] + k);
+              }
+              Arrays.sort(rowEntries);
+              for (int k = 0; k < rowEntries.length; k++) {
+                entries.put(rowStarts[row] + k, rowEntries[k]);
+              }
+            }
+          }));
+        }
+        for (Future<?> sort : sorts) {
+          sort.get();
+        }
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+    return nnz;
+  }
+
+  // The fraction of kept items, 1 if there were none
+  private static double keptRate(LongAdder kept, LongAdder all) {
+    return all.sum() == 0 ? 1.0 : (double) kept.sum() / all.sum();
   }
 
   public void save(URL dataUrl, URL sumTsvUrl, URL statsTsvUrl, int minTf) {
@@ -307,16 +1356,28 @@ public class CorpusStatsCollocationsData implements Serializable {
         // n_pairs = number of different pairs encountered
         // TODO: add scores for PMI, npmi, chi2_p etc. for pairs not found in the corpus!
         // TODO: once we support two types, always add the stats for both!
-        pw.println("ncontexts\tnterms1\tnterms2\tnpairs\ndocs");
+        boolean sampled = subsamplingThreshold > 0.0 || maxPairsPerContext > 0;
+        // the sampling columns are only there if sampling was used: the
+        // fractions of term occurrences and pairs which were kept
+        pw.println("ncontexts\tnterms1\tnterms2\tnpairs\tndocs" + 
+                (sampled ? "\tsubsampling\ttokens_kept\tmaxpairs\tpairs_kept" : ""));
         long t2s = haveTwoTypes ? countsTerms2.size() : countsTerms1.size();
-        pw.println(totalContexts + "\t" + countsTerms1.size() + "\t" + t2s + "\t" + countsPairs.size() + "\t" + nDocs.sum());
+        // if the pairs have been spilled, this needs a pass over all of them
+        long nPairs = countsPairs.size();
+        pw.println(totalContexts + "\t" + countsTerms1.size() + "\t" + t2s + "\t" + nPairs + "\t" + nDocs.sum() + 
+                (sampled ? "\t" + subsamplingThreshold + "\t" + keptRate(nTokensKept, nTokens) + 
+                        "\t" + maxPairsPerContext + "\t" + keptRate(nContextPairsKept, nContextPairs) : ""));
         System.err.println("Number of contexts: " + totalContexts);
         System.err.println("Number of different terms type1: " + countsTerms1.size());
         if(haveTwoTypes) {
           System.err.println("Number of different terms type2: " + countsTerms2.size());
         }
-        System.err.println("Number of different pairs: " + countsPairs.size());
+        System.err.println("Number of different pairs: " + nPairs);
         System.err.println("Docs:  " + nDocs);
+        if (sampled) {
+          System.err.println("Term occurrences kept by subsampling: " + nTokensKept + " of " + nTokens);
+          System.err.println("Pairs kept in limited contexts: " + nContextPairsKept + " of " + nContextPairs);
+        }
       } catch (Exception ex) {
         throw new GateRuntimeException("Could not save tfidf file", ex);
       }
@@ -341,62 +1402,24 @@ public class CorpusStatsCollocationsData implements Serializable {
         // npmi 
         // chi2_p = p-value of the chi-squared statistic
         // student_t_p - p-value of the student t value
-        pw.println("term1\tterm2\tfreqp\tfreqt1\tfreqt2\tprob\tprobexp\tpmi\tnpmi\twpmi\tchi2\tchi2_p\tstudent_t\tstudent_t_p");
+        pw.println(PAIR_STATS_HEADER);
         
-        int lines = 0;
-        for (String key : countsPairs.keySet()) {
-          String[] terms = key.split("\\t");
-          long pairCount = countsPairs.get(key).sum();
-          long term1Count = countsTerms1.get(terms[0]).sum();
-          long term2Count = haveTwoTypes ? 
-                  countsTerms2.get(terms[1]).sum() :
-                  countsTerms1.get(terms[1]).sum();
-          
-          //System.err.println("DEBUG: PAIR="+terms[0]+"/"+terms[1]);
-          if(pairCount < minContexts_p || term1Count < minContexts_t1 || term2Count < minContexts_t2) {
-            continue;
-          }
-          PairStats stats = calcStats_worker(pairCount,term1Count,term2Count);
-          
-          lines++;
-          // term1 - first term of pair (lexically smaller) 
-          // term2 - second term of pair (lexically larger or equal) 
-          // freq_pair = number of contexts the pair occurs in
-          // freq_term1 = 
-          // frequ_term2
-          // prob = estimated probability to find the pair in context
-          // pmi = log2(p(x,y) / p(x)p(y))
-          // npmi 
-          // chi2_p = p-value of the chi-squared statistic
-          // student_t_p - p-value of the student t value
-          pw.print(key); // contains the tab to separate the two terms
-          pw.print("\t");
-          pw.print(stats.pairCount);
-          pw.print("\t");
-          pw.print(stats.term1Count);
-          pw.print("\t");
-          pw.print(stats.term2Count);
-          pw.print("\t");
-          pw.print(stats.p_a_b);
-          pw.print("\t");
-          pw.print(stats.p_a_b_expected);
-          pw.print("\t");
-          pw.print(stats.pmi);
-          pw.print("\t");
-          pw.print(stats.npmi);
-          pw.print("\t");
-          pw.print(stats.wpmi);
-          pw.print("\t");
-          pw.print(stats.chi2);
-          pw.print("\t");
-          pw.print(stats.chi2_p);
-          pw.print("\t");
-          pw.print(stats.student_t);
-          pw.print("\t");
-          pw.print(stats.student_t_p);
-          pw.println();
+        LongAdder lines = new LongAdder();
+        TopKSelection selection = null;
+        if (topK > 0 || topKPerTerm1 > 0) {
+          selection = selectTopK();
+          selection.drain();
+        }
+        if (topK > 0) {
+          // only the best topK pairs, best first
+          writeSelectedPairs(pw, selection.topKeys, selection.pairCounts, lines);
+        } else {
+          writePairStats(pw, lines);
         }
         System.err.println("Term stats rows written to file, lines: " + lines);
+        if (topKPerTerm1 > 0) {
+          writePerTerm1(UrlUtils.insertBeforeExtension(statsTsvUrl, "-perterm1"), selection);
+        }
       } catch (Exception ex) {
         throw new GateRuntimeException("Could not save collocation file", ex);
       }
@@ -405,14 +1428,7 @@ public class CorpusStatsCollocationsData implements Serializable {
     if (dataUrl != null && !dataUrl.toExternalForm().isEmpty()) {
       File file = gate.util.Files.fileFromURL(dataUrl);
       System.err.println("Storing data to file " + file);
-      try (
-              FileOutputStream fos = new FileOutputStream(file);
-              GZIPOutputStream gos = new GZIPOutputStream(fos);
-              ObjectOutputStream oos = new ObjectOutputStream(gos)) {
-        oos.writeObject(this);
-      } catch (IOException ex) {
-        throw new GateRuntimeException("Could not save data to " + file, ex);
-      }
+      CollocationStore.write(this, file);
     }
 
   }
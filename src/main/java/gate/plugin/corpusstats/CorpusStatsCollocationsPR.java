@@ -29,20 +29,18 @@ import org.jpetrak.gate8.api.plugins.AbstractDocumentProcessor;
 import gate.*;
 import gate.creole.metadata.*;
 import gate.util.Benchmark;
-import gate.util.Files;
 import gate.util.GateRuntimeException;
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.LongAdder;
-import java.util.zip.GZIPInputStream;
 
 @CreoleResource(name = "CorpusStatsCollocationsPR",
         helpURL = "https://gatenlp.github.io/gateplugin-CorpusStats/doc-CorpusStatsCollocationsPR",
@@ -108,6 +106,37 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
   public Boolean getOrderIsSignificant() {
     return orderIsSignificant;
   }
+
+  private boolean alsoUnordered = false;
+  /**
+   * Also save the statistics for unordered pairs, from the same pass.
+   * 
+   * Only possible if the order is significant and there is only one type.
+   * The pairs are counted with their order as usual, and in addition the
+   * number of contexts which contain a pair in both orders. From these, 
+   * the counts of the unordered pairs get derived when saving, and saved
+   * to the same files with "-unordered" inserted before the extension. 
+   * This cannot be used together with reuseExisting, since the saved
+   * data does not contain the counts of the pairs in both orders.
+   * 
+   * @param val true to also save the unordered pairs, null means false
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If true and the order is significant, also save the stats of unordered pairs to files with -unordered added to the name",
+          defaultValue = "false")
+  public void setAlsoUnordered(Boolean val) {
+    if (val == null) {
+      alsoUnordered = false;
+    } else {
+      alsoUnordered = val;
+    }
+  }
+
+  public Boolean getAlsoUnordered() {
+    return alsoUnordered;
+  }
   
   
   @RunTime
@@ -169,6 +198,61 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
   public Integer getSlidingWindowSize() {
     return slidingWindowSize;
   }
+
+  private String slidingWindowSizes = "";
+  /**
+   * Several sliding window sizes to count in one pass over the corpus.
+   * 
+   * If not empty, this is used instead of slidingWindowSize and the 
+   * contexts, terms and pairs get counted for each of the sizes from the
+   * same annotations. If there is more than one size, each output file 
+   * gets "-w" and the size inserted before the extension, e.g. 
+   * pairs-w5.tsv, and the same is done for the files which get loaded.
+   * 
+   * @param value a comma separated list of window sizes, e.g. "2,5,10,20"
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Comma separated list of sliding window sizes to count in one pass, if not empty used instead of slidingWindowSize",
+          defaultValue = ""
+  )  
+  public void setSlidingWindowSizes(String value) {
+    if (value == null) {
+      slidingWindowSizes = "";
+    } else {
+      slidingWindowSizes = value;
+    }
+  }
+  
+  public String getSlidingWindowSizes() {
+    return slidingWindowSizes;
+  }
+  
+  // The window sizes from slidingWindowSizes or slidingWindowSize
+  private int[] parseWindowSizes() {
+    if (slidingWindowSizes == null || slidingWindowSizes.trim().isEmpty()) {
+      return new int[] { slidingWindowSize == null ? 0 : slidingWindowSize };
+    }
+    String[] parts = slidingWindowSizes.split(",");
+    int[] ret = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      try {
+        ret[i] = Integer.parseInt(parts[i].trim());
+      } catch (NumberFormatException ex) {
+        throw new GateRuntimeException("Not a valid window size in slidingWindowSizes: " + parts[i]);
+      }
+      if (ret[i] < 0) {
+        throw new GateRuntimeException("Not a valid window size in slidingWindowSizes: " + ret[i]);
+      }
+      for (int j = 0; j < i; j++) {
+        if (ret[j] == ret[i]) {
+          throw new GateRuntimeException("Window size more than once in slidingWindowSizes: " + ret[i]);
+        }
+      }
+    }
+    return ret;
+  }
   
   private String splitAnnotationType = "";
           
@@ -231,7 +315,7 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
   @RunTime
   @Optional
   @CreoleParameter(
-          comment = "The URL of where to store the data in binary compressed format, not used if left empty"
+          comment = "The URL of where to store the data as a binary collocation store, not used if left empty"
   )
   public void setDataFileUrl(URL u) {
     dataFileUrl = u;
@@ -334,7 +418,7 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
   @RunTime
   @Optional
   @CreoleParameter(
-          comment = "The URL of where to store the data in binary compressed format, not used if left empty"
+          comment = "The URL of a TSV file with the tf of each term, gzip-compressed if the name ends in .gz, used for the minTf filter, not used if left empty"
   )
   public void setTfFileUrl(URL u) {
     tfFileUrl = u;
@@ -344,6 +428,21 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
     return tfFileUrl;
   }
 
+  private URL tfDataFileUrl;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The URL of a binary data file from CorpusStatsTfIdfPR to use instead of the tf file, not used if left empty"
+  )
+  public void setTfDataFileUrl(URL u) {
+    tfDataFileUrl = u;
+  }
+
+  public URL getTfDataFileUrl() {
+    return tfDataFileUrl;
+  }
+
           
   private double minTf = 1;
 
@@ -364,6 +463,103 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
   public Double getMinTf() {
     return minTf;
   }
+
+  private double subsamplingThreshold = 0.0;
+  /**
+   * Randomly drop occurrences of frequent terms, as in word2vec.
+   * 
+   * An occurrence of a term with the relative frequency f in the tf file 
+   * is kept with the probability min(1, (sqrt(f/t)+1)*t/f), where t is the
+   * threshold, and otherwise removed from the span before counting. Terms
+   * not in the tf file are always kept. The threshold and the fraction of
+   * the occurrences which were kept get saved to the sums file.
+   * 
+   * The random choices are repeatable: they only depend on the name, the 
+   * length and the number of input annotations of the document, so two 
+   * documents which agree in all of these get the same choices.
+   * 
+   * @param value the threshold t, e.g. 1e-5, 0 to keep all occurrences
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If bigger than 0, randomly drop occurrences of terms which are frequent according to the tf file, word2vec-style with this threshold, e.g. 1e-5",
+          defaultValue = "0.0"
+  )
+  public void setSubsamplingThreshold(Double value) {
+    if (value == null) {
+      subsamplingThreshold = 0.0;
+    } else {
+      subsamplingThreshold = value;
+    }
+  }
+
+  public Double getSubsamplingThreshold() {
+    return subsamplingThreshold;
+  }
+
+  private int maxPairsPerContext = 0;
+  /**
+   * Limit the number of pairs counted for a context.
+   * 
+   * If a context which is a whole span, e.g. a whole document, contains
+   * more different pairs, a uniform random sample of this size gets 
+   * counted, which takes time linear in the length of the context instead
+   * of quadratic. Contexts of a sliding window are not limited. The limit and 
+   * the fraction of the pairs of the limited contexts which were counted 
+   * get saved to the sums file. As for subsampling, the sample only 
+   * depends on the name, length and number of input annotations of the 
+   * document.
+   * 
+   * @param value the maximum number of pairs, 0 for no limit
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If bigger than 0, only count a random sample of this many pairs for each context which is a whole span",
+          defaultValue = "0"
+  )
+  public void setMaxPairsPerContext(Integer value) {
+    if (value == null) {
+      maxPairsPerContext = 0;
+    } else {
+      maxPairsPerContext = value;
+    }
+  }
+
+  public Integer getMaxPairsPerContext() {
+    return maxPairsPerContext;
+  }
+
+  private int minAnnotationsForParallel = 0;
+  /**
+   * Count large documents with several threads.
+   * 
+   * A document with at least this many input annotations gets its spans 
+   * counted by the tasks of a thread pool which is shared by all duplicates
+   * of the PR, so that a single huge document does not hold up all the 
+   * other documents. The pool has one thread per processor. The counts are
+   * the same as when counting the document with a single thread.
+   * 
+   * @param value the minimum number of annotations, 0 to never use the pool
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If bigger than 0, documents with at least this many input annotations get counted with several threads",
+          defaultValue = "0"
+  )
+  public void setMinAnnotationsForParallel(Integer value) {
+    if (value == null) {
+      minAnnotationsForParallel = 0;
+    } else {
+      minAnnotationsForParallel = value;
+    }
+  }
+
+  public Integer getMinAnnotationsForParallel() {
+    return minAnnotationsForParallel;
+  }
   
   
   private double laplaceCoefficient = 0.0;
@@ -385,6 +581,203 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
     return laplaceCoefficient;
   }
   
+  private int saveThreads = 0;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Number of threads for calculating the statistics when saving, if 0, the number of processors",
+          defaultValue = "0"
+  )
+  public void setSaveThreads(Integer value) {
+    if (value == null) {
+      saveThreads = 0;
+    } else {
+      saveThreads = value;
+    }
+  }
+
+  public Integer getSaveThreads() {
+    return saveThreads;
+  }
+
+  private int topK = 0;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If bigger than 0, only save this number of pairs with the highest value of the topKMetric",
+          defaultValue = "0"
+  )
+  public void setTopK(Integer value) {
+    if (value == null) {
+      topK = 0;
+    } else {
+      topK = value;
+    }
+  }
+
+  public Integer getTopK() {
+    return topK;
+  }
+
+  private String topKMetric = "npmi";
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The metric for selecting the best pairs: prob, pmi, npmi, wpmi, chi2, chi2_p, student_t or student_t_p",
+          defaultValue = "npmi"
+  )
+  public void setTopKMetric(String value) {
+    if (value == null || value.isEmpty()) {
+      topKMetric = "npmi";
+    } else {
+      topKMetric = value;
+    }
+  }
+
+  public String getTopKMetric() {
+    return topKMetric;
+  }
+
+  private int topKPerTerm1 = 0;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If bigger than 0, also save this number of best pairs for each term1 to a file with -perterm1 added to the name",
+          defaultValue = "0"
+  )
+  public void setTopKPerTerm1(Integer value) {
+    if (value == null) {
+      topKPerTerm1 = 0;
+    } else {
+      topKPerTerm1 = value;
+    }
+  }
+
+  public Integer getTopKPerTerm1() {
+    return topKPerTerm1;
+  }
+
+  private boolean twoPass = false;
+  /**
+   * Whether to count the pairs in a second pass, only for frequent terms.
+   * 
+   * In the first pass, only the contexts and terms get counted, then the 
+   * pairs get counted only for the terms which satisfy minContextsT1 and
+   * minContextsT2, so the pairs which would get discarded when saving 
+   * do not use any memory. If the firstPassFileUrl is set and the file
+   * exists, the first pass is taken from that file and the documents get
+   * processed only once. Otherwise the term ids of the spans get spilled 
+   * to temporary files during processing and the pairs get counted from 
+   * them after the last document, and if the firstPassFileUrl is set, the
+   * first pass gets saved to it.
+   * 
+   * @param val true to count the pairs in a second pass, null means false
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If true, only count the pairs of terms which satisfy the minimum contexts, in a second pass",
+          defaultValue = "false"
+  )
+  public void setTwoPass(Boolean val) {
+    if (val == null) {
+      twoPass = false;
+    } else {
+      twoPass = val;
+    }
+  }
+
+  public Boolean getTwoPass() {
+    return twoPass;
+  }
+
+  private URL firstPassFileUrl;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "For the two-pass mode: the URL of the term counts of the first pass, used if it exists, otherwise created, not used if left empty"
+  )
+  public void setFirstPassFileUrl(URL u) {
+    firstPassFileUrl = u;
+  }
+
+  public URL getFirstPassFileUrl() {
+    return firstPassFileUrl;
+  }
+
+  private int pairsMemoryMB = 0;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If bigger than 0, the approximate memory in MB for the pair counts, above that they get spilled to temporary files",
+          defaultValue = "0"
+  )
+  public void setPairsMemoryMB(Integer value) {
+    if (value == null) {
+      pairsMemoryMB = 0;
+    } else {
+      pairsMemoryMB = value;
+    }
+  }
+
+  public Integer getPairsMemoryMB() {
+    return pairsMemoryMB;
+  }
+
+  private URL matrixFileUrl;
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The URL of where to export the matrixMetric of all pairs as a sparse matrix, with the terms in a file with .vocab.tsv appended, not used if left empty"
+  )
+  public void setMatrixFileUrl(URL u) {
+    matrixFileUrl = u;
+  }
+
+  public URL getMatrixFileUrl() {
+    return matrixFileUrl;
+  }
+
+  private String matrixMetric = "ppmi";
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The metric for the matrix: ppmi (positive pmi), prob, pmi, npmi, wpmi, chi2, chi2_p, student_t or student_t_p",
+          defaultValue = "ppmi"
+  )
+  public void setMatrixMetric(String value) {
+    if (value == null || value.isEmpty()) {
+      matrixMetric = "ppmi";
+    } else {
+      matrixMetric = value;
+    }
+  }
+
+  public String getMatrixMetric() {
+    return matrixMetric;
+  }
+
+  private String matrixFormat = "csr";
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The format of the matrix: csr for a binary compressed sparse row file, mtx for a Matrix Market file",
+          defaultValue = "csr"
+  )
+  public void setMatrixFormat(String value) {
+    if (value == null || value.isEmpty()) {
+      matrixFormat = "csr";
+    } else {
+      matrixFormat = value;
+    }
+  }
+
+  public String getMatrixFormat() {
+    return matrixFormat;
+  }
+  
 
   ////////////////////// FIELDS
   // these fields will contain references to objects which are shared
@@ -411,15 +804,6 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
     return str;
   }
   
-  private void incrementHashMapInteger(Map<String,Integer> map, String k, int by) {
-    Integer curval = map.get(k);
-    if(curval == null) {
-      map.put(k, by);
-    } else {
-      map.put(k, by+curval);
-    }
-  }
-  
   ////////////////////// PROCESSING
   @Override
   protected void process(Document document) {
@@ -427,15 +811,17 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
     //System.out.println("!!! DEBUG: processing document "+document.getName());
     //fireStatusChanged("CorpusStatsCollocationsPR: running on " + document.getName() + "...");
     
-    if(corpusStats == null) {
-      corpusStats = (CorpusStatsCollocationsData)getSharedData().get("corpusStats");
-    }
-    if(term2tf == null) {
-      @SuppressWarnings("unchecked")
-      Map<String,Double>tmp = (Map<String,Double>)getSharedData().get("term2tf");
-      term2tf = tmp;
-      corpusStats = (CorpusStatsCollocationsData)getSharedData().get("corpusStats");
-    }
+    // the data for each of the window sizes, the first is also corpusStats
+    CorpusStatsCollocationsData[] corpusStatsByWindow = 
+            (CorpusStatsCollocationsData[])getSharedData().get("corpusStatsByWindow");
+    int[] windowSizes = (int[])getSharedData().get("windowSizes");
+    corpusStats = corpusStatsByWindow[0];
+    // only the duplicate which ran beforeFirstDocument has these set already,
+    // the others may still have them from a previous run
+    haveTwoTypes = corpusStats.haveTwoTypes;
+    tfById = (float[])getSharedData().get("tfById");
+    // the probabilities to keep the occurrences of terms, if subsampling
+    float[] keepById = (float[])getSharedData().get("keepById");
     if (isInterrupted()) {
       throw new GateRuntimeException("AssignStatsTfIdfPR has been interrupted");
     }    
@@ -459,6 +845,14 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
     inputTypes.add(inputType2);    
     inputAnns = inputAS.get(inputTypes);
 
+    // the random choices only depend on the document: its name, length and
+    // number of input annotations, so that documents with the same default 
+    // name still get different samples. The seeds get scrambled because 
+    // similar seeds give similar first random numbers
+    long seed = LongLongHashMap.hash(String.valueOf(document.getName()).hashCode());
+    seed = LongLongHashMap.hash(seed + document.getContent().size());
+    seed = LongLongHashMap.hash(seed + inputAnns.size());
+
     AnnotationSet splitAnns = null;
     if(getSplitAnnotationType() != null && !getSplitAnnotationType().isEmpty()) {
       splitAnns = inputAS.get(getSplitAnnotationType());
@@ -474,11 +868,32 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
 
     // we first do the counting locally then add everythin to the global map.
     // So we need to count terms, pairs and contexts. 
-    // term2counts is only used if we have different types
-    HashMap<String, Integer> term1counts = new HashMap<>();
-    HashMap<String, Integer> term2counts = new HashMap<>();
-    HashMap<String, Integer> paircounts = new HashMap<>();
-    int contexts = 0;
+    // term2counts is only used if we have different types. 
+    // The terms are represented by their id from the global term dictionary 
+    // and pairs by the key packed from the two term ids.
+    // The term dictionary is shared by the data for all window sizes, so 
+    // the spans only need to get extracted once and each window size has
+    // its own counter.
+    TermDictionary terms = corpusStats.terms;
+    if(counters == null || counters.length != windowSizes.length || 
+            counters[0].haveTwoTypes() != haveTwoTypes || 
+            counters[0].orderIsSignificant() != corpusStats.orderIsSignificant) {
+      counters = new CollocationsCounter[windowSizes.length];
+      for (int w = 0; w < windowSizes.length; w++) {
+        counters[w] = new CollocationsCounter(haveTwoTypes, corpusStats.orderIsSignificant);
+      }
+    }
+    // in the first pass of the two-pass mode, only the terms are counted 
+    // and the spans get spilled for the second pass, the spills are shared
+    // by all window sizes which need them
+    SpanSpill spill = null;
+    for (int w = 0; w < windowSizes.length; w++) {
+      CorpusStatsCollocationsData data = corpusStatsByWindow[w];
+      if(data.spills != null && spill == null) {
+        spill = data.spills.computeIfAbsent(duplicateId, id -> new SpanSpill());
+      }
+      configureCounter(counters[w], data);
+    }
 
     long startTime = Benchmark.startPoint();
 
@@ -489,306 +904,399 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
     // process first. If we also do sliding windows, then that logic is done 
     // separately for the spans
     
-    List<Long> spanFromOffsets = new ArrayList<>();
-    List<Long> spanToOffsets = new ArrayList<>();
+    long[] spanFromOffsets;
+    long[] spanToOffsets;
+    int nSpans;
     
     if(containingAnns == null || containingAnns.isEmpty()) {
-      spanFromOffsets.add(0L);
-      spanToOffsets.add(document.getContent().size());
+      spanFromOffsets = new long[] { 0L };
+      spanToOffsets = new long[] { document.getContent().size() };
+      nSpans = 1;
     } else {
+      spanFromOffsets = new long[containingAnns.size()];
+      spanToOffsets = new long[containingAnns.size()];
+      nSpans = 0;
       for (Annotation containingAnn : containingAnns) {
-        spanFromOffsets.add(containingAnn.getStartNode().getOffset());
-        spanToOffsets.add(containingAnn.getEndNode().getOffset());        
+        spanFromOffsets[nSpans] = containingAnn.getStartNode().getOffset();
+        spanToOffsets[nSpans] = containingAnn.getEndNode().getOffset();        
+        nSpans++;
       }
     }
-    //System.out.println("DEBUG: span from offsets: "+spanFromOffsets);
-    //System.out.println("DEBUG: span to offsets: "+spanToOffsets);
 
     // if a split annotation type has been specified, go through all the spans
     // and get the contained split annotations and re-create the from and to
     // offsets again
     if (splitAnns!=null) {
-      List<Long> oldSpanFromOffsets = spanFromOffsets;
-      List<Long> oldSpanToOffsets = spanToOffsets;
-      spanFromOffsets = new ArrayList<>();
-      spanToOffsets = new ArrayList<>();
+      SortedAnnotations splits = new SortedAnnotations(splitAnns);
+      long[] oldSpanFromOffsets = spanFromOffsets;
+      long[] oldSpanToOffsets = spanToOffsets;
+      int nOldSpans = nSpans;
+      spanFromOffsets = new long[nOldSpans + splits.size()];
+      spanToOffsets = new long[nOldSpans + splits.size()];
+      nSpans = 0;
       // go throw each span
-      for(int i=0;i<oldSpanFromOffsets.size();i++) {
-        long oldFrom = oldSpanFromOffsets.get(i);
-        long oldTo = oldSpanToOffsets.get(i);
+      for(int i=0;i<nOldSpans;i++) {
+        long oldFrom = oldSpanFromOffsets[i];
+        long oldTo = oldSpanToOffsets[i];
         if(oldFrom==oldTo) {
           continue;
         }
-        AnnotationSet splits = splitAnns.get(oldFrom,oldTo);        
-        spanFromOffsets.add(oldFrom);
-        if(splits.size()>0) {
-          List<Annotation> sanns = splits.inDocumentOrder();
-          // add all the spans from the start of the old one to each of the 
-          // contained splits to the end of the old one
-          for(Annotation sann : sanns) {
-            spanToOffsets.add(sann.getStartNode().getOffset());
-            spanFromOffsets.add(sann.getEndNode().getOffset());
-          }
+        int[] inSplits = splits.select(oldFrom, oldTo);
+        if(nSpans + inSplits.length + 1 > spanFromOffsets.length) {
+          // only if spans overlap, so that a split is in more than one
+          int newLength = Math.max(2 * spanFromOffsets.length, nSpans + inSplits.length + 1);
+          spanFromOffsets = Arrays.copyOf(spanFromOffsets, newLength);
+          spanToOffsets = Arrays.copyOf(spanToOffsets, newLength);
+        }
+        // add all the spans from the start of the old one to each of the 
+        // contained splits to the end of the old one
+        spanFromOffsets[nSpans] = oldFrom;
+        for(int s : inSplits) {
+          spanToOffsets[nSpans++] = splits.getStart(s);
+          spanFromOffsets[nSpans] = splits.getEnd(s);
         }
-        spanToOffsets.add(oldTo);
+        spanToOffsets[nSpans++] = oldTo;
       }
-      //System.out.println("DEBUG: after splits span from offsets: "+spanFromOffsets);
-      //System.out.println("DEBUG: after splits span to offsets: "+spanToOffsets);
     }
 
-    
-    // we re-use these sets for every context to figure out which unique
-    // pairs and terms we find in the context.
-    HashSet<String> term1sForContext = new HashSet<>();
-    HashSet<String> term2sForContext = new HashSet<>();
-    HashSet<String> pairsForContext = new HashSet<>();
-
-    for(int i=0;i<spanFromOffsets.size();i++) {
-      long fromOffset = spanFromOffsets.get(i);
-      long toOffset = spanToOffsets.get(i);
-      // get the terms inside that span in document order as a list 
-      List<Annotation> inAnns = inputAnns.get(fromOffset, toOffset).inDocumentOrder();
-      if(inAnns.size() < 2) {
-        continue; // Spans with less than 2 elements are ignored
-      }
-      
-      // we have a span to process. We do this by extracting the strings 
-      // and processing by string index now, instead of using offsets any more
-      List<String> strings = new ArrayList<>();           
-      List<Integer> anntypes = new ArrayList<>();
-
-      for (Annotation ann : inAnns) {
-        strings.add(getStringForAnn(ann));
-        if(ann.getType().equals(inputType1)) {
-          anntypes.add(1);
-        } else {
-          anntypes.add(2);
+    // The input annotations get sorted once, each annotation gets its term 
+    // id, type and eligibility the first time it is in a span
+    DocumentTerms docTerms = new DocumentTerms(new SortedAnnotations(inputAnns), terms, keepById, seed);
+    long nTokens = 0;
+    long nTokensKept = 0;
+
+    ForkJoinPool pool = (ForkJoinPool)getSharedData().get("documentPool");
+    if(pool != null && docTerms.size() >= minAnnotationsForParallel) {
+      long[] tokens = countInParallel(pool, docTerms, spanFromOffsets, spanToOffsets, nSpans, 
+              corpusStatsByWindow, windowSizes, spill, seed);
+      nTokens = tokens[0];
+      nTokensKept = tokens[1];
+    } else {
+      for(int i=0;i<nSpans;i++) {
+        // get the terms inside that span in document order
+        int[] inAnns = docTerms.anns.select(spanFromOffsets[i], spanToOffsets[i]);
+        if(inAnns.length < 2) {
+          continue; // Spans with less than 2 elements are ignored
         }
-      }
-      //System.out.println("DEBUG: strings for span: "+strings);
-      //System.out.println("DEBUG: anntypes for span: "+anntypes);
-
-      int spanLength = strings.size();
-      // Now that we have an array of strings and another of types, we can
-      // go through each window and then for each window do the pairs counting
-      int workingSlWSize = spanLength;
-      if(getSlidingWindowSize()>0 && getSlidingWindowSize() < spanLength) {
-        workingSlWSize = getSlidingWindowSize();
-      }
-      // now iterate the sliding window as often inside the span as possible
-      int maxWindowIndex = spanLength-workingSlWSize;
-      //System.out.println("DEBUG: nrWindows: "+nrWindows);
-      // Iterate over the contexts, once we are here, each context gets 
-      // counted, no matter if we actually find a pair inside (if two different types)
-      for(int k=0; k<=maxWindowIndex; k++) {
-        // count the context
-        term1sForContext.clear();
-        term2sForContext.clear();
-        pairsForContext.clear();
-        
+
+        // we have a span to process. We do this by extracting the term ids,
+        // types and whether the term can be used at all and process 
+        // by index now, instead of using offsets any more
+        int[] ids = new int[inAnns.length];
+        byte[] types = new byte[inAnns.length];
+        boolean[] eligible = new boolean[inAnns.length];
+        int spanLength = docTerms.getSpan(inAnns, ids, types, eligible);
+        nTokens += inAnns.length;
+        nTokensKept += spanLength;
+        if(spanLength < 2) {
+          continue;
+        }
+        // Each window position (or the whole span if there is no sliding 
+        // window) gets counted as a context, no matter if we actually find 
+        // a pair inside.
         // TODO: we need to find out which contexts exactly to count!
         // Currently we count contexts even if there is no pair or not even
         // a term in them (if we filter by mintf)
-        contexts += 1;
-        
-        if(haveTwoTypes) {
-          // If we have two term types, we need to iterate over type one in one loop
-          // and type 2 in another and find and count separately. Also, in that 
-          // case the first part of a pair is always from type 1 and the second from
-          // type 2. 
-          // We iterate over the whole window and look at each term and depending
-          // on type add it to the set. If it is type 1 we also iterate over the 
-          // same window fully to find all strings of type 2 and build a pair.
-          // We could avoid looping over all n elements for each element of type 1
-          // but that would require constructing another index array first which 
-          // may end up being slower
-          for (int m = 0; m < workingSlWSize; m++) {
-            String term = strings.get(k+m);
-            int thetype = anntypes.get(k+m);
-            if(thetype==1) { 
-              // NOTE: if we have two types then filtering by tf from the tfFile 
-              // is only done for the first term!
-              if(term2tf != null) {
-                Double term_tf = term2tf.get(term);
-                if(term_tf == null || term_tf < getMinTf()) {
-                  continue; 
-                }
-              }
-              term1sForContext.add(term);              
-              for (int n = 0; n < workingSlWSize; n++) {
-                if(thetype!=anntypes.get(k+n)) {
-                  pairsForContext.add(term+"\t"+strings.get(k+n));
-                }
-              }
-            } else { 
-              term2sForContext.add(term);            
-            }
-          } // outer: m
-          //System.out.println("DEBUG: term1s for context: "+term1sForContext);
-          //System.out.println("DEBUG: term2s for context: "+term2sForContext);
-          //System.out.println("DEBUG: pairs for context: "+pairsForContext);
-          for(String t4c : term1sForContext) {
-            incrementHashMapInteger(term1counts,t4c,1);
-          }
-          for(String t4c : term2sForContext) {
-            incrementHashMapInteger(term2counts,t4c,1);
-          }
-          for(String p4c : pairsForContext) {
-            incrementHashMapInteger(paircounts,p4c,1);
-          }
-          
-        } else {
-          // If we just have one term type: got through each string, then
-          // find pairs by going through all strings following that string
-          for (int m = 0; m < workingSlWSize; m++) {
-            String term1 = strings.get(k+m);
-            if(term2tf != null ) {
-              Double term_tf = term2tf.get(term1);
-              if(term_tf == null || term_tf < getMinTf()) {
-                continue; 
-              }
-            }
-            term1sForContext.add(term1);
-            for (int n = m + 1; n < workingSlWSize; n++) {
-              String term2 = strings.get(k+n);
-              if(term2tf != null ) {
-                Double term_tf = term2tf.get(term2);
-                if(term_tf == null || term_tf < getMinTf()) {
-                  continue; 
-                }
-              }              
-              term1sForContext.add(term1);  
-              if(getOrderIsSignificant()) {
-                // NOTE: for now we do not add pairs of identical words because of 
-                // the difficulty to find a counts for chi2 by inclusion/exclusion
-                if(!term1.equals(term2)) {
-                  pairsForContext.add(term1+"\t"+term2);
-                }
-              } else {
-              if(term1.compareTo(term2) < 0) {
-                //System.out.print(term+"|"+term2+" ");
-                pairsForContext.add(term1+"\t"+term2);
-              } else if(term1.compareTo(term2) > 0) {
-                //System.out.print(term2+"|"+term+" ");
-                pairsForContext.add(term2+"\t"+term1);
-              } else {
-                // if they are equal we do not add a pair
-                // We could but then we would need to find out how to calculate
-                // the counts for chi2 properly since inclusion/exclusion only
-                // works for different terms in the pair
-              }       
-              }
-            } // inner for: m
-          } // outer for: n
-          //System.out.println("DEBUG: term1s for context: "+term1sForContext);
-          //System.out.println("DEBUG: pairs for context: "+pairsForContext);
-          for(String t4c : term1sForContext) {
-            incrementHashMapInteger(term1counts,t4c,1);
-          }
-          for(String p4c : pairsForContext) {
-            incrementHashMapInteger(paircounts,p4c,1);
-          }
-        } // process window if we have just one type
+        for (int w = 0; w < windowSizes.length; w++) {
+          counters[w].setSeed(spanSeed(seed, i, w, windowSizes.length));
+          counters[w].countSpan(ids, types, eligible, spanLength, windowSizes[w]);
+        }
+        if(spill != null) {
+          spill.write(ids, types, eligible, spanLength);
+        }
+      } // for spans
 
-      }
-      
-            
-      
-    } // for spans
-
-    //System.out.println("DEBUG: term1counts for document "+document.getName()+": "+term1counts);
-    //System.out.println("DEBUG: term1counts for document "+document.getName()+": "+term2counts);
-    //System.out.println("DEBUG: paircounts for document "+document.getName()+": "+paircounts);
-    //System.out.println("DEBUG: contexts for document "+document.getName()+": "+contexts);
-      
-    for (String term : term1counts.keySet()) {
-      //System.err.println("DEBUG: add term="+term+" count="+termcounts.get(term));
-      corpusStats.countsTerms1.computeIfAbsent(term, (var -> new LongAdder())).add(term1counts.get(term));
-    }
-    if(haveTwoTypes) {
-      for (String term : term2counts.keySet()) {
-        //System.err.println("DEBUG: add term="+term+" count="+termcounts.get(term));
-        corpusStats.countsTerms2.computeIfAbsent(term, (var -> new LongAdder())).add(term2counts.get(term));
+      //System.out.println("DEBUG: term1counts for document "+document.getName()+": "+term1counts);
+      //System.out.println("DEBUG: term1counts for document "+document.getName()+": "+term2counts);
+      //System.out.println("DEBUG: paircounts for document "+document.getName()+": "+paircounts);
+      //System.out.println("DEBUG: contexts for document "+document.getName()+": "+contexts);
+
+      for (int w = 0; w < windowSizes.length; w++) {
+        addCounts(corpusStatsByWindow[w], counters[w], terms);
       }
     }
-    for (String pair : paircounts.keySet()) {
-      //System.err.println("DEBUG: add pair="+pair+" count="+paircounts.get(pair));
-      corpusStats.countsPairs.computeIfAbsent(pair, (var -> new LongAdder())).add(paircounts.get(pair));
+    for (CorpusStatsCollocationsData data : corpusStatsByWindow) {
+      data.nDocs.add(1);
+      data.nTokens.add(nTokens);
+      data.nTokensKept.add(nTokensKept);
     }
-    corpusStats.totalContexts.add(contexts);
-
-    corpusStats.nDocs.add(1);
+    metrics.recordTokens(nTokens);
     benchmarkCheckpoint(startTime, "__CollocationsProcess");
 
     //fireProcessFinished();
     //fireStatusChanged("CorpusStatsCollocations: processing complete!");
   }
 
-  
-  
+  // Set up a counter for the spans of a document
+  private static void configureCounter(CollocationsCounter counter, CorpusStatsCollocationsData data) {
+    counter.reset();
+    counter.setCounting(true, data.spills == null);
+    counter.setCountBothOrders(data.countsPairsBothOrders != null);
+    counter.setMaxPairsPerContext(data.maxPairsPerContext, 
+            data.maxPairsPerContext > 0 ? new Random() : null);
+    counter.setPairable(data.pairable1ById, data.pairable2ById);
+  }
+
+  // Add the counts of a counter to the global counts
+  private void addCounts(CorpusStatsCollocationsData data, CollocationsCounter counter, TermDictionary terms) {
+    long startTime = System.nanoTime();
+    counter.term1counts.forEach((id, count) -> 
+      data.countsTerms1.computeIfAbsent(terms.getTerm((int)id), (var -> new LongAdder())).add(count)
+    );
+    if(haveTwoTypes) {
+      counter.term2counts.forEach((id, count) -> 
+        data.countsTerms2.computeIfAbsent(terms.getTerm((int)id), (var -> new LongAdder())).add(count)
+      );
+    }
+    data.addPairCounts(counter);
+    data.totalContexts.add(counter.contexts);
+    metrics.recordMerge(System.nanoTime() - startTime);
+  }
+
+  // The seed for the random sample of pairs of a span and window size, 
+  // the random choices only depend on the document and the span, so that
+  // they are the same no matter if the document is processed in parallel.
+  // The odd seeds are for the pairs, the even ones for subsampling.
+  private static long spanSeed(long seed, int span, int w, int nWindowSizes) {
+    return LongLongHashMap.hash(seed + 2L * ((long) span * nWindowSizes + w) + 1);
+  }
+
   /**
-   * Load a list of term frequencies for term 1. If a tf file is specified
-   * then a term1 is only considered at all if the tf found for it is at least
-   * the specified mintf.
-   * @param term2tf a pre-allocated map from term to frequency which will get 
-   * filled
+   * The term id, type, eligibility and subsampling decision for each 
+   * annotation of a document, by the index in the sorted annotations.
+   * They get found the first time they are needed, or all at once in 
+   * parallel for large documents.
    */
-  protected void loadTfFile(Map<String,Double> term2tf) {
-      boolean tryOpen;
-      boolean isGzip = tfFileUrl.toExternalForm().endsWith(".gz");
-      if (UrlUtils.isFile(tfFileUrl)) {
-        tryOpen = Files.fileFromURL(tfFileUrl).exists();
+  private class DocumentTerms {
+    final SortedAnnotations anns;
+    final TermDictionary terms;
+    final float[] keepById;
+    final long seed;
+    final int[] ids;
+    final byte[] types;
+    final boolean[] eligible;
+    final boolean[] kept;
+
+    DocumentTerms(SortedAnnotations anns, TermDictionary terms, float[] keepById, long seed) {
+      this.anns = anns;
+      this.terms = terms;
+      this.keepById = keepById;
+      this.seed = seed;
+      ids = new int[anns.size()];
+      Arrays.fill(ids, -1);
+      types = new byte[anns.size()];
+      eligible = new boolean[anns.size()];
+      kept = new boolean[anns.size()];
+    }
+
+    int size() {
+      return anns.size();
+    }
+
+    void resolve(int index) {
+      Annotation ann = anns.get(index);
+      String str = getStringForAnn(ann);
+      int id = terms.intern(str);
+      types[index] = ann.getType().equals(inputType1) ? (byte)1 : (byte)2;
+      // terms not in the tf file are not eligible: new terms get an id after
+      // all the terms in the file, terms which were already in the 
+      // dictionary, e.g. from reused data, have NaN as their tf
+      eligible[index] = tfById == null || (id < tfById.length && tfById[id] >= minTf);
+      // with subsampling, each occurrence is kept or dropped once for all 
+      // spans, with a random number which only depends on the index
+      if (keepById == null || id >= keepById.length) {
+        kept[index] = true;
       } else {
-        tryOpen = UrlUtils.exists(tfFileUrl);
+        float random = (LongLongHashMap.hash(seed + 2L * index) >>> 40) * 0x1.0p-24f;
+        kept[index] = random < keepById[id];
       }
-      if (tryOpen) {
-        try (
-                InputStream is = tfFileUrl.openStream();
-                InputStream gis = isGzip ? new GZIPInputStream(is) : is;
-                InputStreamReader isr = new InputStreamReader(is,"UTF-8");
-                BufferedReader in = new BufferedReader(isr);
-            ) {
-          String inline;
-          boolean isHeader = true;
-          int idxTerm = -1;
-          int idxTf = -1;
-          int rowNr = 0;
-          while((inline = in.readLine())!=null) {
-            rowNr += 1;
-            String[] fields = inline.split("\\t");
-            if(isHeader) {
-              isHeader = false;
-              // find the columns with header "term" and "tf" and remember
-              for(int i=0; i<fields.length; i++) {
-                if(fields[i].equals("term")) {
-                  idxTerm = i;
-                } else if(fields[i].equals("tf")) {
-                  idxTf = i;
-                }
-              }
-              if(idxTerm < 0 || idxTf < 0) {
-                throw new GateRuntimeException("TfIdfFile does not contain headers 'term' and 'tf'");
-              }
-            } else {
-              if(fields.length <= idxTerm || fields.length <= idxTf) {
-                throw new GateRuntimeException("TfIdf Row has not enough fields to find term and tf: "+rowNr);
-              }
-              String term = fields[idxTerm];
-              if(!getCaseSensitive()) {
-                term = term.toLowerCase(ccLocale);
-              }
-              Double tf = Double.parseDouble(fields[idxTf]);
-              term2tf.put(term,tf);
-            }
+      ids[index] = id;
+    }
+
+    // Get the terms of the annotations of a span, without the occurrences
+    // dropped by subsampling, and return their number
+    int getSpan(int[] inAnns, int[] spanIds, byte[] spanTypes, boolean[] spanEligible) {
+      int length = 0;
+      for (int index : inAnns) {
+        if (ids[index] < 0) {
+          resolve(index);
+        }
+        if (!kept[index]) {
+          continue;
+        }
+        spanIds[length] = ids[index];
+        spanTypes[length] = types[index];
+        spanEligible[length] = eligible[index];
+        length++;
+      }
+      return length;
+    }
+  }
+
+  // The number of term occurrences a task should count at least
+  private static final int MIN_TOKENS_PER_TASK = 4096;
+
+  /**
+   * Count the spans of a large document with several tasks of the pool.
+   * 
+   * First the terms of all annotations get found in parallel, then the 
+   * spans get extracted in parallel, then the spans get counted in 
+   * parallel: spans get grouped into tasks with about the same number of
+   * term occurrences, and long spans with a sliding window get split into
+   * ranges of window positions, where the tokens of the last windows of 
+   * one range are also in the first windows of the next. Each task has 
+   * its own counter and adds its counts to the global counts when it is 
+   * done. A span which is a single context cannot be split: counting all 
+   * its pairs takes time quadratic in its length, with maxPairsPerContext
+   * the pairs get sampled from its distinct terms, which takes time linear
+   * in its length plus the limit.
+   * 
+   * @return the number of term occurrences in the spans and how many of 
+   * them were kept by subsampling
+   */
+  private long[] countInParallel(ForkJoinPool pool, DocumentTerms docTerms, 
+          long[] spanFromOffsets, long[] spanToOffsets, int nSpans, 
+          CorpusStatsCollocationsData[] corpusStatsByWindow, int[] windowSizes, 
+          SpanSpill spill, long seed) {
+    int nTasks = 4 * pool.getParallelism();
+    List<Future<?>> futures = new ArrayList<>();
+    int n = docTerms.size();
+    int annsPerTask = Math.max(1, (n + nTasks - 1) / nTasks);
+    for (int from = 0; from < n; from += annsPerTask) {
+      int fromIndex = from;
+      int toIndex = Math.min(n, from + annsPerTask);
+      futures.add(pool.submit(() -> {
+        for (int index = fromIndex; index < toIndex; index++) {
+          docTerms.resolve(index);
+        }
+      }));
+    }
+    waitFor(futures);
+
+    int[][] spanIds = new int[nSpans][];
+    byte[][] spanTypes = new byte[nSpans][];
+    boolean[][] spanEligible = new boolean[nSpans][];
+    int[] spanLengths = new int[nSpans];
+    int[] spanSizes = new int[nSpans];
+    int spansPerTask = Math.max(1, (nSpans + nTasks - 1) / nTasks);
+    for (int from = 0; from < nSpans; from += spansPerTask) {
+      int fromSpan = from;
+      int toSpan = Math.min(nSpans, from + spansPerTask);
+      futures.add(pool.submit(() -> {
+        for (int i = fromSpan; i < toSpan; i++) {
+          int[] inAnns = docTerms.anns.select(spanFromOffsets[i], spanToOffsets[i]);
+          spanSizes[i] = inAnns.length;
+          if (inAnns.length < 2) {
+            continue;
           }
-        } catch(Exception ex) {
-          throw new GateRuntimeException("Could not read tfIdfFile",ex);
+          spanIds[i] = new int[inAnns.length];
+          spanTypes[i] = new byte[inAnns.length];
+          spanEligible[i] = new boolean[inAnns.length];
+          spanLengths[i] = docTerms.getSpan(inAnns, spanIds[i], spanTypes[i], spanEligible[i]);
+        }
+      }));
+    }
+    waitFor(futures);
+
+    long nTokens = 0;
+    long nTokensKept = 0;
+    for (int i = 0; i < nSpans; i++) {
+      if (spanSizes[i] < 2) {
+        continue;
+      }
+      nTokens += spanSizes[i];
+      nTokensKept += spanLengths[i];
+      if (spill != null && spanLengths[i] >= 2) {
+        spill.write(spanIds[i], spanTypes[i], spanEligible[i], spanLengths[i]);
+      }
+    }
+
+    long tokensPerTask = Math.max(MIN_TOKENS_PER_TASK, nTokensKept / nTasks);
+    for (int w = 0; w < windowSizes.length; w++) {
+      int windowSize = windowSizes[w];
+      int windowIndex = w;
+      CorpusStatsCollocationsData data = corpusStatsByWindow[w];
+      // the spans of the current task and the ranges of their positions
+      List<int[]> pieces = new ArrayList<>();
+      long piecesTokens = 0;
+      for (int i = 0; i < nSpans; i++) {
+        int length = spanLengths[i];
+        if (length < 2) {
+          continue;
         }
+        if (windowSize > 0 && windowSize < length && length > tokensPerTask) {
+          int windowsPerTask = (int) Math.max(1, tokensPerTask - windowSize + 1);
+          for (int[] range : CollocationsCounter.splitWindows(length, windowSize, windowsPerTask)) {
+            List<int[]> piece = new ArrayList<>();
+            piece.add(new int[] { i, range[0], range[1] });
+            futures.add(pool.submit(() -> countPieces(piece, spanIds, spanTypes, spanEligible, 
+                    data, windowSize, windowIndex, windowSizes.length, seed)));
+          }
+          continue;
+        }
+        pieces.add(new int[] { i, 0, length });
+        piecesTokens += length;
+        if (piecesTokens >= tokensPerTask) {
+          List<int[]> task = pieces;
+          futures.add(pool.submit(() -> countPieces(task, spanIds, spanTypes, spanEligible, 
+                  data, windowSize, windowIndex, windowSizes.length, seed)));
+          pieces = new ArrayList<>();
+          piecesTokens = 0;
+        }
+      }
+      if (!pieces.isEmpty()) {
+        List<int[]> task = pieces;
+        futures.add(pool.submit(() -> countPieces(task, spanIds, spanTypes, spanEligible, 
+                data, windowSize, windowIndex, windowSizes.length, seed)));
+      }
+    }
+    waitFor(futures);
+    return new long[] { nTokens, nTokensKept };
+  }
+
+  // Count the pieces of spans of a task with its own counter: each piece 
+  // is the span index and the range of positions.
+  private void countPieces(List<int[]> pieces, int[][] spanIds, byte[][] spanTypes, 
+          boolean[][] spanEligible, CorpusStatsCollocationsData data, 
+          int windowSize, int w, int nWindowSizes, long seed) {
+    CollocationsCounter counter = new CollocationsCounter(data.haveTwoTypes, data.orderIsSignificant);
+    configureCounter(counter, data);
+    for (int[] piece : pieces) {
+      int i = piece[0];
+      counter.setSeed(spanSeed(seed, i, w, nWindowSizes));
+      if (piece[1] == 0) {
+        counter.countSpan(spanIds[i], spanTypes[i], spanEligible[i], piece[2], windowSize);
+      } else {
+        counter.countSpan(
+                Arrays.copyOfRange(spanIds[i], piece[1], piece[2]),
+                Arrays.copyOfRange(spanTypes[i], piece[1], piece[2]),
+                Arrays.copyOfRange(spanEligible[i], piece[1], piece[2]),
+                piece[2] - piece[1], windowSize);
+      }
+    }
+    addCounts(data, counter, data.terms);
+  }
+
+  // Wait for all the tasks and remove them from the list
+  private static void waitFor(List<Future<?>> futures) {
+    try {
+      for (Future<?> future : futures) {
+        future.get();
       }
+    } catch (Exception ex) {
+      throw new GateRuntimeException("Error when processing the document in parallel", ex);
+    } finally {
+      futures.clear();
+    }
   }
+
+  
   
   protected boolean haveTwoTypes = false;
-  protected Map<String,Double> term2tf = null;
+  // the tf from the tf file, indexed by term id, if a tf file is used
+  protected float[] tfById = null;
+  // the counter for each window size for the documents processed by this duplicate
+  private transient CollocationsCounter[] counters = null;
 
   @Override
   protected void beforeFirstDocument(Controller ctrl) {
@@ -811,39 +1319,67 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
     if(getMinContextsT2()==null) {
       minContextsT2 = minContextsT1;
     }
+    if((topK > 0 || topKPerTerm1 > 0) && 
+            !Arrays.asList(PairStatsBatch.METRICS).contains(topKMetric)) {
+      throw new GateRuntimeException("Not a known metric for topKMetric: "+topKMetric);
+    }
+    if(subsamplingThreshold > 0.0 && 
+            (tfDataFileUrl == null || tfDataFileUrl.toExternalForm().isEmpty()) &&
+            (tfFileUrl == null || tfFileUrl.toExternalForm().isEmpty())) {
+      throw new GateRuntimeException("subsamplingThreshold needs a tf file");
+    }
+    if(alsoUnordered) {
+      if(!getOrderIsSignificant() || !inputType1.equals(inputType2)) {
+        throw new GateRuntimeException("alsoUnordered needs orderIsSignificant and a single input annotation type");
+      }
+      if(getReuseExisting()) {
+        throw new GateRuntimeException("alsoUnordered cannot be used with reuseExisting");
+      }
+    }
+    if(haveMatrixFile()) {
+      if(!Arrays.asList(CorpusStatsCollocationsData.MATRIX_METRICS).contains(matrixMetric)) {
+        throw new GateRuntimeException("Not a known metric for matrixMetric: "+matrixMetric);
+      }
+      if(!"csr".equals(matrixFormat) && !"mtx".equals(matrixFormat)) {
+        throw new GateRuntimeException("Not a known format for matrixFormat: "+matrixFormat);
+      }
+    }
     
     
     // if reference null, create the global map
     // synchronized (syncObject) { // syncing done in caller
-      if(tfFileUrl!=null && !tfFileUrl.toExternalForm().isEmpty()) {
-        @SuppressWarnings("unchecked")
-        Map<String,Double> tmp_term2tf = (Map<String,Double>)getSharedData().get("term2tf");
-        if(tmp_term2tf==null) {
-          tmp_term2tf = new HashMap<>();
-          loadTfFile(tmp_term2tf);
-          getSharedData().put("term2tf",tmp_term2tf);
-          this.term2tf = tmp_term2tf;
-          System.out.println("INFO: loaded tf file, got terms: "+this.term2tf.size());
-        }
-        
-      }
-
-      corpusStats = (CorpusStatsCollocationsData)getSharedData().get("corpusStats");
-      if (corpusStats != null) {        
+      int[] windowSizes = parseWindowSizes();
+      CorpusStatsCollocationsData[] corpusStatsByWindow = 
+              (CorpusStatsCollocationsData[])getSharedData().get("corpusStatsByWindow");
+      if (corpusStatsByWindow != null) {        
         System.err.println("INFO: corpusStats already created, we are duplicate " + duplicateId + " of PR " + this.getName());
+        corpusStats = corpusStatsByWindow[0];
+        windowSizes = (int[])getSharedData().get("windowSizes");
       } else {
         System.err.println("INFO: creating corpusStats in duplicate " + duplicateId + " of PR " + this.getName());
-        corpusStats = new CorpusStatsCollocationsData();
-        corpusStats.nDocs = new LongAdder();
-        corpusStats.isCaseSensitive = getCaseSensitive();
-        corpusStats.ccLocale = new Locale(getCaseConversionLanguage());
-        corpusStats.minContexts_p = getMinContextsP();
-        corpusStats.minContexts_t1 = getMinContextsT1();
-        corpusStats.minContexts_t2 = getMinContextsT2();
-        corpusStats.haveTwoTypes = !inputType1.equals(inputType2);
+        corpusStatsByWindow = new CorpusStatsCollocationsData[windowSizes.length];
+        for (int w = 0; w < windowSizes.length; w++) {
+          corpusStatsByWindow[w] = newCorpusStats();
+          if (w > 0) {
+            // the same term ids for all window sizes
+            corpusStatsByWindow[w].terms = corpusStatsByWindow[0].terms;
+          }
+        }
+        corpusStats = corpusStatsByWindow[0];
         haveTwoTypes = corpusStats.haveTwoTypes;
-        corpusStats.laplaceCoefficient = getLaplaceCoefficient();
         getSharedData().put("corpusStats", corpusStats);
+        getSharedData().put("corpusStatsByWindow", corpusStatsByWindow);
+        getSharedData().put("windowSizes", windowSizes);
+        // the term dictionary is shared by all window sizes
+        CorpusStatsCollocationsData[] byWindow = corpusStatsByWindow;
+        metrics.setStatsSizes(
+                () -> byWindow[0].terms.size(),
+                () -> Arrays.stream(byWindow).mapToLong(data -> data.getPairsInMemory()).sum(),
+                () -> Arrays.stream(byWindow).mapToLong(data -> data.estimateMemory(false)).sum() + 
+                        byWindow[0].terms.estimateMemory());
+        if(minAnnotationsForParallel > 0) {
+          getSharedData().put("documentPool", new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
+        }
         System.err.println("INFO: corpusStats created and initialized in duplicate " + duplicateId + " of PR " + this.getName());
       }
       // Now at this point we have a CorpusStats instance for sure. However, 
@@ -851,12 +1387,135 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
       // NOTE: if the PR is run several times in a row, then when we arrive
       // here, the corpusstats object should always be initialized to empty,
       // since we always remove it after processing has finished. 
-      if(getReuseExisting()) {
-        corpusStats.load(dataFileUrl, sumsFileUrl, pairStatsFileUrl);
+      // The budget is set first so that loaded pairs can get spilled too
+      for (int w = 0; w < windowSizes.length; w++) {
+        if(pairsMemoryMB > 0) {
+          corpusStatsByWindow[w].countsPairs.setMemoryBudget(pairsMemoryMB * 1024L * 1024L);
+        }
+        if(getReuseExisting()) {
+          corpusStatsByWindow[w].load(urlForWindow(dataFileUrl, windowSizes, w), 
+                  urlForWindow(sumsFileUrl, windowSizes, w), urlForWindow(pairStatsFileUrl, windowSizes, w));
+        }
+      }
+      // The tf file gets loaded after the data so that we use the term
+      // ids of the dictionary we actually use for counting
+      TfTable tfTable = null;
+      if(tfDataFileUrl!=null && !tfDataFileUrl.toExternalForm().isEmpty()) {
+        tfTable = TfTable.fromTfIdfData(tfDataFileUrl, getCaseSensitive(), ccLocale);
+      } else if(tfFileUrl!=null && !tfFileUrl.toExternalForm().isEmpty()) {
+        tfTable = TfTable.fromTsv(tfFileUrl, getCaseSensitive(), ccLocale);
+      }
+      if(tfTable != null) {
+        float[] tmp_tfById = (float[])getSharedData().get("tfById");
+        if(tmp_tfById==null) {
+          tmp_tfById = tfTable.bind(corpusStats.terms);
+          getSharedData().put("tfById",tmp_tfById);
+          System.out.println("INFO: loaded tf file, got terms: "+tfTable.size());
+        }
+        this.tfById = tmp_tfById;
+        if(subsamplingThreshold > 0.0 && getSharedData().get("keepById") == null) {
+          getSharedData().put("keepById", 
+                  keepProbabilities(tmp_tfById, tfTable.getTotalTf(), subsamplingThreshold));
+        }
+      }
+      if(getTwoPass()) {
+        // the window sizes without a first pass file share the same spills
+        ConcurrentHashMap<Integer, SpanSpill> spills = null;
+        for (int w = 0; w < windowSizes.length; w++) {
+          URL url = urlForWindow(firstPassFileUrl, windowSizes, w);
+          if(haveFile(url)) {
+            corpusStatsByWindow[w].loadFirstPass(url, windowSizes[w]);
+          } else if(corpusStatsByWindow[w].spills == null) {
+            if(spills == null) {
+              spills = new ConcurrentHashMap<>();
+            }
+            corpusStatsByWindow[w].spills = spills;
+          }
+        }
       }
     // } // syncing done in caller
   }
 
+  // The probability to keep an occurrence of each term id with subsampling
+  private static float[] keepProbabilities(float[] tfById, double totalTf, double threshold) {
+    float[] ret = new float[tfById.length];
+    for (int id = 0; id < tfById.length; id++) {
+      double f = tfById[id] / totalTf;
+      // NaN for terms which are not in the tf file
+      if (f > threshold) {
+        ret[id] = (float) Math.min(1.0, (Math.sqrt(f / threshold) + 1.0) * threshold / f);
+      } else {
+        ret[id] = 1.0f;
+      }
+    }
+    return ret;
+  }
+
+  private CorpusStatsCollocationsData newCorpusStats() {
+    CorpusStatsCollocationsData data = new CorpusStatsCollocationsData();
+    data.nDocs = new LongAdder();
+    data.isCaseSensitive = getCaseSensitive();
+    data.ccLocale = new Locale(getCaseConversionLanguage());
+    data.minContexts_p = getMinContextsP();
+    data.minContexts_t1 = getMinContextsT1();
+    data.minContexts_t2 = getMinContextsT2();
+    data.haveTwoTypes = !inputType1.equals(inputType2);
+    data.orderIsSignificant = getOrderIsSignificant();
+    data.laplaceCoefficient = getLaplaceCoefficient();
+    data.saveThreads = getSaveThreads();
+    data.topK = getTopK();
+    data.topKMetric = getTopKMetric();
+    data.topKPerTerm1 = getTopKPerTerm1();
+    if(alsoUnordered) {
+      data.countsPairsBothOrders = new PairCounts();
+    }
+    data.subsamplingThreshold = getSubsamplingThreshold();
+    data.maxPairsPerContext = getMaxPairsPerContext();
+    return data;
+  }
+
+  // Save the data for a window size to all the output files, with the 
+  // insert added before the extension
+  private void saveCorpusStats(CorpusStatsCollocationsData data, int[] windowSizes, int w, String insert) {
+    data.save(urlForWindow(dataFileUrl, windowSizes, w, insert), urlForWindow(sumsFileUrl, windowSizes, w, insert), 
+            urlForWindow(pairStatsFileUrl, windowSizes, w, insert), getMinContextsT1());
+    if (haveMatrixFile()) {
+      data.saveMatrix(urlForWindow(matrixFileUrl, windowSizes, w, insert), getMatrixMetric(), getMatrixFormat());
+    }
+  }
+
+  private static URL urlForWindow(URL url, int[] windowSizes, int w, String insert) {
+    URL ret = urlForWindow(url, windowSizes, w);
+    if(ret == null || ret.toExternalForm().isEmpty() || insert.isEmpty()) {
+      return ret;
+    }
+    return UrlUtils.insertBeforeExtension(ret, insert);
+  }
+
+  // The URL for the files of a window size: if there is more than one
+  // window size, "-w" and the size get inserted before the extension
+  private static URL urlForWindow(URL url, int[] windowSizes, int w) {
+    if(url == null || url.toExternalForm().isEmpty() || windowSizes.length == 1) {
+      return url;
+    }
+    return UrlUtils.insertBeforeExtension(url, "-w" + windowSizes[w]);
+  }
+
+  private boolean haveMatrixFile() {
+    return matrixFileUrl != null && !matrixFileUrl.toExternalForm().isEmpty();
+  }
+
+  private boolean haveFile(URL url) {
+    if(url == null || url.toExternalForm().isEmpty()) {
+      return false;
+    }
+    if(UrlUtils.isFile(url)) {
+      return gate.util.Files.fileFromURL(url).exists();
+    } else {
+      return UrlUtils.exists(url);
+    }
+  }
+
   @Override
   protected void afterLastDocument(Controller ctrl, Throwable t) {
     synchronized (SYNC_OBJECT) {
@@ -864,28 +1523,84 @@ public class CorpusStatsCollocationsPR extends AbstractDocumentProcessor {
       // TODO: we had this here, but why do we need it?
       corpusStats = (CorpusStatsCollocationsData) sharedData.get("corpusStats");
       if (corpusStats != null) {
-        corpusStats.save(dataFileUrl, sumsFileUrl, pairStatsFileUrl, getMinContextsT1());
+        CorpusStatsCollocationsData[] corpusStatsByWindow = 
+                (CorpusStatsCollocationsData[]) sharedData.get("corpusStatsByWindow");
+        int[] windowSizes = (int[]) sharedData.get("windowSizes");
+        try {
+          for (int w = 0; w < windowSizes.length; w++) {
+            CorpusStatsCollocationsData data = corpusStatsByWindow[w];
+            if (data.spills != null) {
+              // the second pass of the two-pass mode
+              if (firstPassFileUrl != null && !firstPassFileUrl.toExternalForm().isEmpty()) {
+                data.saveFirstPass(urlForWindow(firstPassFileUrl, windowSizes, w), windowSizes[w]);
+              }
+              data.countPairsFromSpills(windowSizes[w]);
+            }
+            try {
+              saveCorpusStats(data, windowSizes, w, "");
+            } finally {
+              data.countsPairs.deleteRuns();
+            }
+            if (data.countsPairsBothOrders != null) {
+              CorpusStatsCollocationsData unordered = data.foldOrders();
+              try {
+                saveCorpusStats(unordered, windowSizes, w, "-unordered");
+              } finally {
+                unordered.countsPairs.deleteRuns();
+              }
+            }
+          }
+        } finally {
+          for (CorpusStatsCollocationsData data : corpusStatsByWindow) {
+            data.deleteSpills();
+            data.countsPairs.deleteRuns();
+          }
+        }
         // After each run, we clean up, so that the code before each run can 
         // recreate or reload the data as if it was the first time
         //!!!corpusStats.map = null;
         corpusStats = null;
-        term2tf = null;
+        tfById = null;
         sharedData.remove("corpusStats");
-        sharedData.remove("term2tf");
+        sharedData.remove("corpusStatsByWindow");
+        sharedData.remove("windowSizes");
+        sharedData.remove("tfById");
+        sharedData.remove("keepById");
+        shutdownDocumentPool();
       } // if corpusstats is not null
       benchmarkCheckpoint(startTime, "__TfIdfSave");
     }
   }
 
+  private void shutdownDocumentPool() {
+    ForkJoinPool pool = (ForkJoinPool) sharedData.remove("documentPool");
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
   @Override
   protected void finishedNoDocument(Controller ctrl, Throwable t) {
     // After each run, we clean up, so that the code before each run can 
     // recreate or reload the data as if it was the first time
     synchronized (SYNC_OBJECT) {
       //!!!corpusStats.map = null;
+      CorpusStatsCollocationsData[] corpusStatsByWindow = 
+              (CorpusStatsCollocationsData[]) sharedData.get("corpusStatsByWindow");
+      if (corpusStatsByWindow != null) {
+        for (CorpusStatsCollocationsData data : corpusStatsByWindow) {
+          data.deleteSpills();
+          data.countsPairs.deleteRuns();
+        }
+      }
       corpusStats = null;
+      tfById = null;
       sharedData.remove("corpusStats");
-      sharedData.remove("term2tf");
+      sharedData.remove("corpusStatsByWindow");
+      sharedData.remove("windowSizes");
+      sharedData.remove("tfById");
+      sharedData.remove("keepById");
+      shutdownDocumentPool();
     }
   }
 
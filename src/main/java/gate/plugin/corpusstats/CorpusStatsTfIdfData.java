@@ -48,12 +48,28 @@ public class CorpusStatsTfIdfData implements Serializable {
   public ConcurrentHashMap<String, TermStats> map;
   public LongAdder nDocs = null;
   public LongAdder nWords = null;  
+  // The distribution of document lengths, may be null for data saved by 
+  // older versions
+  public DocLengthHistogram docLengths = null;
   public boolean isCaseSensitive = true;
   public Locale ccLocale = new Locale("en");
   // If this is true, we check if anything that gets loaded is compatible,
   // otherwise we set from the loaded data
   public boolean isInitialized = false;
   
+  // The approximate number of bytes a term with its stats uses in memory
+  private static final int BYTES_PER_TERM = 200;
+
+  /**
+   * Estimate the heap memory used by the stats, without locking, for 
+   * monitoring.
+   * @return number of bytes
+   */
+  public long estimateMemory() {
+    ConcurrentHashMap<String, TermStats> tmp = map;
+    return tmp == null ? 0 : (long) tmp.size() * BYTES_PER_TERM;
+  }
+
   public void load(URL dataUrl, URL sumsTsvUrl, URL statsTsvUrl) {
     boolean haveLoaded = false;
     if(dataUrl != null && !dataUrl.toExternalForm().isEmpty()) {
@@ -76,6 +92,9 @@ public class CorpusStatsTfIdfData implements Serializable {
             map = other.map;
             nDocs = other.nDocs;
             nWords = other.nWords;
+            if(other.docLengths != null) {
+              docLengths = other.docLengths;
+            }
             // NOTE: if the loaded stats file has a different case sensitivity setting, 
             // we throw an error, this does not make sense to have!
             if(isInitialized && (isCaseSensitive != other.isCaseSensitive)) {
@@ -123,6 +142,18 @@ public class CorpusStatsTfIdfData implements Serializable {
           } catch (Exception ex) {
             throw new GateRuntimeException("Could not save tfidf file", ex);
           }
+          if (docLengths != null) {
+            File dlfile = gate.util.Files.fileFromURL(
+                    UrlUtils.insertBeforeExtension(sumTsvUrl, "-doclengths"));
+            System.err.println("Storing document lengths to file " + dlfile);
+            try (
+                    FileOutputStream fos = new FileOutputStream(dlfile);
+                    PrintWriter pw = new PrintWriter(fos)) {
+              docLengths.writeTsv(pw);
+            } catch (Exception ex) {
+              throw new GateRuntimeException("Could not save document lengths file", ex);
+            }
+          }
         }
 
         if (statsTsvUrl != null && !statsTsvUrl.toExternalForm().isEmpty()) {
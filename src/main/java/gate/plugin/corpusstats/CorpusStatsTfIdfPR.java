@@ -30,10 +30,14 @@ import gate.creole.metadata.*;
 import gate.util.Benchmark;
 import gate.util.GateRuntimeException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.LongAdder;
 
 @CreoleResource(name = "CorpusStatsTfIdfPR",
@@ -219,23 +223,50 @@ public class CorpusStatsTfIdfPR extends AbstractDocumentProcessor {
   public Boolean getReuseExisting() {
     return reuseExisting;
   }
+
+  private int minAnnotationsForParallel = 0;
+
+  /**
+   * Count large documents with several threads.
+   * 
+   * A document with at least this many annotations to count gets counted
+   * in parts by the tasks of a thread pool which is shared by all 
+   * duplicates of the PR, with one thread per processor, and the counts of 
+   * the parts get merged. The counts are the same as when counting the 
+   * document with a single thread.
+   * 
+   * @param value the minimum number of annotations, 0 to never use the pool
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If bigger than 0, documents with at least this many annotations get counted with several threads",
+          defaultValue = "0"
+  )
+  public void setMinAnnotationsForParallel(Integer value) {
+    if (value == null) {
+      minAnnotationsForParallel = 0;
+    } else {
+      minAnnotationsForParallel = value;
+    }
+  }
+
+  public Integer getMinAnnotationsForParallel() {
+    return minAnnotationsForParallel;
+  }
           
   ////////////////////// FIELDS
   // these fields will contain references to objects which are shared
   // because all duplicated copies of the PR
   private CorpusStatsTfIdfData corpusStats;
 
-  // fields local to each duplicated PR
-  private int mostFrequentWordFreq = 0;
-  private int documentWordFreq = 0;
-
   ////////////////////// PROCESSING
   @Override
   protected void process(Document document) {
 
-    if(corpusStats == null) {
-      corpusStats = (CorpusStatsTfIdfData)getSharedData().get("corpusStatsTfIdf");
-    }
+    // the duplicates which did not run beforeFirstDocument may still have 
+    // the data of a previous run
+    corpusStats = (CorpusStatsTfIdfData)getSharedData().get("corpusStatsTfIdf");
     AnnotationSet inputAS;
     if (inputASName == null
             || inputASName.isEmpty()) {
@@ -262,52 +293,94 @@ public class CorpusStatsTfIdfPR extends AbstractDocumentProcessor {
 
     // we first count the terms in this document in our own map, then 
     // add the final counts to the global map.
-    HashMap<String, Integer> wordcounts = new HashMap<>();
-
     long startTime = Benchmark.startPoint();
 
-    mostFrequentWordFreq = 0;
-    documentWordFreq = 0;
-
+    // the annotations to count: all input annotations or the ones in the
+    // containing annotations
+    List<Annotation> anns;
     if (containingAnns == null) {
-      // go through all input annotations 
-      for (Annotation ann : inputAnns) {
-        doIt(document, ann, wordcounts);
-        if (isInterrupted()) {
-          throw new GateRuntimeException("CorpusStatsTfIdfPR has been interrupted");
-        }
-      }
+      anns = new ArrayList<>(inputAnns);
     } else {
-      // go through the input annotations contained in the containing annotations
+      anns = new ArrayList<>();
       for (Annotation containingAnn : containingAnns) {
-        AnnotationSet containedAnns = gate.Utils.getContainedAnnotations(inputAnns, containingAnn);
-        for (Annotation ann : containedAnns) {
-          doIt(document, ann, wordcounts);
-          if (isInterrupted()) {
-            throw new GateRuntimeException("CorpusStatsTfIdfPR has been interrupted");
-          }
-        }
+        anns.addAll(gate.Utils.getContainedAnnotations(inputAnns, containingAnn));
       }
     }
 
+    HashMap<String, Integer> wordcounts;
+    ForkJoinPool pool = (ForkJoinPool)getSharedData().get("documentPool");
+    if (pool != null && anns.size() >= minAnnotationsForParallel) {
+      wordcounts = countInParallel(pool, anns);
+    } else {
+      wordcounts = count(anns, 0, anns.size());
+    }
+
+    int mostFrequentWordFreq = 0;
+    int documentWordFreq = 0;
+    for (int count : wordcounts.values()) {
+      documentWordFreq += count;
+      mostFrequentWordFreq = Math.max(mostFrequentWordFreq, count);
+    }
+    corpusStats.nWords.add(documentWordFreq);
+
     // now add the locally counted term frequencies to the global map
-    // also add the weighted/normalized term frequencies
-    for (String key : wordcounts.keySet()) {
-      corpusStats.map.computeIfAbsent(key, (k -> new TermStats())).incrementTfBy(wordcounts.get(key));
-      corpusStats.map.computeIfAbsent(key, (k -> new TermStats())).incrementWTfBy(wordcounts.get(key) / ((double) documentWordFreq));
-      corpusStats.map.computeIfAbsent(key, (k -> new TermStats())).incrementNTfBy(wordcounts.get(key) / ((double) mostFrequentWordFreq));
+    // also add the document frequency and the weighted/normalized term 
+    // frequencies
+    long mergeStartTime = System.nanoTime();
+    for (Map.Entry<String, Integer> entry : wordcounts.entrySet()) {
+      TermStats stats = corpusStats.map.computeIfAbsent(entry.getKey(), (k -> new TermStats()));
+      int count = entry.getValue();
+      stats.incrementDf();
+      stats.incrementTfBy(count);
+      stats.incrementWTfBy(count / ((double) documentWordFreq));
+      stats.incrementNTfBy(count / ((double) mostFrequentWordFreq));
     }
+    metrics.recordMerge(System.nanoTime() - mergeStartTime);
+    metrics.recordTokens(documentWordFreq);
 
     corpusStats.nDocs.add(1);
+    corpusStats.docLengths.add(documentWordFreq);
     benchmarkCheckpoint(startTime, "__TfIdfProcess");
 
     //fireProcessFinished();
     //fireStatusChanged("CorpusStatsTfIdfPR: processing complete!");
   }
 
-  // NOTE: this method updates the global fields documentWordFreq
-  // and 
-  private void doIt(Document doc, Annotation ann, Map<String, Integer> wordmap) {
+  // Count the terms of the annotations from index from to index to-1
+  private HashMap<String, Integer> count(List<Annotation> anns, int from, int to) {
+    HashMap<String, Integer> wordcounts = new HashMap<>();
+    for (int i = from; i < to; i++) {
+      doIt(anns.get(i), wordcounts);
+      if (isInterrupted()) {
+        throw new GateRuntimeException("CorpusStatsTfIdfPR has been interrupted");
+      }
+    }
+    return wordcounts;
+  }
+
+  // Count the terms of the annotations in parts with the tasks of the pool
+  // and merge the counts of the parts
+  private HashMap<String, Integer> countInParallel(ForkJoinPool pool, List<Annotation> anns) {
+    int nTasks = 4 * pool.getParallelism();
+    int annsPerTask = Math.max(1, (anns.size() + nTasks - 1) / nTasks);
+    List<Future<HashMap<String, Integer>>> parts = new ArrayList<>();
+    for (int from = 0; from < anns.size(); from += annsPerTask) {
+      int fromIndex = from;
+      int toIndex = Math.min(anns.size(), from + annsPerTask);
+      parts.add(pool.submit(() -> count(anns, fromIndex, toIndex)));
+    }
+    HashMap<String, Integer> wordcounts = new HashMap<>();
+    try {
+      for (Future<HashMap<String, Integer>> part : parts) {
+        part.get().forEach((key, count) -> wordcounts.merge(key, count, Integer::sum));
+      }
+    } catch (Exception ex) {
+      throw new GateRuntimeException("Error when counting the document in parallel", ex);
+    }
+    return wordcounts;
+  }
+
+  private void doIt(Annotation ann, Map<String, Integer> wordmap) {
     String key;
     FeatureMap fm = ann.getFeatures();
     if (getKeyFeature() == null || getKeyFeature().isEmpty()) {
@@ -319,25 +392,9 @@ public class CorpusStatsTfIdfPR extends AbstractDocumentProcessor {
       key = key.toLowerCase(ccLocale);
     }
     if (key != null) {
-      // count total number of words found
-      corpusStats.nWords.add(1);
-      documentWordFreq += 1;
-      // check if we have seen this word in this document already:
-      // if no, increase document frequency and remember it 
-      if (!wordmap.containsKey(key)) {
-        wordmap.put(key, 1);
-        if (mostFrequentWordFreq == 0) {
-          mostFrequentWordFreq = 1;
-        }
-        // lets also add to the document frequency right here ....
-        corpusStats.map.computeIfAbsent(key, (k -> new TermStats())).incrementDf();
-      } else {
-        int thisWf = wordmap.get(key) + 1;
-        wordmap.put(key, thisWf);  // increase the count in our own map
-        if (thisWf > mostFrequentWordFreq) {
-          mostFrequentWordFreq = thisWf;
-        }
-      }
+      // increase the count in our own map, the document frequency gets 
+      // increased once for each key in the map after counting
+      wordmap.merge(key, 1, Integer::sum);
     }
   }
 
@@ -354,9 +411,15 @@ public class CorpusStatsTfIdfPR extends AbstractDocumentProcessor {
         corpusStats.map = new ConcurrentHashMap<>(1024 * 1024, 32, 32);
         corpusStats.nDocs = new LongAdder();
         corpusStats.nWords = new LongAdder();
+        corpusStats.docLengths = new DocLengthHistogram();
         corpusStats.isCaseSensitive = getCaseSensitive();
         corpusStats.ccLocale = new Locale(getCaseConversionLanguage());
         getSharedData().put("corpusStatsTfIdf", corpusStats);
+        CorpusStatsTfIdfData data = corpusStats;
+        metrics.setStatsSizes(() -> data.map == null ? 0 : data.map.size(), () -> 0, data::estimateMemory);
+        if(minAnnotationsForParallel > 0) {
+          getSharedData().put("documentPool", new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
+        }
         System.err.println("INFO: corpusStats created and initialized in duplicate " + duplicateId + " of PR " + this.getName());
       }
       // Now at this point we have a CorpusStats instance for sure. However, 
@@ -384,11 +447,19 @@ public class CorpusStatsTfIdfPR extends AbstractDocumentProcessor {
         corpusStats.map = null;
         corpusStats = null;
         sharedData.remove("corpusStatsTfIdf");
+        shutdownDocumentPool();
       } // if corpusstats is not null
       benchmarkCheckpoint(startTime, "__TfIdfSave");
     }
   }
 
+  private void shutdownDocumentPool() {
+    ForkJoinPool pool = (ForkJoinPool) sharedData.remove("documentPool");
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
   @Override
   protected void finishedNoDocument(Controller ctrl, Throwable t) {
     // After each run, we clean up, so that the code before each run can 
@@ -397,6 +468,7 @@ public class CorpusStatsTfIdfPR extends AbstractDocumentProcessor {
       corpusStats.map = null;
       corpusStats = null;
       sharedData.remove("corpusStatsTfIdf");
+      shutdownDocumentPool();
     }
   }
 
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A compact histogram of document lengths (in number of terms).
+ *
+ * Lengths below 64 each get their own bucket, above that each power of two
+ * is split into 16 buckets of equal width, so the relative error of any
+ * length estimated from the histogram is at most 1/16. The whole histogram
+ * needs less than 1000 buckets.
+ * <p>
+ * Adding a length is lock-free, so one instance can be shared between
+ * all duplicates of a PR.
+ *
+ * @author Johann Petrak
+ */
+public class DocLengthHistogram implements Serializable {
+
+  private static final long serialVersionUID = 4716259018335562871L;
+
+  private static final int LINEAR_BITS = 6;
+  private static final int LINEAR_LIMIT = 1 << LINEAR_BITS;
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int NBUCKETS =
+          LINEAR_LIMIT + (Long.SIZE - 1 - LINEAR_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NBUCKETS);
+  private final LongAdder nDocs = new LongAdder();
+  private final LongAdder sumLengths = new LongAdder();
+
+  /**
+   * Get the index of the bucket for a length.
+   * @param length the length, must be non-negative
+   * @return bucket index
+   */
+  public static int bucketIndex(long length) {
+    if (length < LINEAR_LIMIT) {
+      return (int) length;
+    }
+    int exp = Long.SIZE - 1 - Long.numberOfLeadingZeros(length);
+    int sub = (int) (length >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_LIMIT + (exp - LINEAR_BITS) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * The smallest length that falls into the given bucket.
+   * @param index bucket index
+   * @return smallest length
+   */
+  public static long bucketFrom(int index) {
+    if (index < LINEAR_LIMIT) {
+      return index;
+    }
+    int exp = (index - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+    int sub = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+    return (1L << exp) + ((long) sub << (exp - SUB_BITS));
+  }
+
+  /**
+   * The first length that is not in the bucket any more.
+   * @param index bucket index
+   * @return the exclusive upper bound of the bucket
+   */
+  public static long bucketTo(int index) {
+    if (index < LINEAR_LIMIT) {
+      return index + 1;
+    }
+    int exp = (index - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+    return bucketFrom(index) + (1L << (exp - SUB_BITS));
+  }
+
+  /**
+   * Count one document with the given length.
+   * @param length number of terms in the document
+   */
+  public void add(long length) {
+    if (length < 0) {
+      length = 0;
+    }
+    counts.incrementAndGet(bucketIndex(length));
+    nDocs.increment();
+    sumLengths.add(length);
+  }
+
+  public long getNDocs() {
+    return nDocs.sum();
+  }
+
+  public long getSumLengths() {
+    return sumLengths.sum();
+  }
+
+  /**
+   * The exact mean document length.
+   * @return mean length or 0.0 if there are no documents
+   */
+  public double getMean() {
+    long n = nDocs.sum();
+    if (n == 0) {
+      return 0.0;
+    }
+    return sumLengths.sum() / (double) n;
+  }
+
+  /**
+   * Estimate a quantile of the document lengths.
+   *
+   * The value is interpolated linearly within the bucket, so the
+   * estimate is within 1/16 of the true value.
+   * @param q the quantile, between 0.0 and 1.0
+   * @return the estimated length or 0.0 if there are no documents
+   */
+  public double getQuantile(double q) {
+    long n = 0;
+    for (int i = 0; i < NBUCKETS; i++) {
+      n += counts.get(i);
+    }
+    if (n == 0) {
+      return 0.0;
+    }
+    double rank = Math.min(Math.max(q, 0.0), 1.0) * n;
+    long seen = 0;
+    for (int i = 0; i < NBUCKETS; i++) {
+      long c = counts.get(i);
+      if (c == 0) {
+        continue;
+      }
+      if (seen + c >= rank) {
+        double frac = (rank - seen) / c;
+        return bucketFrom(i) + frac * (bucketTo(i) - bucketFrom(i) - 1);
+      }
+      seen += c;
+    }
+    return bucketFrom(NBUCKETS - 1);
+  }
+
+  /**
+   * Write the non-empty buckets as TSV rows, including a header.
+   * @param pw the writer
+   */
+  public void writeTsv(PrintWriter pw) {
+    // from = smallest length in the bucket
+    // to = largest length in the bucket
+    // ndocs = number of documents with a length in that range
+    pw.println("from\tto\tndocs");
+    for (int i = 0; i < NBUCKETS; i++) {
+      long c = counts.get(i);
+      if (c != 0) {
+        pw.println(bucketFrom(i) + "\t" + (bucketTo(i) - 1) + "\t" + c);
+      }
+    }
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A map from primitive long to primitive long.
+ *
+ * This uses open addressing with linear probing and stores keys and values
+ * in two parallel arrays, so there is no boxing and no per-entry object.
+ * The key 0 is used to mark free slots, the value for a key of 0 is stored
+ * separately. Absent keys have the value 0. This class is not thread-safe.
+ *
+ * @author Johann Petrak
+ */
+public class LongLongHashMap implements Serializable {
+
+  private static final long serialVersionUID = -3190766426532707717L;
+
+  private static final double LOAD_FACTOR = 0.6;
+
+  private long[] keys;
+  private long[] values;
+  private int mask;
+  private int resizeAt;
+  private int size;
+  private boolean hasZeroKey;
+  private long zeroValue;
+
+  /**
+   * A procedure that gets called with a key and value.
+   */
+  public interface LongLongProcedure {
+    void apply(long key, long value);
+  }
+
+  public LongLongHashMap() {
+    this(16);
+  }
+
+  /**
+   * Create a map which can hold the expected number of entries without resizing.
+   * @param expected expected number of entries
+   */
+  public LongLongHashMap(int expected) {
+    int capacity = Integer.highestOneBit(Math.max(4, (int) (expected / LOAD_FACTOR)) - 1) << 1;
+    allocate(capacity);
+  }
+
+  /**
+   * Scramble the bits of a key. This is the finalization step of MurmurHash3,
+   * all bits of the result depend on all bits of the key, so both the low
+   * and the high bits can be used for indexing.
+   * @param key the key
+   * @return hash
+   */
+  public static long hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new long[capacity];
+    mask = capacity - 1;
+    resizeAt = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private int slot(long key) {
+    int idx = (int) hash(key) & mask;
+    while (keys[idx] != 0L && keys[idx] != key) {
+      idx = (idx + 1) & mask;
+    }
+    return idx;
+  }
+
+  /**
+   * Get the value for a key.
+   * @param key the key
+   * @return the value or 0 if the key is not in the map
+   */
+  public long get(long key) {
+    if (key == 0L) {
+      return zeroValue;
+    }
+    return values[slot(key)];
+  }
+
+  public boolean containsKey(long key) {
+    if (key == 0L) {
+      return hasZeroKey;
+    }
+    return keys[slot(key)] != 0L;
+  }
+
+  /**
+   * Add to the value for a key, if the key is not in the map, it is added
+   * with the given value.
+   * @param key the key
+   * @param by the value to add
+   * @return the new value
+   */
+  public long addTo(long key, long by) {
+    if (key == 0L) {
+      if (!hasZeroKey) {
+        hasZeroKey = true;
+        size++;
+      }
+      zeroValue += by;
+      return zeroValue;
+    }
+    int idx = slot(key);
+    if (keys[idx] == 0L) {
+      keys[idx] = key;
+      values[idx] = by;
+      if (++size > resizeAt) {
+        rehash(keys.length << 1);
+      }
+      return by;
+    }
+    values[idx] += by;
+    return values[idx];
+  }
+
+  /**
+   * Set the value for a key.
+   * @param key the key
+   * @param value the value
+   */
+  public void put(long key, long value) {
+    if (key == 0L) {
+      if (!hasZeroKey) {
+        hasZeroKey = true;
+        size++;
+      }
+      zeroValue = value;
+      return;
+    }
+    int idx = slot(key);
+    values[idx] = value;
+    if (keys[idx] == 0L) {
+      keys[idx] = key;
+      if (++size > resizeAt) {
+        rehash(keys.length << 1);
+      }
+    }
+  }
+
+  /**
+   * Remove a key from the map.
+   * @param key the key
+   * @return the value the key had or 0 if it was not in the map
+   */
+  public long remove(long key) {
+    if (key == 0L) {
+      long old = zeroValue;
+      if (hasZeroKey) {
+        hasZeroKey = false;
+        zeroValue = 0L;
+        size--;
+      }
+      return old;
+    }
+    int idx = slot(key);
+    if (keys[idx] == 0L) {
+      return 0L;
+    }
+    long old = values[idx];
+    // shift back any entries of the same probe sequence so that there is
+    // no gap in it, this avoids the need for tombstones
+    int gap = idx;
+    int cur = (gap + 1) & mask;
+    while (keys[cur] != 0L) {
+      int home = (int) hash(keys[cur]) & mask;
+      if (((cur - home) & mask) >= ((cur - gap) & mask)) {
+        keys[gap] = keys[cur];
+        values[gap] = values[cur];
+        gap = cur;
+      }
+      cur = (cur + 1) & mask;
+    }
+    keys[gap] = 0L;
+    values[gap] = 0L;
+    size--;
+    return old;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    long[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      long key = oldKeys[i];
+      if (key != 0L) {
+        int idx = slot(key);
+        keys[idx] = key;
+        values[idx] = oldValues[i];
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Remove all entries. This keeps the current capacity.
+   */
+  public void clear() {
+    Arrays.fill(keys, 0L);
+    Arrays.fill(values, 0L);
+    hasZeroKey = false;
+    zeroValue = 0L;
+    size = 0;
+  }
+
+  /**
+   * Remove all entries and release the memory used for them, the capacity
+   * is then the same as for a new map for the expected number of entries.
+   * @param expected expected number of entries
+   */
+  public void clear(int expected) {
+    hasZeroKey = false;
+    zeroValue = 0L;
+    size = 0;
+    allocate(Integer.highestOneBit(Math.max(4, (int) (expected / LOAD_FACTOR)) - 1) << 1);
+  }
+
+  /**
+   * Get all keys in ascending order.
+   * @return the keys
+   */
+  public long[] sortedKeys() {
+    long[] ret = new long[size];
+    int n = 0;
+    if (hasZeroKey) {
+      ret[n++] = 0L;
+    }
+    for (long key : keys) {
+      if (key != 0L) {
+        ret[n++] = key;
+      }
+    }
+    Arrays.sort(ret);
+    return ret;
+  }
+
+  /**
+   * Call the procedure for all entries, in no particular order.
+   * @param proc the procedure
+   */
+  public void forEach(LongLongProcedure proc) {
+    forEach(0, keys.length, proc);
+  }
+
+  /**
+   * The number of slots, entries can be iterated in ranges of slots.
+   * @return number of slots
+   */
+  public int capacity() {
+    return keys.length;
+  }
+
+  /**
+   * Call the procedure for the entries in a range of slots, in no
+   * particular order. The entry for the key 0 is in slot 0. If the map
+   * is not changed, iterating over ranges which cover all slots once gives
+   * all entries once.
+   * @param fromSlot first slot
+   * @param toSlot slot after the last
+   * @param proc the procedure
+   */
+  public void forEach(int fromSlot, int toSlot, LongLongProcedure proc) {
+    if (hasZeroKey && fromSlot == 0) {
+      proc.apply(0L, zeroValue);
+    }
+    for (int i = fromSlot; i < toSlot; i++) {
+      if (keys[i] != 0L) {
+        proc.apply(keys[i], values[i]);
+      }
+    }
+  }
+}
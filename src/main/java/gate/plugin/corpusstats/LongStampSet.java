@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs which can be cleared in constant time.
+ *
+ * This uses open addressing with linear probing like LongLongHashMap, but
+ * a slot is only occupied if its stamp is equal to the current generation.
+ * Clearing the set just increments the generation, so a set which is
+ * cleared and refilled many times, e.g. once for every context, neither
+ * allocates nor touches all its slots again. This class is not thread-safe.
+ *
+ * @author Johann Petrak
+ */
+public class LongStampSet {
+
+  private static final double LOAD_FACTOR = 0.5;
+
+  private long[] keys;
+  private int[] stamps;
+  private int generation = 1;
+  private int mask;
+  private int resizeAt;
+  private int size;
+
+  public LongStampSet() {
+    this(16);
+  }
+
+  /**
+   * Create a set which can hold the expected number of keys without resizing.
+   * @param expected expected number of keys
+   */
+  public LongStampSet(int expected) {
+    int capacity = Integer.highestOneBit(Math.max(4, (int) (expected / LOAD_FACTOR)) - 1) << 1;
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    stamps = new int[capacity];
+    mask = capacity - 1;
+    resizeAt = (int) (capacity * LOAD_FACTOR);
+  }
+
+  /**
+   * Add a key.
+   * @param key the key
+   * @return true if the key was not in the set before
+   */
+  public boolean add(long key) {
+    int idx = (int) LongLongHashMap.hash(key) & mask;
+    while (stamps[idx] == generation) {
+      if (keys[idx] == key) {
+        return false;
+      }
+      idx = (idx + 1) & mask;
+    }
+    keys[idx] = key;
+    stamps[idx] = generation;
+    if (++size > resizeAt) {
+      rehash(keys.length << 1);
+    }
+    return true;
+  }
+
+  public boolean contains(long key) {
+    int idx = (int) LongLongHashMap.hash(key) & mask;
+    while (stamps[idx] == generation) {
+      if (keys[idx] == key) {
+        return true;
+      }
+      idx = (idx + 1) & mask;
+    }
+    return false;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldStamps = stamps;
+    int oldGeneration = generation;
+    allocate(capacity);
+    generation = 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldStamps[i] == oldGeneration) {
+        int idx = (int) LongLongHashMap.hash(oldKeys[i]) & mask;
+        while (stamps[idx] == generation) {
+          idx = (idx + 1) & mask;
+        }
+        keys[idx] = oldKeys[i];
+        stamps[idx] = generation;
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Remove all keys. This keeps the current capacity.
+   */
+  public void clear() {
+    size = 0;
+    if (++generation == Integer.MAX_VALUE) {
+      // only after 2^31 clears: really reset the stamps
+      Arrays.fill(stamps, 0);
+      generation = 1;
+    }
+  }
+}
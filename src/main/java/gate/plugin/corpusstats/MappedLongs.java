@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A section of longs of a memory-mapped file. The section is mapped in
+ * chunks because a single mapping cannot be bigger than 2GB. Reading and
+ * writing different indices from several threads is safe.
+ *
+ * @author Johann Petrak
+ */
+class MappedLongs {
+  private static final int CHUNK_BITS = 27;
+  private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+  private final LongBuffer[] chunks;
+
+  /**
+   * Map a section of the file.
+   * @param channel the channel of the file, can be closed after this
+   * @param mode the map mode, if READ_WRITE the file gets extended if needed
+   * @param offset the offset of the section in bytes
+   * @param n the number of longs in the section
+   * @throws IOException if the mapping fails
+   */
+  MappedLongs(FileChannel channel, FileChannel.MapMode mode, long offset, long n) throws IOException {
+    int nChunks = (int) ((n + CHUNK_MASK) >>> CHUNK_BITS);
+    chunks = new LongBuffer[nChunks];
+    for (int c = 0; c < nChunks; c++) {
+      long from = (long) c << CHUNK_BITS;
+      long length = Math.min(n - from, 1L << CHUNK_BITS);
+      chunks[c] = channel.map(mode, offset + 8 * from, 8 * length).asLongBuffer();
+    }
+  }
+
+  long get(long index) {
+    return chunks[(int) (index >>> CHUNK_BITS)].get((int) (index & CHUNK_MASK));
+  }
+
+  void put(long index, long value) {
+    chunks[(int) (index >>> CHUNK_BITS)].put((int) (index & CHUNK_MASK), value);
+  }
+}
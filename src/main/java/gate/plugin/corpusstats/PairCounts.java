@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import gate.util.GateRuntimeException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe counts for pairs of term ids.
+ *
+ * A pair of term ids is packed into a single long key, the id of the
+ * first term in the upper and the id of the second term in the lower 32 bits.
+ * The counts are kept in a fixed number of partitions, each a primitive
+ * LongLongHashMap guarded by its own lock, where the partition of a key is
+ * determined by its hash. Local counts for a whole document should be
+ * added with addAll, which takes each lock only once.
+ * <p>
+ * If a memory budget is set, all counts get spilled to a sorted run on disk
+ * whenever the number of pairs in memory exceeds it. The methods for 
+ * getting the counts then merge the runs with the pairs in memory, a 
+ * partition can then only be iterated as a whole, in key order.
+ *
+ * @author Johann Petrak
+ */
+public class PairCounts implements Serializable {
+
+  private static final long serialVersionUID = 2279424412757372306L;
+
+  private static final int PARTITION_BITS = 8;
+  private static final int NPARTITIONS = 1 << PARTITION_BITS;
+
+  private final LongLongHashMap[] partitions = new LongLongHashMap[NPARTITIONS];
+
+  /**
+   * The approximate number of bytes a pair uses in memory, including the 
+   * free slots of the hash maps.
+   */
+  public static final int BYTES_PER_PAIR = 48;
+
+  // The spilling state, only initialized by setMemoryBudget
+  private transient long maxPairsInMemory = 0;
+  private transient AtomicLong pairsInMemory;
+  private transient List<SortedPairRun> runs;
+  // the number of different pairs over memory and all runs, -1 if unknown
+  private transient volatile long mergedSize = -1;
+
+  public PairCounts() {
+    for (int i = 0; i < NPARTITIONS; i++) {
+      partitions[i] = new LongLongHashMap(1024);
+    }
+  }
+
+  /**
+   * Pack two term ids into a pair key.
+   * @param id1 id of the first term
+   * @param id2 id of the second term
+   * @return the key
+   */
+  public static long pairKey(int id1, int id2) {
+    return ((long) id1 << 32) | (id2 & 0xffffffffL);
+  }
+
+  /**
+   * The id of the first term in a pair key.
+   * @param key pair key
+   * @return term id
+   */
+  public static int term1(long key) {
+    return (int) (key >>> 32);
+  }
+
+  /**
+   * The id of the second term in a pair key.
+   * @param key pair key
+   * @return term id
+   */
+  public static int term2(long key) {
+    return (int) key;
+  }
+
+  /**
+   * The partition a key belongs to.
+   * @param key pair key
+   * @return partition index
+   */
+  public static int partitionOf(long key) {
+    // the maps use the low bits of the hash, so we use the high bits here
+    return (int) (LongLongHashMap.hash(key) >>> (Long.SIZE - PARTITION_BITS));
+  }
+
+  public int getNumberOfPartitions() {
+    return NPARTITIONS;
+  }
+
+  /**
+   * Limit the memory used for the pairs, the pairs get spilled to disk 
+   * when the limit is exceeded. This must be set before any pairs get added.
+   * @param bytes the maximum number of bytes, 0 for no limit
+   */
+  public void setMemoryBudget(long bytes) {
+    maxPairsInMemory = bytes / BYTES_PER_PAIR;
+    if (bytes > 0) {
+      pairsInMemory = new AtomicLong(size());
+      runs = new CopyOnWriteArrayList<>();
+    }
+  }
+
+  /**
+   * The memory limit for the pairs.
+   * @return the maximum number of bytes, 0 for no limit
+   */
+  public long getMemoryBudget() {
+    return maxPairsInMemory * BYTES_PER_PAIR;
+  }
+
+  /**
+   * If some of the pairs have been spilled to disk.
+   * @return true if there are spilled runs
+   */
+  public boolean isSpilled() {
+    return runs != null && !runs.isEmpty();
+  }
+
+  /**
+   * Add to the count of a single pair.
+   * @param key pair key
+   * @param by the count to add
+   */
+  public void add(long key, long by) {
+    LongLongHashMap map = partitions[partitionOf(key)];
+    boolean added;
+    synchronized (map) {
+      added = map.addTo(key, by) == by;
+    }
+    afterAdd(added ? 1 : 0);
+  }
+
+  /**
+   * Add all the counts from a local map.
+   * @param local map from pair key to count
+   */
+  public void addAll(LongLongHashMap local) {
+    if (local.isEmpty()) {
+      return;
+    }
+    // group the entries by partition first, so that we only need to
+    // acquire the lock for each partition once
+    int[] starts = new int[NPARTITIONS + 1];
+    local.forEach((key, value) -> starts[partitionOf(key) + 1]++);
+    for (int i = 0; i < NPARTITIONS; i++) {
+      starts[i + 1] += starts[i];
+    }
+    int[] next = Arrays.copyOf(starts, NPARTITIONS);
+    int added = 0;
+    long[] keys = new long[local.size()];
+    long[] values = new long[local.size()];
+    local.forEach((key, value) -> {
+      int idx = next[partitionOf(key)]++;
+      keys[idx] = key;
+      values[idx] = value;
+    });
+    for (int p = 0; p < NPARTITIONS; p++) {
+      if (starts[p] == starts[p + 1]) {
+        continue;
+      }
+      LongLongHashMap map = partitions[p];
+      synchronized (map) {
+        for (int i = starts[p]; i < starts[p + 1]; i++) {
+          if (map.addTo(keys[i], values[i]) == values[i]) {
+            added++;
+          }
+        }
+      }
+    }
+    afterAdd(added);
+  }
+
+  // Count the new pairs in memory and spill if they exceed the budget
+  private void afterAdd(int added) {
+    mergedSize = -1;
+    if (maxPairsInMemory > 0 && pairsInMemory.addAndGet(added) > maxPairsInMemory) {
+      spill();
+    }
+  }
+
+  // Write all pairs in memory to a new sorted run and remove them from 
+  // memory. Each partition is only locked while its pairs get copied, so
+  // other threads can continue to add pairs.
+  private void spill() {
+    synchronized (runs) {
+      if (pairsInMemory.get() <= maxPairsInMemory) {
+        // another thread has just spilled
+        return;
+      }
+      SortedPairRun run = new SortedPairRun(NPARTITIONS);
+      try {
+        for (int p = 0; p < NPARTITIONS; p++) {
+          LongLongHashMap map = partitions[p];
+          long[] keys;
+          long[] counts;
+          synchronized (map) {
+            keys = map.sortedKeys();
+            counts = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+              counts[i] = map.get(keys[i]);
+            }
+            map.clear(1024);
+          }
+          pairsInMemory.addAndGet(-keys.length);
+          run.writePartition(p, keys, counts);
+        }
+        run.finish();
+      } catch (RuntimeException ex) {
+        run.delete();
+        throw ex;
+      }
+      runs.add(run);
+      System.err.println("INFO: spilled " + run.size() + " pair counts to disk, runs: " + runs.size());
+    }
+  }
+
+  /**
+   * Remove all spilled runs from disk, the counts in them are lost.
+   */
+  public void deleteRuns() {
+    if (runs != null) {
+      for (SortedPairRun run : runs) {
+        run.delete();
+      }
+      runs.clear();
+      mergedSize = -1;
+    }
+  }
+
+  /**
+   * Get the count for a pair.
+   * @param key pair key
+   * @return the count, 0 if the pair has not been counted
+   */
+  public long get(long key) {
+    int p = partitionOf(key);
+    LongLongHashMap map = partitions[p];
+    long ret;
+    synchronized (map) {
+      ret = map.get(key);
+    }
+    if (runs != null) {
+      for (SortedPairRun run : runs) {
+        ret += run.get(p, key);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Get the counts for many pairs at once. If the pairs have been spilled, 
+   * this merges each partition which contains some of the keys once, 
+   * instead of searching all runs for each key.
+   * @param keys the pair keys
+   * @return map from the pair key to the count, pairs which have not been
+   * counted are not included
+   */
+  public LongLongHashMap getAll(long[] keys) {
+    LongLongHashMap ret = new LongLongHashMap(keys.length);
+    if (!isSpilled()) {
+      for (long key : keys) {
+        long count = get(key);
+        if (count != 0) {
+          ret.put(key, count);
+        }
+      }
+      return ret;
+    }
+    LongStampSet wanted = new LongStampSet(keys.length);
+    boolean[] partitionsWanted = new boolean[NPARTITIONS];
+    for (long key : keys) {
+      wanted.add(key);
+      partitionsWanted[partitionOf(key)] = true;
+    }
+    for (int p = 0; p < NPARTITIONS; p++) {
+      if (partitionsWanted[p]) {
+        forEachInPartition(p, (key, count) -> {
+          if (wanted.contains(key)) {
+            ret.put(key, count);
+          }
+        });
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * The number of different pairs.
+   * @return number of pairs
+   */
+  public long size() {
+    if (isSpilled()) {
+      // the same pair may be in memory and in several runs
+      long ret = mergedSize;
+      if (ret < 0) {
+        long[] n = new long[1];
+        forEach((key, count) -> n[0]++);
+        ret = n[0];
+        mergedSize = ret;
+      }
+      return ret;
+    }
+    long ret = 0;
+    for (LongLongHashMap map : partitions) {
+      synchronized (map) {
+        ret += map.size();
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * The number of pairs in memory, found without locking, so this is only
+   * approximate while pairs get added, e.g. for monitoring.
+   * @return number of pairs
+   */
+  public long getSizeInMemory() {
+    long ret = 0;
+    for (LongLongHashMap map : partitions) {
+      ret += map.size();
+    }
+    return ret;
+  }
+
+  /**
+   * Call the procedure for all pairs in a partition. The partition is locked
+   * while this runs, so the procedure must not add to these counts.
+   * @param partition the partition index
+   * @param proc the procedure to call with the pair key and count
+   */
+  public void forEachInPartition(int partition, LongLongHashMap.LongLongProcedure proc) {
+    LongLongHashMap map = partitions[partition];
+    synchronized (map) {
+      if (isSpilled()) {
+        merge(partition, map, proc);
+      } else {
+        map.forEach(proc);
+      }
+    }
+  }
+
+  // Merge the sorted pairs of a partition in memory and in all runs and 
+  // call the procedure with the total count of each pair, in key order
+  private void merge(int partition, LongLongHashMap map, LongLongHashMap.LongLongProcedure proc) {
+    List<SortedPairRun.Cursor> cursors = new ArrayList<>();
+    try {
+      for (SortedPairRun run : runs) {
+        cursors.add(run.open(partition));
+      }
+      List<SortedPairRun.Source> sources = new ArrayList<>(cursors);
+      sources.add(new MapSource(map));
+      SortedPairRun.merge(sources, proc);
+    } finally {
+      for (SortedPairRun.Cursor cursor : cursors) {
+        cursor.close();
+      }
+    }
+  }
+
+  // The pairs of a map in key order
+  private static class MapSource extends SortedPairRun.Source {
+    private final LongLongHashMap map;
+    private final long[] keys;
+    private int next = 0;
+
+    MapSource(LongLongHashMap map) {
+      this.map = map;
+      this.keys = map.sortedKeys();
+    }
+
+    @Override
+    public boolean next() {
+      if (next >= keys.length) {
+        return false;
+      }
+      key = keys[next++];
+      count = map.get(key);
+      return true;
+    }
+  }
+
+  /**
+   * The number of slots of the map for a partition, see forEachInPartition.
+   * @param partition the partition index
+   * @return number of slots
+   */
+  public int getPartitionCapacity(int partition) {
+    LongLongHashMap map = partitions[partition];
+    synchronized (map) {
+      return map.capacity();
+    }
+  }
+
+  /**
+   * Call the procedure for the pairs in a range of slots of the map for
+   * a partition. This allows to split the work for big partitions. The 
+   * partition is locked while this runs, so the procedure must not add 
+   * to these counts. If the pairs have been spilled, the range must cover
+   * all slots.
+   * @param partition the partition index
+   * @param fromSlot first slot
+   * @param toSlot slot after the last
+   * @param proc the procedure to call with the pair key and count
+   */
+  public void forEachInPartition(int partition, int fromSlot, int toSlot, LongLongHashMap.LongLongProcedure proc) {
+    LongLongHashMap map = partitions[partition];
+    synchronized (map) {
+      if (isSpilled()) {
+        if (fromSlot != 0 || toSlot < map.capacity()) {
+          throw new GateRuntimeException("A spilled partition can only be iterated as a whole");
+        }
+        merge(partition, map, proc);
+      } else {
+        map.forEach(fromSlot, toSlot, proc);
+      }
+    }
+  }
+
+  /**
+   * Call the procedure for all pairs, one partition after the other.
+   * @param proc the procedure to call with the pair key and count
+   */
+  public void forEach(LongLongHashMap.LongLongProcedure proc) {
+    for (int p = 0; p < NPARTITIONS; p++) {
+      forEachInPartition(p, proc);
+    }
+  }
+}
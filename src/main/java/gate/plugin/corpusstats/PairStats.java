@@ -44,9 +44,12 @@ public class PairStats {
   public double student_t;
   public double student_t_p;
   
-  private DecimalFormat df = new DecimalFormat("#.######");
+  // DecimalFormat is not thread-safe, so each thread gets its own, 
+  // instead of one for each instance
+  private static final ThreadLocal<DecimalFormat> DF = 
+          ThreadLocal.withInitial(() -> new DecimalFormat("#.######"));
   protected String d(double val) {
-    return df.format(val);
+    return DF.get().format(val);
   }
   
   @Override
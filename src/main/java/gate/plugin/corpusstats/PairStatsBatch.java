@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import gate.util.GateRuntimeException;
+
+/**
+ * The statistics for a block of pairs, stored column by column.
+ *
+ * The counts for up to capacity pairs get added, then
+ * CorpusStatsCollocationsData.calcStats(PairStatsBatch) fills in all the
+ * other columns, with one simple loop per group of statistics. The batch
+ * can then be cleared and re-used for the next block, so no objects get
+ * allocated per pair. The fields have the same meaning as in PairStats.
+ *
+ * @author Johann Petrak
+ */
+public class PairStatsBatch {
+
+  private final int capacity;
+  private int size = 0;
+
+  public final long[] pairCount;
+  public final long[] term1Count;
+  public final long[] term2Count;
+  public final double[] p_a_b;
+  public final double[] p_a;
+  public final double[] p_b;
+  public final double[] p_na_b;
+  public final double[] p_a_nb;
+  public final double[] p_na_nb;
+  public final double[] p_a_b_expected;
+  public final double[] pmi;
+  public final double[] npmi;
+  public final double[] wpmi;
+  public final double[] chi2;
+  public final double[] chi2_p;
+  public final double[] student_t;
+  public final double[] student_t_p;
+
+  public PairStatsBatch(int capacity) {
+    this.capacity = capacity;
+    pairCount = new long[capacity];
+    term1Count = new long[capacity];
+    term2Count = new long[capacity];
+    p_a_b = new double[capacity];
+    p_a = new double[capacity];
+    p_b = new double[capacity];
+    p_na_b = new double[capacity];
+    p_a_nb = new double[capacity];
+    p_na_nb = new double[capacity];
+    p_a_b_expected = new double[capacity];
+    pmi = new double[capacity];
+    npmi = new double[capacity];
+    wpmi = new double[capacity];
+    chi2 = new double[capacity];
+    chi2_p = new double[capacity];
+    student_t = new double[capacity];
+    student_t_p = new double[capacity];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public boolean isFull() {
+    return size == capacity;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Add the counts for a pair, the statistics for it are only valid after
+   * the batch has been calculated.
+   * @param pairCount number of contexts with the pair
+   * @param term1Count number of contexts with the first term
+   * @param term2Count number of contexts with the second term
+   * @return the index of the pair in the batch
+   */
+  public int add(long pairCount, long term1Count, long term2Count) {
+    int i = size++;
+    this.pairCount[i] = pairCount;
+    this.term1Count[i] = term1Count;
+    this.term2Count[i] = term2Count;
+    return i;
+  }
+
+  /**
+   * The names of the statistics which can be used with getMetric, for all
+   * of them, higher values indicate a stronger association.
+   */
+  public static final String[] METRICS = {
+    "prob", "pmi", "npmi", "wpmi", "chi2", "chi2_p", "student_t", "student_t_p"
+  };
+
+  /**
+   * Get the column of a statistic by name.
+   * @param name the name, one of METRICS
+   * @return the column
+   */
+  public double[] getMetric(String name) {
+    switch (name) {
+      case "prob":
+        return p_a_b;
+      case "pmi":
+        return pmi;
+      case "npmi":
+        return npmi;
+      case "wpmi":
+        return wpmi;
+      case "chi2":
+        return chi2;
+      case "chi2_p":
+        return chi2_p;
+      case "student_t":
+        return student_t;
+      case "student_t_p":
+        return student_t_p;
+      default:
+        throw new GateRuntimeException("Not a known metric: " + name);
+    }
+  }
+
+  /**
+   * Copy the statistics for one pair into a PairStats instance.
+   * @param i index of the pair
+   * @return the stats
+   */
+  public PairStats getPairStats(int i) {
+    PairStats ret = new PairStats();
+    ret.pairCount = pairCount[i];
+    ret.term1Count = term1Count[i];
+    ret.term2Count = term2Count[i];
+    ret.p_a_b = p_a_b[i];
+    ret.p_a = p_a[i];
+    ret.p_b = p_b[i];
+    ret.p_na_b = p_na_b[i];
+    ret.p_a_nb = p_a_nb[i];
+    ret.p_na_nb = p_na_nb[i];
+    ret.p_a_b_expected = p_a_b_expected[i];
+    ret.pmi = pmi[i];
+    ret.npmi = npmi[i];
+    ret.wpmi = wpmi[i];
+    ret.chi2 = chi2[i];
+    ret.chi2_p = chi2_p[i];
+    ret.student_t = student_t[i];
+    ret.student_t_p = student_t_p[i];
+    return ret;
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import gate.Annotation;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The annotations of a document sorted once by their offsets, so that the
+ * annotations for many spans can be selected without querying and sorting
+ * the annotation set for each span.
+ *
+ * The annotations are sorted by start offset, then end offset, then id, and
+ * their offsets are kept in primitive arrays. Selecting the annotations for
+ * a span is a binary search for the annotations starting within the span,
+ * plus a scan back over the annotations starting before the span for those
+ * which reach into it. The scan stops at the first annotation where the
+ * largest end offset of all annotations up to it is not after the start of
+ * the span, so for short annotations like tokens it stops immediately.
+ *
+ * @author Johann Petrak
+ */
+public class SortedAnnotations {
+
+  private static final Comparator<Annotation> OFFSET_ORDER =
+          Comparator.<Annotation>comparingLong(ann -> ann.getStartNode().getOffset())
+                  .thenComparingLong(ann -> ann.getEndNode().getOffset())
+                  .thenComparingInt(Annotation::getId);
+
+  private final Annotation[] anns;
+  private final long[] starts;
+  private final long[] ends;
+  // the largest end offset of the annotations up to each index
+  private final long[] maxEnds;
+
+  public SortedAnnotations(Collection<Annotation> annotations) {
+    anns = annotations.toArray(new Annotation[annotations.size()]);
+    Arrays.sort(anns, OFFSET_ORDER);
+    int n = anns.length;
+    starts = new long[n];
+    ends = new long[n];
+    maxEnds = new long[n];
+    long maxEnd = Long.MIN_VALUE;
+    for (int i = 0; i < n; i++) {
+      starts[i] = anns[i].getStartNode().getOffset();
+      ends[i] = anns[i].getEndNode().getOffset();
+      maxEnd = Math.max(maxEnd, ends[i]);
+      maxEnds[i] = maxEnd;
+    }
+  }
+
+  public int size() {
+    return anns.length;
+  }
+
+  public Annotation get(int i) {
+    return anns[i];
+  }
+
+  /**
+   * Get the annotations for some indices.
+   * @param indices the indices, e.g. from select
+   * @return the annotations in the order of the indices
+   */
+  public List<Annotation> get(int[] indices) {
+    Annotation[] ret = new Annotation[indices.length];
+    for (int k = 0; k < indices.length; k++) {
+      ret[k] = anns[indices[k]];
+    }
+    return Arrays.asList(ret);
+  }
+
+  /**
+   * All annotations in document order.
+   * @return an unmodifiable view of the sorted annotations
+   */
+  public List<Annotation> inDocumentOrder() {
+    return Collections.unmodifiableList(Arrays.asList(anns));
+  }
+
+  public long getStart(int i) {
+    return starts[i];
+  }
+
+  public long getEnd(int i) {
+    return ends[i];
+  }
+
+  // the index of the first annotation which starts at or after the offset
+  private int firstStartingAt(long offset) {
+    int lo = 0;
+    int hi = starts.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (starts[mid] < offset) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Select the annotations for a span, the same ones that
+   * AnnotationSet.get(from, to) returns: all annotations which start
+   * before from and end after from, and all which start at or after from
+   * and before to.
+   * @param from the start offset of the span
+   * @param to the end offset of the span
+   * @return the indices of the selected annotations in document order
+   */
+  public int[] select(long from, long to) {
+    int first = firstStartingAt(from);
+    int last = to > from ? firstStartingAt(to) : first;
+    int nBefore = 0;
+    for (int j = first - 1; j >= 0 && maxEnds[j] > from; j--) {
+      if (ends[j] > from) {
+        nBefore++;
+      }
+    }
+    int[] ret = new int[nBefore + last - first];
+    int k = nBefore;
+    for (int j = first - 1; k > 0; j--) {
+      if (ends[j] > from) {
+        ret[--k] = j;
+      }
+    }
+    k = nBefore;
+    for (int j = first; j < last; j++) {
+      ret[k++] = j;
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import gate.util.GateRuntimeException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * A temporary file with pair counts spilled from PairCounts.
+ *
+ * The file contains the pairs of each partition, one partition after the
+ * other, and within a partition sorted by the pair key, each pair as the
+ * key and the count. So the runs of a partition can be merged in a
+ * streaming way, and the count of a single pair can be found by binary
+ * search. The partitions must be written in order, after that the run
+ * can be read by several threads at the same time.
+ *
+ * @author Johann Petrak
+ */
+public class SortedPairRun {
+
+  private static final int BYTES_PER_ENTRY = 16;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final File file;
+  // the index of the first entry of each partition, and the number of entries
+  private final long[] starts;
+  private DataOutputStream out;
+  private int nextPartition = 0;
+  private long nEntries = 0;
+
+  /**
+   * Create a new, empty run.
+   * @param nPartitions the number of partitions
+   */
+  public SortedPairRun(int nPartitions) {
+    starts = new long[nPartitions + 1];
+    try {
+      file = File.createTempFile("corpusstats-pairs-", ".bin");
+      file.deleteOnExit();
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not create temporary file for the pair counts", ex);
+    }
+  }
+
+  /**
+   * Write the pairs of the next partition.
+   * @param partition the partition, partitions must be written in order
+   * @param keys the keys, sorted
+   * @param counts the count for each key
+   */
+  public void writePartition(int partition, long[] keys, long[] counts) {
+    // partitions without pairs in between are empty
+    while (nextPartition <= partition) {
+      starts[nextPartition++] = nEntries;
+    }
+    try {
+      for (int i = 0; i < keys.length; i++) {
+        out.writeLong(keys[i]);
+        out.writeLong(counts[i]);
+      }
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not write pair counts to " + file, ex);
+    }
+    nEntries += keys.length;
+  }
+
+  /**
+   * Finish writing, after this the run can be read.
+   */
+  public void finish() {
+    while (nextPartition < starts.length) {
+      starts[nextPartition++] = nEntries;
+    }
+    try {
+      out.close();
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not close " + file, ex);
+    }
+    out = null;
+  }
+
+  public long size() {
+    return nEntries;
+  }
+
+  /**
+   * Get the count of a pair by binary search in its partition.
+   * @param partition the partition of the key
+   * @param key the pair key
+   * @return the count or 0 if the pair is not in the run
+   */
+  public long get(int partition, long key) {
+    long lo = starts[partition];
+    long hi = starts[partition + 1] - 1;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      while (lo <= hi) {
+        long mid = (lo + hi) >>> 1;
+        raf.seek(mid * BYTES_PER_ENTRY);
+        long midKey = raf.readLong();
+        if (midKey < key) {
+          lo = mid + 1;
+        } else if (midKey > key) {
+          hi = mid - 1;
+        } else {
+          return raf.readLong();
+        }
+      }
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not read pair counts from " + file, ex);
+    }
+    return 0L;
+  }
+
+  /**
+   * Open a cursor over the pairs of a partition.
+   * @param partition the partition
+   * @return the cursor, must be closed
+   */
+  public Cursor open(int partition) {
+    return new Cursor(partition);
+  }
+
+  /**
+   * Remove the file.
+   */
+  public void delete() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException ex) {
+        // ignore, we remove the file anyway
+      }
+      out = null;
+    }
+    file.delete();
+  }
+
+  /**
+   * A source of pairs in ascending key order.
+   */
+  public abstract static class Source {
+    public long key;
+    public long count;
+
+    /**
+     * Move to the next pair.
+     * @return false if there are no more pairs
+     */
+    public abstract boolean next();
+  }
+
+  /**
+   * Merge sources of sorted pairs and call the procedure with the total
+   * count of each pair, in key order. The sources get merged with a 
+   * min-heap of source indices by their current key.
+   * @param sources the sources, must not have been advanced yet
+   * @param proc the procedure
+   */
+  public static void merge(List<? extends Source> sources, LongLongHashMap.LongLongProcedure proc) {
+    int[] heap = new int[sources.size()];
+    int heapSize = 0;
+    for (int s = 0; s < sources.size(); s++) {
+      if (sources.get(s).next()) {
+        heap[heapSize++] = s;
+        siftUp(heap, heapSize - 1, sources);
+      }
+    }
+    while (heapSize > 0) {
+      long key = sources.get(heap[0]).key;
+      long count = 0;
+      while (heapSize > 0 && sources.get(heap[0]).key == key) {
+        Source source = sources.get(heap[0]);
+        count += source.count;
+        if (!source.next()) {
+          heap[0] = heap[--heapSize];
+        }
+        siftDown(heap, heapSize, sources);
+      }
+      proc.apply(key, count);
+    }
+  }
+
+  private static void siftUp(int[] heap, int i, List<? extends Source> sources) {
+    int s = heap[i];
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (sources.get(heap[parent]).key <= sources.get(s).key) {
+        break;
+      }
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = s;
+  }
+
+  private static void siftDown(int[] heap, int n, List<? extends Source> sources) {
+    if (n == 0) {
+      return;
+    }
+    int s = heap[0];
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= n) {
+        break;
+      }
+      if (child + 1 < n && sources.get(heap[child + 1]).key < sources.get(heap[child]).key) {
+        child++;
+      }
+      if (sources.get(heap[child]).key >= sources.get(s).key) {
+        break;
+      }
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = s;
+  }
+
+  /**
+   * Iterates over the pairs of a partition in key order.
+   */
+  public class Cursor extends Source implements AutoCloseable {
+    private final DataInputStream in;
+    private long remaining;
+
+    private Cursor(int partition) {
+      remaining = starts[partition + 1] - starts[partition];
+      try {
+        FileInputStream fis = new FileInputStream(file);
+        fis.getChannel().position(starts[partition] * BYTES_PER_ENTRY);
+        in = new DataInputStream(new BufferedInputStream(fis, BUFFER_SIZE));
+      } catch (IOException ex) {
+        throw new GateRuntimeException("Could not read pair counts from " + file, ex);
+      }
+    }
+
+    @Override
+    public boolean next() {
+      if (remaining == 0) {
+        return false;
+      }
+      remaining--;
+      try {
+        key = in.readLong();
+        count = in.readLong();
+      } catch (IOException ex) {
+        throw new GateRuntimeException("Could not read pair counts from " + file, ex);
+      }
+      return true;
+    }
+
+    @Override
+    public void close() {
+      try {
+        in.close();
+      } catch (IOException ex) {
+        throw new GateRuntimeException("Could not close " + file, ex);
+      }
+    }
+  }
+}
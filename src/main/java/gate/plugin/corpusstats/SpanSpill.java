@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import gate.util.GateRuntimeException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A temporary file with the spans of term ids seen in the first pass of
+ * the two-pass mode, so that the pairs can be counted in the second pass
+ * without processing the documents again.
+ *
+ * For each span, the length is written, then for each position the term
+ * id and a byte with the annotation type (1 or 2) and the eligible flag.
+ * Each duplicate of the PR writes its own file, so this class is not
+ * thread-safe.
+ *
+ * @author Johann Petrak
+ */
+public class SpanSpill {
+
+  private static final int ELIGIBLE = 4;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final File file;
+  private DataOutputStream out;
+  private long nSpans = 0;
+
+  /**
+   * Gets the spans passed to replay.
+   */
+  public interface SpanConsumer {
+    void accept(int[] ids, byte[] types, boolean[] eligible, int length);
+  }
+
+  public SpanSpill() {
+    try {
+      file = File.createTempFile("corpusstats-spans-", ".bin");
+      file.deleteOnExit();
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not create temporary file for the spans", ex);
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public long getNumberOfSpans() {
+    return nSpans;
+  }
+
+  /**
+   * Append a span.
+   * @param ids the term id for each position
+   * @param types the annotation type (1 or 2) for each position
+   * @param eligible for each position, if the term may be counted at all
+   * @param length the number of positions in the span
+   */
+  public void write(int[] ids, byte[] types, boolean[] eligible, int length) {
+    try {
+      out.writeInt(length);
+      for (int p = 0; p < length; p++) {
+        out.writeInt(ids[p]);
+        out.writeByte(eligible[p] ? types[p] | ELIGIBLE : types[p]);
+      }
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not write span to " + file, ex);
+    }
+    nSpans++;
+  }
+
+  /**
+   * Finish writing, this must be called before the spans can be replayed.
+   */
+  public void close() {
+    if (out == null) {
+      return;
+    }
+    try {
+      out.close();
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not close " + file, ex);
+    }
+    out = null;
+  }
+
+  /**
+   * Pass all spans to the consumer in the order they were written. The
+   * arrays passed to the consumer get re-used for the next span.
+   * @param consumer the consumer
+   */
+  public void replay(SpanConsumer consumer) {
+    close();
+    int[] ids = new int[64];
+    byte[] types = new byte[64];
+    boolean[] eligible = new boolean[64];
+    try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException ex) {
+          break;
+        }
+        if (length > ids.length) {
+          int newLength = Math.max(length, ids.length * 2);
+          ids = new int[newLength];
+          types = new byte[newLength];
+          eligible = new boolean[newLength];
+        }
+        for (int p = 0; p < length; p++) {
+          ids[p] = in.readInt();
+          int flags = in.readByte();
+          types[p] = (byte) (flags & ~ELIGIBLE);
+          eligible[p] = (flags & ELIGIBLE) != 0;
+        }
+        consumer.accept(ids, types, eligible, length);
+      }
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not read spans from " + file, ex);
+    }
+  }
+
+  /**
+   * Close and remove the file.
+   */
+  public void delete() {
+    try {
+      close();
+    } finally {
+      file.delete();
+    }
+  }
+}
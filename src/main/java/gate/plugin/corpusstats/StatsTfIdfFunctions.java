@@ -156,6 +156,50 @@ public class StatsTfIdfFunctions {
           }; 
     NAME2FUNCTION.put("acwtf", f_acwtf);
     
+    // Okapi BM25: uses the options "k1" (default 1.2), "b" (default 0.75) and 
+    // "avgdl", the average document length (default nWords/nDocs), which is
+    // used as at least 1. The document length is the number of terms in the 
+    // current document.
+    StatsTfIdfFunction bm25 = 
+          (TermStats termstats, long nDocs, long nWords, long nTerms, long localtf, long maxTf, long sumTf, Map<String,Object> options) -> {
+            if(localtf == 0) {
+              return 0.0;
+            }
+            double k1 = getOption(options, "k1", 1.2);
+            double b = getOption(options, "b", 0.75);
+            double avgdl = Math.max(1.0, getOption(options, "avgdl", nDocs == 0 ? 1.0 : nWords / (double)nDocs));
+            double termDf = termstats.getDf();
+            double bm25idf = Math.log(1.0 + (nDocs - termDf + 0.5) / (termDf + 0.5));
+            return bm25idf * localtf * (k1 + 1.0) / (localtf + k1 * (1.0 - b + b * sumTf / avgdl));
+          }; 
+    NAME2FUNCTION.put("bm25", bm25);
+    
+    // Pivoted document length normalization (Singhal et al. 1996) of the 
+    // double logarithmic tf, multiplied with idf. Uses the options "slope" 
+    // (default 0.2) and "pivot" (default: the average document length), 
+    // which is used as at least 1.
+    StatsTfIdfFunction pivtfidf = 
+          (TermStats termstats, long nDocs, long nWords, long nTerms, long localtf, long maxTf, long sumTf, Map<String,Object> options) -> {
+            if(localtf == 0) {
+              return 0.0;
+            }
+            double slope = getOption(options, "slope", 0.2);
+            double pivot = Math.max(1.0, getOption(options, "pivot", nDocs == 0 ? 1.0 : nWords / (double)nDocs));
+            double lltf = 1.0 + Math.log(1.0 + Math.log(localtf));
+            return lltf / ((1.0 - slope) + slope * sumTf / pivot) * 
+                   idf.apply(termstats, nDocs, nWords, nTerms, localtf, maxTf, sumTf, options);
+          }; 
+    NAME2FUNCTION.put("pivtfidf", pivtfidf);
+    
+  }
+  
+  // Get a numeric option from the options map or the default value if it is not there
+  private static double getOption(Map<String,Object> options, String name, double defaultValue) {
+    Object val = options == null ? null : options.get(name);
+    if(val instanceof Number) {
+      return ((Number)val).doubleValue();
+    }
+    return defaultValue;
   }
   // Convert a list of comma/semicolon/whitespace separated names of functions to a list of actual function lambdas
   public static Map<String,StatsTfIdfFunction> names2functions(String names) {
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bidirectional mapping between term strings and dense int ids.
+ *
+ * Ids are assigned in the order in which terms are first seen, starting
+ * with 0. Looking up and interning terms is thread-safe, only the
+ * assignment of new ids is synchronized.
+ *
+ * @author Johann Petrak
+ */
+public class TermDictionary implements Serializable {
+
+  private static final long serialVersionUID = 6251360940125524172L;
+
+  private final ConcurrentHashMap<String, Integer> term2id = new ConcurrentHashMap<>();
+  // A new id is always stored here before it is published in term2id, so
+  // anyone who got an id from term2id will find the term here.
+  private volatile String[] id2term = new String[1024];
+  private int size = 0;
+
+  /**
+   * Get the id of a term, add the term if it is not known yet.
+   * @param term the term
+   * @return the id
+   */
+  public int intern(String term) {
+    Integer id = term2id.get(term);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = term2id.get(term);
+      if (id != null) {
+        return id;
+      }
+      int n = size;
+      String[] tmp = id2term;
+      if (n == tmp.length) {
+        tmp = Arrays.copyOf(tmp, n * 2);
+      }
+      tmp[n] = term;
+      id2term = tmp;
+      size = n + 1;
+      term2id.put(term, n);
+      return n;
+    }
+  }
+
+  /**
+   * Get the id of a term.
+   * @param term the term
+   * @return the id or -1 if the term is not known
+   */
+  public int getId(String term) {
+    Integer id = term2id.get(term);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * Get the term for an id.
+   * @param id a valid id
+   * @return the term
+   */
+  public String getTerm(int id) {
+    return id2term[id];
+  }
+
+  /**
+   * The approximate number of bytes a term uses in memory, including the 
+   * string of a typical term.
+   */
+  public static final int BYTES_PER_TERM = 112;
+
+  /**
+   * Estimate the heap memory used by the dictionary, without locking.
+   * @return number of bytes
+   */
+  public long estimateMemory() {
+    return (long) term2id.size() * BYTES_PER_TERM;
+  }
+
+  /**
+   * The number of terms, all ids are smaller than this.
+   * @return number of terms
+   */
+  public int size() {
+    return term2id.size();
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import gate.util.Files;
+import gate.util.GateRuntimeException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.ref.SoftReference;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A compact, read-only table of terms and their tf, used to filter terms.
+ *
+ * The table is stored as an array of terms and a parallel array of float tf
+ * values. Tables are loaded either from a TSV file with columns "term" and
+ * "tf" (optionally gzip-compressed if the name ends in ".gz") or from the
+ * binary data file of CorpusStatsTfIdfPR. Loaded tables are cached for the
+ * whole JVM, so that all pipelines which use the same file with the same
+ * case conversion settings share one copy. For a local file, the cache
+ * key includes its modification time and length, so a changed file gets
+ * loaded again. The cache only holds soft references, so tables which are
+ * not in use anymore can get collected.
+ * <p>
+ * Before counting, the table gets bound to a TermDictionary, which gives
+ * an array of tf values indexed by term id.
+ *
+ * @author Johann Petrak
+ */
+public class TfTable {
+
+  private static final Map<String, SoftReference<TfTable>> CACHE = new ConcurrentHashMap<>();
+
+  private String[] terms;
+  private float[] tfs;
+  private int size = 0;
+
+  private TfTable(int capacity) {
+    terms = new String[capacity];
+    tfs = new float[capacity];
+  }
+
+  private void add(String term, float tf) {
+    if (size == terms.length) {
+      terms = Arrays.copyOf(terms, size * 2);
+      tfs = Arrays.copyOf(tfs, size * 2);
+    }
+    terms[size] = term;
+    tfs[size] = tf;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public String getTerm(int i) {
+    return terms[i];
+  }
+
+  public float getTf(int i) {
+    return tfs[i];
+  }
+
+  /**
+   * The sum of the tf of all entries of the table.
+   * @return the total tf
+   */
+  public double getTotalTf() {
+    double total = 0.0;
+    for (int i = 0; i < size; i++) {
+      total += tfs[i];
+    }
+    return total;
+  }
+
+  /**
+   * Get the tf values by term id. All the terms of the table get added to
+   * the dictionary, so any term found later which is not in the table has
+   * an id that is not smaller than the length of the returned array.
+   * Terms which were already in the dictionary but are not in the table
+   * get NaN, which is never bigger than any minimum tf.
+   * If a term is in the table several times, the last tf is used.
+   *
+   * @param dict the dictionary
+   * @return array of tf by term id
+   */
+  public float[] bind(TermDictionary dict) {
+    int[] ids = new int[size];
+    int maxId = -1;
+    for (int i = 0; i < size; i++) {
+      ids[i] = dict.intern(terms[i]);
+      maxId = Math.max(maxId, ids[i]);
+    }
+    float[] tfById = new float[maxId + 1];
+    Arrays.fill(tfById, Float.NaN);
+    for (int i = 0; i < size; i++) {
+      tfById[ids[i]] = tfs[i];
+    }
+    return tfById;
+  }
+
+  private static String cacheKey(String kind, URL url, boolean caseSensitive, Locale locale) {
+    String version = "";
+    if (UrlUtils.isFile(url)) {
+      File file = Files.fileFromURL(url);
+      version = file.lastModified() + "/" + file.length();
+    }
+    return kind + "\t" + url.toExternalForm() + "\t" + version + "\t" + (caseSensitive ? "" : locale.toString());
+  }
+
+  private static boolean canOpen(URL url) {
+    if (UrlUtils.isFile(url)) {
+      return Files.fileFromURL(url).exists();
+    } else {
+      return UrlUtils.exists(url);
+    }
+  }
+
+  /**
+   * Get the table from a TSV file, load it if it is not already cached.
+   * If the file does not exist, an empty table is returned.
+   *
+   * @param url the TSV file, gzip-compressed if the name ends in ".gz"
+   * @param caseSensitive if false, the terms get converted to lower case
+   * @param locale the locale to use for the case conversion
+   * @return the table
+   */
+  public static TfTable fromTsv(URL url, boolean caseSensitive, Locale locale) {
+    String key = cacheKey("tsv", url, caseSensitive, locale);
+    synchronized (CACHE) {
+      TfTable table = getCached(key);
+      if (table == null) {
+        table = new TfTable(1024);
+        if (canOpen(url)) {
+          table.readTsv(url, caseSensitive, locale);
+          CACHE.put(key, new SoftReference<>(table));
+        } else {
+          System.err.println("WARNING: tf file does not exist, no term will be used: " + url);
+        }
+      }
+      return table;
+    }
+  }
+
+  /**
+   * Get the table from the binary data file of CorpusStatsTfIdfPR, load
+   * it if it is not already cached.
+   * If the file does not exist, an empty table is returned.
+   *
+   * @param url the data file
+   * @param caseSensitive if false, the terms get converted to lower case
+   * @param locale the locale to use for the case conversion
+   * @return the table
+   */
+  public static TfTable fromTfIdfData(URL url, boolean caseSensitive, Locale locale) {
+    String key = cacheKey("data", url, caseSensitive, locale);
+    synchronized (CACHE) {
+      TfTable table = getCached(key);
+      if (table == null) {
+        CorpusStatsTfIdfData data = new CorpusStatsTfIdfData();
+        data.load(url, null, null);
+        if (data.map == null) {
+          System.err.println("WARNING: tf data file does not exist, no term will be used: " + url);
+          return new TfTable(16);
+        }
+        table = new TfTable(data.map.size());
+        for (Map.Entry<String, TermStats> entry : data.map.entrySet()) {
+          String term = entry.getKey();
+          if (!caseSensitive) {
+            term = term.toLowerCase(locale);
+          }
+          table.add(term, entry.getValue().getTf());
+        }
+        CACHE.put(key, new SoftReference<>(table));
+      }
+      return table;
+    }
+  }
+
+  private static TfTable getCached(String key) {
+    SoftReference<TfTable> ref = CACHE.get(key);
+    return ref == null ? null : ref.get();
+  }
+
+  /**
+   * Remove all tables from the cache, e.g. because a file which is not
+   * local has changed.
+   */
+  public static void clearCache() {
+    CACHE.clear();
+  }
+
+  // Read the rows one by one and only extract the two fields we need
+  // without splitting the whole line.
+  private void readTsv(URL url, boolean caseSensitive, Locale locale) {
+    boolean isGzip = url.toExternalForm().endsWith(".gz");
+    try (
+            InputStream is = url.openStream();
+            InputStream gis = isGzip ? new GZIPInputStream(is) : is;
+            InputStreamReader isr = new InputStreamReader(gis, StandardCharsets.UTF_8);
+            BufferedReader in = new BufferedReader(isr, 1 << 16);) {
+      String header = in.readLine();
+      if (header == null) {
+        return;
+      }
+      String[] fields = header.split("\\t");
+      int idxTerm = -1;
+      int idxTf = -1;
+      // find the columns with header "term" and "tf" and remember
+      for (int i = 0; i < fields.length; i++) {
+        if (fields[i].equals("term")) {
+          idxTerm = i;
+        } else if (fields[i].equals("tf")) {
+          idxTf = i;
+        }
+      }
+      if (idxTerm < 0 || idxTf < 0) {
+        throw new GateRuntimeException("TfIdfFile does not contain headers 'term' and 'tf'");
+      }
+      int maxIdx = Math.max(idxTerm, idxTf);
+      String inline;
+      int rowNr = 1;
+      while ((inline = in.readLine()) != null) {
+        rowNr += 1;
+        String term = null;
+        String tf = null;
+        int from = 0;
+        for (int i = 0; i <= maxIdx; i++) {
+          if (from > inline.length()) {
+            throw new GateRuntimeException("TfIdf Row has not enough fields to find term and tf: " + rowNr);
+          }
+          int to = inline.indexOf('\t', from);
+          if (to < 0) {
+            to = inline.length();
+          }
+          if (i == idxTerm) {
+            term = inline.substring(from, to);
+          } else if (i == idxTf) {
+            tf = inline.substring(from, to);
+          }
+          from = to + 1;
+        }
+        if (!caseSensitive) {
+          term = term.toLowerCase(locale);
+        }
+        add(term, Float.parseFloat(tf));
+      }
+    } catch (GateRuntimeException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new GateRuntimeException("Could not read tfIdfFile " + url, ex);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the K pair keys with the highest scores.
+ *
+ * This is a bounded min-heap on primitive arrays: the root is the worst of
+ * the kept pairs, so a new pair only needs to be compared with the root and
+ * replaces it if it is better. A pair is better than another if it has a
+ * higher score or the same score and a smaller key, so the result does not
+ * depend on the order in which the pairs are offered. NaN scores are
+ * ignored. This class is not thread-safe.
+ *
+ * @author Johann Petrak
+ */
+public class TopKPairs {
+
+  private final int k;
+  private int size = 0;
+  private double[] scores;
+  private long[] keys;
+
+  public TopKPairs(int k) {
+    this.k = k;
+    // many heaps may be needed (e.g. one per term) and stay small, so
+    // we grow the arrays up to k as needed
+    int initial = Math.min(k, 16);
+    scores = new double[initial];
+    keys = new long[initial];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private static boolean isWorse(double score1, long key1, double score2, long key2) {
+    return score1 < score2 || (score1 == score2 && key1 > key2);
+  }
+
+  /**
+   * Add the pair if it is among the best k seen so far.
+   * @param score the score
+   * @param key the pair key
+   */
+  public void offer(double score, long key) {
+    if (Double.isNaN(score) || k <= 0) {
+      return;
+    }
+    if (size < k) {
+      if (size == scores.length) {
+        int newLength = (int) Math.min(k, 2L * size);
+        scores = Arrays.copyOf(scores, newLength);
+        keys = Arrays.copyOf(keys, newLength);
+      }
+      // sift up
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (!isWorse(score, key, scores[parent], keys[parent])) {
+          break;
+        }
+        scores[i] = scores[parent];
+        keys[i] = keys[parent];
+        i = parent;
+      }
+      scores[i] = score;
+      keys[i] = key;
+    } else if (isWorse(scores[0], keys[0], score, key)) {
+      siftDown(score, key, size);
+    }
+  }
+
+  // put the entry at the root and restore the heap of n entries
+  private void siftDown(double score, long key, int n) {
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= n) {
+        break;
+      }
+      if (child + 1 < n && isWorse(scores[child + 1], keys[child + 1], scores[child], keys[child])) {
+        child++;
+      }
+      if (!isWorse(scores[child], keys[child], score, key)) {
+        break;
+      }
+      scores[i] = scores[child];
+      keys[i] = keys[child];
+      i = child;
+    }
+    scores[i] = score;
+    keys[i] = key;
+  }
+
+  /**
+   * Offer all pairs kept by the other heap to this one.
+   * @param other the other heap
+   */
+  public void addAll(TopKPairs other) {
+    for (int i = 0; i < other.size; i++) {
+      offer(other.scores[i], other.keys[i]);
+    }
+  }
+
+  /**
+   * Get the kept pair keys, best first. This empties the heap.
+   * @return the keys
+   */
+  public long[] drainKeys() {
+    return drainKeys(null);
+  }
+
+  /**
+   * Get the kept pair keys, best first. This empties the heap.
+   * @param drainedScores if not null, receives the score for each key, must
+   * have at least size() elements
+   * @return the keys
+   */
+  public long[] drainKeys(double[] drainedScores) {
+    int n = size;
+    long[] ret = new long[n];
+    // repeatedly remove the worst entry and put it at the end
+    for (int last = n - 1; last >= 0; last--) {
+      ret[last] = keys[0];
+      if (drainedScores != null) {
+        drainedScores[last] = scores[0];
+      }
+      siftDown(scores[last], keys[last], last);
+    }
+    size = 0;
+    return ret;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package gate.plugin.corpusstats;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+/**
+ * Selects the K terms with the highest scores, e.g. for the top terms of a 
+ * document.
+ *
+ * This uses a min-heap which is bounded to K elements, so the cost is 
+ * O(n log K) for n distinct terms. A term is better than another if it has
+ * a higher score or the same score and a lexically smaller term, so the 
+ * result does not depend on the order of the candidates. Terms without a
+ * score or with a NaN score are ignored.
+ *
+ * @author Johann Petrak
+ */
+public class TopKTerms {
+
+  // Orders the candidates by increasing score, for equal scores the 
+  // lexically larger term is considered smaller
+  private static final Comparator<Map.Entry<String,Double>> ORDER = 
+          (Map.Entry<String,Double> e1, Map.Entry<String,Double> e2) -> {
+            int ret = Double.compare(e1.getValue(), e2.getValue());
+            if(ret == 0) {
+              ret = e2.getKey().compareTo(e1.getKey());
+            }
+            return ret;
+          };
+
+  private TopKTerms() {
+  }
+
+  /**
+   * Find the k terms with the highest score.
+   * 
+   * @param terms the distinct candidate terms
+   * @param k the maximum number of terms to return
+   * @param score the score of a term, may return null
+   * @return a map from term to score, ordered by descending score
+   */
+  @SuppressWarnings("unchecked")
+  public static Map<String,Double> select(Collection<String> terms, int k, Function<String,Double> score) {
+    Map<String,Double> ret = new LinkedHashMap<>();
+    if(k <= 0) {
+      return ret;
+    }
+    PriorityQueue<Map.Entry<String,Double>> heap = new PriorityQueue<>(k+1, ORDER);
+    for(String term : terms) {
+      Double value = score.apply(term);
+      if(value == null || value.isNaN()) {
+        continue;
+      }
+      Map.Entry<String,Double> entry = new AbstractMap.SimpleImmutableEntry<>(term, value);
+      if(heap.size() < k) {
+        heap.add(entry);
+      } else if(ORDER.compare(entry, heap.peek()) > 0) {
+        heap.poll();
+        heap.add(entry);
+      }
+    }
+    Map.Entry<String,Double>[] sorted = heap.toArray(new Map.Entry[heap.size()]);
+    Arrays.sort(sorted, ORDER.reversed());
+    for(Map.Entry<String,Double> entry : sorted) {
+      ret.put(entry.getKey(), entry.getValue());
+    }
+    return ret;
+  }
+}
@@ -170,6 +170,37 @@ public class UrlUtils {
     return ret;
   }
   
+  /**
+   * Create the URL of a related file by inserting a string before the extension.
+   *
+   * For example, for "file:/dir/sums.tsv" and "-doclengths" this returns
+   * "file:/dir/sums-doclengths.tsv". A ".gz" after the extension is kept
+   * with it, e.g. "pairs.tsv.gz" becomes "pairs-w5.tsv.gz". If the last 
+   * path component does not have an extension, the string is appended.
+   *
+   * @param url the URL to derive the new URL from
+   * @param insert the string to insert
+   * @return the new URL
+   */
+  public static URL insertBeforeExtension(URL url, String insert) {
+    String str = url.toExternalForm();
+    int slash = str.lastIndexOf('/');
+    int dot = str.lastIndexOf('.');
+    if(str.endsWith(".gz") && str.lastIndexOf('.', dot - 1) > slash + 1) {
+      dot = str.lastIndexOf('.', dot - 1);
+    }
+    if(dot <= slash + 1) {
+      str = str + insert;
+    } else {
+      str = str.substring(0, dot) + insert + str.substring(dot);
+    }
+    try {
+      return new URL(str);
+    } catch (MalformedURLException ex) {
+      throw new GateRuntimeException("Could not create URL from "+str,ex);
+    }
+  }
+
   /**
    * Return truen if the URL is a file URL.
    * @param url TODO
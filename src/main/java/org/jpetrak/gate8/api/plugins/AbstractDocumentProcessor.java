@@ -32,7 +32,9 @@ import gate.creole.metadata.Sharable;
 import gate.util.Benchmark;
 import gate.util.Benchmarkable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
 //import java.util.Optional;
 
 /**
@@ -133,6 +135,32 @@ public abstract class AbstractDocumentProcessor
   
          
   
+  // The state of the initialization before the first document of a run, 
+  // kept in the shared data so that all duplicates see the same instance.
+  // The duplicate which gets the first document runs beforeFirstDocument 
+  // and counts down the latch when it is done, all other duplicates wait 
+  // for the latch before processing their first document of the run. 
+  private static final String FIRST_DOCUMENT_KEY = "__firstDocument";
+  
+  private static class FirstDocument {
+    final CountDownLatch done = new CountDownLatch(1);
+    // set before the latch is counted down if beforeFirstDocument failed
+    volatile Throwable error = null;
+  }
+  
+  // The metrics of the PR, the same instance for all duplicates. This is 
+  // registered as an MBean when the controller starts the first time and 
+  // unregistered when the first duplicate gets cleaned up. PRs can add 
+  // the number of tokens, the time spent merging into the shared data and
+  // set where the sizes of their statistics come from.
+  private static final String METRICS_KEY = "__metrics";
+  
+  protected DocumentProcessorMetrics metrics = null;
+  
+  public DocumentProcessorMetrics getMetrics() {
+    return metrics;
+  }
+  
   // Each duplicate holds its own duplicate id after initialisation.
   // The duplicate id is 0-based, not 1-based, so the first duplicate has id 0 and 
   // the last nDuplicates-1
@@ -165,6 +193,9 @@ public abstract class AbstractDocumentProcessor
   //     usually the template other duplicates where cloned from.
   // int getNDuplicates().get() - returns the current number of duplicates 
   //     that exist. 
+  // DocumentProcessorMetrics getMetrics() - the metrics shared by all 
+  //     duplicates, published as an MBean. The document count and processing
+  //     times get recorded here, the PR can record tokens and merge times.
   //================================================================================
   @Override
   public Resource init() throws ResourceInstantiationException {
@@ -189,30 +220,62 @@ public abstract class AbstractDocumentProcessor
       setSeenDocuments(new AtomicInteger(0));
       setRemainingDuplicates(new AtomicInteger(0));
       setSyncObject(new Object());
+      getSharedData().put(FIRST_DOCUMENT_KEY, new FirstDocument());
+      getSharedData().put(METRICS_KEY, new DocumentProcessorMetrics());
       LOGGER.debug("DEBUG: "+this.getName()+" created duplicate "+duplicateId);
     } else {
       int thisn = getNDuplicates().getAndAdd(1);
       duplicateId = thisn;
       LOGGER.debug("DEBUG: created duplicate "+duplicateId+" of PR "+this.getName());
     }
+    metrics = (DocumentProcessorMetrics)getSharedData().get(METRICS_KEY);
     return this;
   }
 
+  @Override
+  public void cleanup() {
+    super.cleanup();
+    if(duplicateId == 0 && metrics != null) {
+      try {
+        metrics.unregister();
+      } catch (JMException ex) {
+        LOGGER.warn("Could not unregister the metrics of "+this.getName(), ex);
+      }
+    }
+  }
+
   @Override
   public void execute() throws ExecutionException {
-    // The document counting happens in this synchronized code block.
-    // We could probably also use volatile Integer for the counting.
-    synchronized (getSyncObject()) {
-      if(getSeenDocuments().compareAndSet(0, 1)) {
-        System.err.println("DEBUG "+this.getName()+" Have 0 set 1, beforeFirstDocument, id="+duplicateId);
+    // The document counting is lock-free: only the duplicate which counts 
+    // the first document runs beforeFirstDocument, the others only wait 
+    // until that is done, which is immediate once it has finished.
+    boolean isFirst = getSeenDocuments().getAndIncrement() == 0;
+    FirstDocument firstDocument = (FirstDocument)getSharedData().get(FIRST_DOCUMENT_KEY);
+    if(isFirst) {
+      LOGGER.debug("DEBUG "+this.getName()+" first document, beforeFirstDocument, id="+duplicateId);
+      try {
         beforeFirstDocument(controller);
-      } else {
-        //System.err.println("DEBUG "+this.getName()+" incrementing, id="+duplicateId);
-        getSeenDocuments().incrementAndGet();
+      } catch(RuntimeException | Error ex) {
+        firstDocument.error = ex;
+        throw ex;
+      } finally {
+        firstDocument.done.countDown();
+      }
+    } else if(firstDocument.done.getCount() > 0) {
+      try {
+        firstDocument.done.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new ExecutionException("Interrupted while waiting for beforeFirstDocument in "+this.getName(), ex);
       }
     }
+    if(firstDocument.error != null) {
+      throw new ExecutionException("beforeFirstDocument failed in another duplicate of "+this.getName(), firstDocument.error);
+    }
     // actual processing happens in parallel if there are duplicates
+    long startTime = System.nanoTime();
     process(getDocument());
+    metrics.recordDocument(duplicateId, System.nanoTime() - startTime);
   }
 
   /**
@@ -234,6 +297,7 @@ public abstract class AbstractDocumentProcessor
     int tmp = getRemainingDuplicates().getAndDecrement();
     LOGGER.debug("DEBUG "+this.getName()+" controllerExecutionAborted invocation "+tmp+" for duplicate "+duplicateId);
     if(tmp==1) {      
+      metrics.endRun();
       if (getSeenDocuments().get() > 0) {
         LOGGER.debug("DEBUG "+this.getName()+" last controller-aborted, invoking afterLastDocument");
         afterLastDocument(arg0, getLastError());
@@ -251,6 +315,7 @@ public abstract class AbstractDocumentProcessor
     int tmp = getRemainingDuplicates().getAndDecrement();
     LOGGER.debug(this.getName()+": controllerExecutionFinished invocation "+tmp+" for duplicate "+duplicateId);
     if(tmp==1) {      
+      metrics.endRun();
       if (getSeenDocuments().get() > 0) {
         LOGGER.debug("DEBUG "+this.getName()+": Last controller-finished, invoking afterLastDocument");
         afterLastDocument(arg0, getLastError());
@@ -272,6 +337,15 @@ public abstract class AbstractDocumentProcessor
     if(tmp==1) {
       LOGGER.debug(this.getName()+": First controllerExecutionStarted invocation, resetting error and doc count in duplicate "+duplicateId);
       setLastError(null);
+      // the new state must be there before the document count is reset, 
+      // so that the duplicate which gets the first document uses it
+      getSharedData().put(FIRST_DOCUMENT_KEY, new FirstDocument());
+      metrics.startRun();
+      try {
+        metrics.register(getClass().getPackage().getName(), getClass().getSimpleName(), getName());
+      } catch (JMException ex) {
+        LOGGER.warn("Could not register the metrics of "+this.getName(), ex);
+      }
       getSeenDocuments().set(0);
     } else {
       LOGGER.debug(this.getName()+": controllerExecutionStarted invocation number "+tmp+" in duplicate "+duplicateId);
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpetrak.gate8.api.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The metrics shared by a PR and all its duplicates.
+ *
+ * Recording is cheap and does not add contention: the counts are
+ * LongAdders and each duplicate records its processing times in its own
+ * histogram (of microseconds). The sizes of the statistics are only found
+ * when a JMX client reads them, from suppliers which the PR sets and which
+ * must not lock anything the processing needs. When the run ends, the
+ * sizes get fixed at their last values, so that the statistics are not
+ * kept in memory for the metrics.
+ *
+ * @author Johann Petrak
+ */
+public class DocumentProcessorMetrics implements DocumentProcessorMetricsMXBean {
+
+  private static final LongSupplier NONE = () -> 0L;
+
+  private final ConcurrentHashMap<Integer, TimeHistogram> processMicros = new ConcurrentHashMap<>();
+  private final LongAdder tokens = new LongAdder();
+  private final LongAdder mergeNanos = new LongAdder();
+  private volatile long runStartNanos = 0;
+  // 0 while a run is in progress
+  private volatile long runEndNanos = 0;
+  private volatile LongSupplier distinctTerms = NONE;
+  private volatile LongSupplier distinctPairs = NONE;
+  private volatile LongSupplier statsMemoryBytes = NONE;
+  private ObjectName objectName = null;
+
+  /**
+   * Reset all the values for a new run.
+   */
+  public void startRun() {
+    processMicros.clear();
+    tokens.reset();
+    mergeNanos.reset();
+    distinctTerms = NONE;
+    distinctPairs = NONE;
+    statsMemoryBytes = NONE;
+    runEndNanos = 0;
+    runStartNanos = System.nanoTime();
+  }
+
+  /**
+   * Fix the values at the end of a run.
+   */
+  public void endRun() {
+    long terms = distinctTerms.getAsLong();
+    long pairs = distinctPairs.getAsLong();
+    long bytes = statsMemoryBytes.getAsLong();
+    distinctTerms = () -> terms;
+    distinctPairs = () -> pairs;
+    statsMemoryBytes = () -> bytes;
+    runEndNanos = System.nanoTime();
+  }
+
+  /**
+   * Record the time for processing a document.
+   * @param duplicateId the duplicate which processed the document
+   * @param nanos the time in nanoseconds
+   */
+  public void recordDocument(int duplicateId, long nanos) {
+    TimeHistogram histogram = processMicros.get(duplicateId);
+    if (histogram == null) {
+      histogram = new TimeHistogram();
+      TimeHistogram other = processMicros.putIfAbsent(duplicateId, histogram);
+      if (other != null) {
+        histogram = other;
+      }
+    }
+    histogram.add(nanos / 1000);
+  }
+
+  public void recordTokens(long n) {
+    tokens.add(n);
+  }
+
+  public void recordMerge(long nanos) {
+    mergeNanos.add(nanos);
+  }
+
+  /**
+   * Set where the sizes of the statistics come from for the current run.
+   * @param distinctTerms the number of terms
+   * @param distinctPairs the number of pairs in memory
+   * @param statsMemoryBytes the estimated memory used
+   */
+  public void setStatsSizes(LongSupplier distinctTerms, LongSupplier distinctPairs, LongSupplier statsMemoryBytes) {
+    this.distinctTerms = distinctTerms;
+    this.distinctPairs = distinctPairs;
+    this.statsMemoryBytes = statsMemoryBytes;
+  }
+
+  /**
+   * Register with the platform MBean server, if not registered yet.
+   *
+   * The name is domain:type=type,name=name, if that name is used already,
+   * the identity hash code of the metrics gets added to the name.
+   *
+   * @param domain the domain, e.g. the package of the PR
+   * @param type the type, e.g. the class of the PR
+   * @param name the name, e.g. the name of the PR
+   * @throws JMException if the registration fails
+   */
+  public synchronized void register(String domain, String type, String name) throws JMException {
+    if (objectName != null) {
+      return;
+    }
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName on = new ObjectName(domain + ":type=" + type + ",name=" + ObjectName.quote(String.valueOf(name)));
+    try {
+      server.registerMBean(this, on);
+    } catch (InstanceAlreadyExistsException ex) {
+      on = new ObjectName(domain + ":type=" + type + ",name=" +
+              ObjectName.quote(name + "@" + Integer.toHexString(System.identityHashCode(this))));
+      server.registerMBean(this, on);
+    }
+    objectName = on;
+  }
+
+  /**
+   * Unregister from the platform MBean server, if registered.
+   * @throws JMException if unregistering fails
+   */
+  public synchronized void unregister() throws JMException {
+    if (objectName != null) {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      objectName = null;
+    }
+  }
+
+  @Override
+  public long getDocuments() {
+    long n = 0;
+    for (TimeHistogram histogram : processMicros.values()) {
+      n += histogram.getN();
+    }
+    return n;
+  }
+
+  @Override
+  public double getElapsedSeconds() {
+    long start = runStartNanos;
+    if (start == 0) {
+      return 0.0;
+    }
+    long end = runEndNanos;
+    return ((end == 0 ? System.nanoTime() : end) - start) / 1e9;
+  }
+
+  @Override
+  public double getDocumentsPerSecond() {
+    double seconds = getElapsedSeconds();
+    return seconds > 0.0 ? getDocuments() / seconds : 0.0;
+  }
+
+  @Override
+  public long getTokens() {
+    return tokens.sum();
+  }
+
+  @Override
+  public double getTokensPerSecond() {
+    double seconds = getElapsedSeconds();
+    return seconds > 0.0 ? getTokens() / seconds : 0.0;
+  }
+
+  @Override
+  public long getDistinctTerms() {
+    return distinctTerms.getAsLong();
+  }
+
+  @Override
+  public long getDistinctPairs() {
+    return distinctPairs.getAsLong();
+  }
+
+  @Override
+  public long getStatsMemoryBytes() {
+    return statsMemoryBytes.getAsLong();
+  }
+
+  @Override
+  public double getMergeSeconds() {
+    return mergeNanos.sum() / 1e9;
+  }
+
+  // The quantile of the processing times of each duplicate in milliseconds
+  private double[] processMillis(double q) {
+    int n = 0;
+    for (int id : processMicros.keySet()) {
+      n = Math.max(n, id + 1);
+    }
+    double[] ret = new double[n];
+    for (int id = 0; id < n; id++) {
+      TimeHistogram histogram = processMicros.get(id);
+      if (histogram != null) {
+        ret[id] = histogram.getQuantile(q) / 1000.0;
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public double[] getProcessMillisP50() {
+    return processMillis(0.5);
+  }
+
+  @Override
+  public double[] getProcessMillisP90() {
+    return processMillis(0.9);
+  }
+
+  @Override
+  public double[] getProcessMillisP99() {
+    return processMillis(0.99);
+  }
+
+  // A histogram of times with buckets of at most 1/16 of their smallest 
+  // value: values below 16 each get their own bucket, above that each 
+  // power of two is split into 16 buckets of equal width. Only one 
+  // duplicate adds to it, but it is read from the JMX threads.
+  private static class TimeHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int NBUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NBUCKETS);
+    private final LongAdder n = new LongAdder();
+
+    private static int bucketIndex(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int exp = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return SUB_BUCKETS + (exp - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    private static long bucketFrom(int index) {
+      if (index < SUB_BUCKETS) {
+        return index;
+      }
+      int exp = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+      int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+      return (1L << exp) + ((long) sub << (exp - SUB_BITS));
+    }
+
+    private static long bucketWidth(int index) {
+      if (index < SUB_BUCKETS) {
+        return 1;
+      }
+      return 1L << ((index - SUB_BUCKETS) / SUB_BUCKETS);
+    }
+
+    void add(long value) {
+      counts.incrementAndGet(bucketIndex(Math.max(0, value)));
+      n.increment();
+    }
+
+    long getN() {
+      return n.sum();
+    }
+
+    // Interpolated linearly within the bucket
+    double getQuantile(double q) {
+      long total = 0;
+      for (int i = 0; i < NBUCKETS; i++) {
+        total += counts.get(i);
+      }
+      if (total == 0) {
+        return 0.0;
+      }
+      double rank = Math.min(Math.max(q, 0.0), 1.0) * total;
+      long seen = 0;
+      for (int i = 0; i < NBUCKETS; i++) {
+        long c = counts.get(i);
+        if (c != 0 && seen + c >= rank) {
+          return bucketFrom(i) + (rank - seen) / c * (bucketWidth(i) - 1);
+        }
+        seen += c;
+      }
+      return bucketFrom(NBUCKETS - 1);
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpetrak.gate8.api.plugins;
+
+/**
+ * The live metrics of a PR and all its duplicates, as seen in JMX clients
+ * like jconsole or VisualVM.
+ *
+ * The values are for the current run of the controller, or the last one
+ * if no run is in progress. The statistics sizes are the ones the PR
+ * provides, 0 if it does not provide them.
+ *
+ * @author Johann Petrak
+ */
+public interface DocumentProcessorMetricsMXBean {
+
+  /**
+   * The number of processed documents.
+   * @return number of documents
+   */
+  long getDocuments();
+
+  /**
+   * The number of seconds since the run started, or the length of the
+   * last run.
+   * @return seconds
+   */
+  double getElapsedSeconds();
+
+  /**
+   * The number of processed documents per second.
+   * @return documents per second
+   */
+  double getDocumentsPerSecond();
+
+  /**
+   * The number of processed tokens, what a token is depends on the PR.
+   * @return number of tokens
+   */
+  long getTokens();
+
+  /**
+   * The number of processed tokens per second.
+   * @return tokens per second
+   */
+  double getTokensPerSecond();
+
+  /**
+   * The number of different terms in the statistics.
+   * @return number of terms
+   */
+  long getDistinctTerms();
+
+  /**
+   * The number of different pairs of terms in memory.
+   * @return number of pairs
+   */
+  long getDistinctPairs();
+
+  /**
+   * An estimate of the heap memory used by the statistics.
+   * @return number of bytes
+   */
+  long getStatsMemoryBytes();
+
+  /**
+   * The time spent adding the counts of documents to the shared statistics,
+   * summed over all duplicates.
+   * @return seconds
+   */
+  double getMergeSeconds();
+
+  /**
+   * The median time for processing a document, for each duplicate.
+   * @return milliseconds, by duplicate id
+   */
+  double[] getProcessMillisP50();
+
+  /**
+   * The 90th percentile of the time for processing a document, for each
+   * duplicate.
+   * @return milliseconds, by duplicate id
+   */
+  double[] getProcessMillisP90();
+
+  /**
+   * The 99th percentile of the time for processing a document, for each
+   * duplicate.
+   * @return milliseconds, by duplicate id
+   */
+  double[] getProcessMillisP99();
+}
@@ -0,0 +1,65 @@
+/* 
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.corpusstats.tests;
+
+import gate.plugin.corpusstats.CollocationsCounter;
+import java.util.Random;
+
+/**
+ * Compare the time for counting with sliding windows incrementally with
+ * the time for counting each window separately. Not a unit test, run with
+ * the test classpath, optionally with the span length as argument.
+ * 
+ * @author Johann Petrak
+ */
+public class BenchmarkSlidingWindow {
+  
+  public static void main(String[] args) {
+    int length = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    // zipf-like distribution of term ids over a vocabulary of 5000
+    Random rnd = new Random(1);
+    int[] ids = new int[length];
+    byte[] types = new byte[length];
+    boolean[] eligible = new boolean[length];
+    for(int i = 0; i < length; i++) {
+      ids[i] = (int)Math.exp(rnd.nextDouble() * Math.log(5000));
+      types[i] = 1;
+      eligible[i] = true;
+    }
+    System.out.println("window\tseparate_ms\tincremental_ms\tspeedup");
+    for(int windowSize : new int[]{5, 10, 20, 30, 50}) {
+      long separate = Long.MAX_VALUE;
+      long incremental = Long.MAX_VALUE;
+      for(int rep = 0; rep < 5; rep++) {
+        CollocationsCounter counter = new CollocationsCounter(false, false);
+        long start = System.nanoTime();
+        TestCollocationsCounter.countWindowsSeparately(counter, ids, types, eligible, length, windowSize);
+        separate = Math.min(separate, System.nanoTime() - start);
+        counter = new CollocationsCounter(false, false);
+        start = System.nanoTime();
+        counter.countSpan(ids, types, eligible, length, windowSize);
+        incremental = Math.min(incremental, System.nanoTime() - start);
+      }
+      System.out.printf("%d\t%.1f\t%.1f\t%.2f%n", windowSize, separate / 1e6, 
+              incremental / 1e6, (double)separate / incremental);
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.corpusstats.tests;
+
+import gate.Controller;
+import gate.Document;
+import gate.creole.ExecutionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.jpetrak.gate8.api.plugins.AbstractDocumentProcessor;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Johann Petrak
+ */
+public class TestAbstractDocumentProcessor {
+
+  @SuppressWarnings("serial")
+  private static class CountingPR extends AbstractDocumentProcessor {
+    final AtomicInteger inits;
+    final AtomicInteger processed;
+    boolean fail = false;
+
+    CountingPR(AtomicInteger inits, AtomicInteger processed) {
+      this.inits = inits;
+      this.processed = processed;
+    }
+
+    @Override
+    protected void beforeFirstDocument(Controller ctrl) {
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      if (fail) {
+        throw new IllegalStateException("init failed");
+      }
+      sharedData.put("initialized", inits.incrementAndGet());
+    }
+
+    @Override
+    protected void process(Document document) {
+      // the other duplicates must not start before the initialization is done
+      assertEquals(inits.get(), sharedData.get("initialized"));
+      processed.incrementAndGet();
+      metrics.recordTokens(10);
+    }
+
+    @Override
+    protected void afterLastDocument(Controller ctrl, Throwable t) {
+    }
+
+    @Override
+    protected void finishedNoDocument(Controller ctrl, Throwable t) {
+    }
+  }
+
+  private static List<CountingPR> duplicates(int n, AtomicInteger inits, AtomicInteger processed) throws Exception {
+    List<CountingPR> prs = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      CountingPR pr = new CountingPR(inits, processed);
+      if (i > 0) {
+        // what duplicating does with the sharable fields
+        CountingPR first = prs.get(0);
+        pr.setNDuplicates(first.getNDuplicates());
+        pr.setSharedData(first.getSharedData());
+        pr.setSeenDocuments(first.getSeenDocuments());
+        pr.setRemainingDuplicates(first.getRemainingDuplicates());
+        pr.setSyncObject(first.getSyncObject());
+      }
+      pr.init();
+      prs.add(pr);
+    }
+    return prs;
+  }
+
+  // Clean up all duplicates, which also unregisters the metrics
+  private static void cleanup(List<CountingPR> prs) {
+    for (CountingPR pr : prs) {
+      pr.cleanup();
+    }
+  }
+
+  // Run all duplicates in their own thread and return the errors
+  private static List<Throwable> run(List<CountingPR> prs, int docsPerDuplicate) throws Exception {
+    for (CountingPR pr : prs) {
+      pr.controllerExecutionStarted(null);
+    }
+    List<Throwable> errors = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (CountingPR pr : prs) {
+      Thread thread = new Thread(() -> {
+        try {
+          for (int d = 0; d < docsPerDuplicate; d++) {
+            pr.execute();
+          }
+        } catch (Throwable ex) {
+          synchronized (errors) {
+            errors.add(ex);
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (CountingPR pr : prs) {
+      pr.controllerExecutionFinished(null);
+    }
+    return errors;
+  }
+
+  @Test
+  public void testFirstDocument() throws Exception {
+    AtomicInteger inits = new AtomicInteger();
+    AtomicInteger processed = new AtomicInteger();
+    List<CountingPR> prs = duplicates(4, inits, processed);
+    try {
+      assertTrue(run(prs, 25).isEmpty());
+      assertEquals(1, inits.get());
+      assertEquals(100, processed.get());
+      assertEquals(100, prs.get(0).getSeenDocuments().get());
+      // each run initializes once again
+      assertTrue(run(prs, 25).isEmpty());
+      assertEquals(2, inits.get());
+      assertEquals(200, processed.get());
+    } finally {
+      cleanup(prs);
+    }
+  }
+
+  @Test
+  public void testFirstDocumentFails() throws Exception {
+    AtomicInteger inits = new AtomicInteger();
+    AtomicInteger processed = new AtomicInteger();
+    List<CountingPR> prs = duplicates(4, inits, processed);
+    for (CountingPR pr : prs) {
+      pr.fail = true;
+    }
+    List<Throwable> errors;
+    try {
+      errors = run(prs, 3);
+    } finally {
+      cleanup(prs);
+    }
+    // the duplicate which initialized gets the original exception, all
+    // others fail instead of processing without the initialization
+    assertEquals(4, errors.size());
+    assertEquals(0, processed.get());
+    int nOriginal = 0;
+    for (Throwable error : errors) {
+      if (error instanceof IllegalStateException) {
+        nOriginal++;
+      } else {
+        assertTrue(error instanceof ExecutionException);
+        assertTrue(error.getCause() instanceof IllegalStateException);
+      }
+    }
+    assertEquals(1, nOriginal);
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    AtomicInteger inits = new AtomicInteger();
+    AtomicInteger processed = new AtomicInteger();
+    List<CountingPR> prs = duplicates(3, inits, processed);
+    prs.get(0).setName("metrics test");
+    assertTrue(run(prs, 10).isEmpty());
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("gate.plugin.corpusstats.tests:type=CountingPR,name=" + 
+            ObjectName.quote("metrics test"));
+    assertEquals(30L, server.getAttribute(name, "Documents"));
+    assertEquals(300L, server.getAttribute(name, "Tokens"));
+    assertTrue((Double) server.getAttribute(name, "DocumentsPerSecond") > 0.0);
+    // the processing times are by duplicate
+    double[] p99 = (double[]) server.getAttribute(name, "ProcessMillisP99");
+    assertEquals(3, p99.length);
+    // the values stay after the run
+    double seconds = prs.get(0).getMetrics().getElapsedSeconds();
+    Thread.sleep(10);
+    assertEquals(seconds, prs.get(0).getMetrics().getElapsedSeconds(), 0.0);
+    cleanup(prs);
+    assertFalse(server.isRegistered(name));
+  }
+}
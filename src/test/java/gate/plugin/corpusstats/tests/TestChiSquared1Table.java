@@ -0,0 +1,48 @@
+/* 
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.corpusstats.tests;
+
+import gate.plugin.corpusstats.ChiSquared1Table;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Johann Petrak
+ */
+public class TestChiSquared1Table {
+  @Test
+  public void testAccuracy() {
+    double maxErr = 0.0;
+    for(int i = 0; i <= 700000; i++) {
+      double x = i * 0.0001;
+      double err = Math.abs(ChiSquared1Table.cumulativeProbability(x) - 
+              ChiSquared1Table.exactCumulativeProbability(x));
+      maxErr = Math.max(maxErr, err);
+    }
+    assertTrue("max error "+maxErr, maxErr <= ChiSquared1Table.MAX_ERROR);
+    // outside of the table range, the exact value is used
+    assertEquals(ChiSquared1Table.exactCumulativeProbability(100.0), 
+            ChiSquared1Table.cumulativeProbability(100.0), 0.0);
+    assertTrue(Double.isNaN(ChiSquared1Table.cumulativeProbability(Double.NaN)) ==
+            Double.isNaN(ChiSquared1Table.exactCumulativeProbability(Double.NaN)));
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.corpusstats.tests;
+
+import gate.plugin.corpusstats.CollocationStore;
+import gate.plugin.corpusstats.CorpusStatsCollocationsData;
+import gate.plugin.corpusstats.PairStats;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Johann Petrak
+ */
+public class TestCollocationStore {
+
+  private static void addTerm(CorpusStatsCollocationsData data, String term, long count) {
+    data.terms.intern(term);
+    data.countsTerms1.computeIfAbsent(term, t -> new LongAdder()).add(count);
+  }
+
+  @Test
+  public void testWriteAndLookup() throws Exception {
+    CorpusStatsCollocationsData data = new CorpusStatsCollocationsData();
+    // never counted, must not be in the store
+    data.terms.intern("unused");
+    addTerm(data, "zebra", 3);
+    addTerm(data, "apple", 5);
+    addTerm(data, "über", 2);
+    addTerm(data, "mango", 4);
+    data.addPairCount("zebra", "apple", 2);
+    data.addPairCount("mango", "über", 1);
+    data.addPairCount("apple", "mango", 3);
+    data.totalContexts.add(10);
+    data.nDocs.add(2);
+    File file = File.createTempFile("collocations", ".bin");
+    file.deleteOnExit();
+    CollocationStore.write(data, file);
+
+    CollocationStore store = CollocationStore.open(file);
+    assertEquals(4, store.getNumberOfTerms());
+    assertEquals(3, store.getNumberOfPairs());
+    assertEquals(10, store.getNumberOfContexts());
+    assertEquals(2, store.getNumberOfDocuments());
+    assertEquals("apple", store.getTerm(0));
+    assertEquals("über", store.getTerm(3));
+    assertEquals(-1, store.getTermId("unused"));
+    assertEquals(3, store.getTerm1Count(store.getTermId("zebra")));
+    int apple = store.getTermId("apple");
+    int zebra = store.getTermId("zebra");
+    // pairs of one type are unordered
+    assertEquals(2, store.getPairCount(zebra, apple));
+    assertEquals(2, store.getPairCount(apple, zebra));
+    assertEquals(0, store.getPairCount(zebra, store.getTermId("mango")));
+    assertEquals(0, store.getPairCount(zebra, -1));
+    long[] keys = { store.pairKey(apple, apple), store.pairKey(apple, zebra), store.pairKey(zebra, zebra) };
+    long[] counts = new long[keys.length];
+    store.getPairCounts(keys, keys.length, counts);
+    assertArrayEquals(new long[] { 0, 2, 0 }, counts);
+    data.initStats();
+    PairStats expected = data.calcStats_worker(3, 5, 4);
+    PairStats actual = store.getPairStats("mango", "apple");
+    assertEquals(expected.pmi, actual.pmi, 1e-12);
+    assertEquals(expected.npmi, actual.npmi, 1e-12);
+    assertEquals(expected.chi2_p, actual.chi2_p, 1e-12);
+
+    // the partners of apple are in its row and in its column
+    Map<String, Double> partners = store.getTopPartners("apple", true, "pmi", 5);
+    assertEquals(Arrays.asList("mango", "zebra"), new ArrayList<>(partners.keySet()));
+    assertEquals(store.getPairStats("apple", "zebra").pmi, partners.get("zebra"), 1e-12);
+    assertEquals(1, store.getTopPartners("über", true, "npmi", 1).size());
+    assertTrue(store.getTopPartners("unused", true, "npmi", 1).isEmpty());
+
+    // loading the store gives the same counts
+    CorpusStatsCollocationsData loaded = new CorpusStatsCollocationsData();
+    loaded.load(file.toURI().toURL(), null, null);
+    assertEquals(10, loaded.totalContexts.sum());
+    assertEquals(4, loaded.countsTerms1.size());
+    assertEquals(5, loaded.countsTerms1.get("apple").sum());
+    assertEquals(3, loaded.countsPairs.size());
+    assertEquals(1, loaded.countsPairs.get(
+            loaded.pairKey(loaded.terms.getId("über"), loaded.terms.getId("mango"))));
+  }
+
+  @Test
+  public void testMatrixExport() throws Exception {
+    CorpusStatsCollocationsData data = new CorpusStatsCollocationsData();
+    addTerm(data, "zebra", 3);
+    addTerm(data, "apple", 5);
+    addTerm(data, "mango", 4);
+    addTerm(data, "rare", 1);
+    data.addPairCount("zebra", "apple", 2);
+    data.addPairCount("apple", "mango", 3);
+    data.addPairCount("rare", "mango", 1);
+    data.totalContexts.add(10);
+    data.minContexts_t1 = 2;
+    data.minContexts_t2 = 2;
+    data.initStats();
+    double pmiAZ = data.calcStats_worker(2, 5, 3).pmi;
+    double pmiAM = data.calcStats_worker(3, 5, 4).pmi;
+    assertTrue(pmiAZ > 0 && pmiAM > 0);
+
+    File mtx = File.createTempFile("matrix", ".mtx");
+    mtx.deleteOnExit();
+    File vocab = new File(mtx.getPath() + ".vocab.tsv");
+    vocab.deleteOnExit();
+    data.saveMatrix(mtx.toURI().toURL(), "ppmi", "mtx");
+    // rare is below the minimum counts
+    assertEquals(Arrays.asList("apple\t5\t5", "mango\t4\t4", "zebra\t3\t3"),
+            Files.readAllLines(vocab.toPath(), StandardCharsets.UTF_8));
+    List<String> lines = Files.readAllLines(mtx.toPath(), StandardCharsets.US_ASCII);
+    assertEquals("%%MatrixMarket matrix coordinate real general", lines.get(0));
+    assertEquals("3 3 4", lines.get(2).trim());
+    assertEquals(7, lines.size());
+    assertTrue(lines.contains("1 3 " + pmiAZ));
+    assertTrue(lines.contains("3 1 " + pmiAZ));
+    assertTrue(lines.contains("2 1 " + pmiAM));
+
+    File csr = File.createTempFile("matrix", ".csr");
+    csr.deleteOnExit();
+    new File(csr.getPath() + ".vocab.tsv").deleteOnExit();
+    data.saveMatrix(csr.toURI().toURL(), "ppmi", "csr");
+    try (DataInputStream dis = new DataInputStream(new FileInputStream(csr))) {
+      byte[] magic = new byte[8];
+      dis.readFully(magic);
+      assertEquals("CSCSRMAT", new String(magic, StandardCharsets.US_ASCII));
+      assertEquals(1, dis.readInt());
+      dis.readInt();
+      assertEquals(3, dis.readLong());
+      assertEquals(3, dis.readLong());
+      assertEquals(4, dis.readLong());
+      long[] rowStarts = new long[4];
+      for (int i = 0; i < rowStarts.length; i++) {
+        rowStarts[i] = dis.readLong();
+      }
+      assertArrayEquals(new long[] { 0, 2, 3, 4 }, rowStarts);
+      // the row of apple has mango and zebra
+      assertEquals(1, dis.readInt());
+      assertEquals((float) pmiAM, dis.readFloat(), 0f);
+      assertEquals(2, dis.readInt());
+      assertEquals((float) pmiAZ, dis.readFloat(), 0f);
+      assertEquals(0, dis.readInt());
+      assertEquals((float) pmiAM, dis.readFloat(), 0f);
+      assertEquals(0, dis.readInt());
+    }
+  }
+}
@@ -0,0 +1,313 @@
+/* 
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.corpusstats.tests;
+
+import gate.plugin.corpusstats.CollocationsCounter;
+import gate.plugin.corpusstats.LongLongHashMap;
+import gate.plugin.corpusstats.PairCounts;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Johann Petrak
+ */
+public class TestCollocationsCounter {
+
+  /**
+   * Count each window position of the span as a separate span, this is 
+   * what the sliding window counts must be equal to.
+   */
+  public static void countWindowsSeparately(CollocationsCounter counter, 
+          int[] ids, byte[] types, boolean[] eligible, int length, int windowSize) {
+    if(windowSize <= 0 || windowSize >= length) {
+      counter.countSpan(ids, types, eligible, length, 0);
+      return;
+    }
+    for(int k = 0; k + windowSize <= length; k++) {
+      counter.countSpan(
+              Arrays.copyOfRange(ids, k, k + windowSize), 
+              Arrays.copyOfRange(types, k, k + windowSize), 
+              Arrays.copyOfRange(eligible, k, k + windowSize), 
+              windowSize, 0);
+    }
+  }
+
+  private static void assertSameCounts(LongLongHashMap expected, LongLongHashMap actual) {
+    assertEquals(expected.size(), actual.size());
+    expected.forEach((k,v) -> assertEquals(v, actual.get(k)));
+  }
+  
+  @Test
+  public void testSlidingWindow() {
+    // small vocabularies so that terms and pairs get repeated within windows
+    Random rnd = new Random(1);
+    for(int run = 0; run < 400; run++) {
+      boolean twoTypes = rnd.nextBoolean();
+      boolean ordered = rnd.nextBoolean();
+      int length = 2 + rnd.nextInt(40);
+      int windowSize = 2 + rnd.nextInt(12);
+      int vocab = 1 + rnd.nextInt(10);
+      int[] ids = new int[length];
+      byte[] types = new byte[length];
+      boolean[] eligible = new boolean[length];
+      for(int i = 0; i < length; i++) {
+        ids[i] = rnd.nextInt(vocab);
+        types[i] = (byte)(1 + rnd.nextInt(2));
+        eligible[i] = rnd.nextInt(4) > 0;
+      }
+      CollocationsCounter expected = new CollocationsCounter(twoTypes, ordered);
+      CollocationsCounter actual = new CollocationsCounter(twoTypes, ordered);
+      // count twice, to check that the per-span state gets cleared
+      for(int i = 0; i < 2; i++) {
+        countWindowsSeparately(expected, ids, types, eligible, length, windowSize);
+        actual.countSpan(ids, types, eligible, length, windowSize);
+      }
+      assertEquals(expected.contexts, actual.contexts);
+      assertSameCounts(expected.term1counts, actual.term1counts);
+      assertSameCounts(expected.term2counts, actual.term2counts);
+      assertSameCounts(expected.paircounts, actual.paircounts);
+    }
+  }
+
+  @Test
+  public void testPairable() {
+    // counting the pairs of only the pairable terms must give the same 
+    // counts as counting all pairs and dropping the others, the terms and
+    // contexts must not be affected
+    Random rnd = new Random(2);
+    for(int run = 0; run < 400; run++) {
+      boolean twoTypes = rnd.nextBoolean();
+      boolean ordered = rnd.nextBoolean();
+      int length = 2 + rnd.nextInt(40);
+      int windowSize = rnd.nextInt(12);
+      int vocab = 1 + rnd.nextInt(10);
+      int[] ids = new int[length];
+      byte[] types = new byte[length];
+      boolean[] eligible = new boolean[length];
+      for(int i = 0; i < length; i++) {
+        ids[i] = rnd.nextInt(vocab);
+        types[i] = (byte)(1 + rnd.nextInt(2));
+        eligible[i] = rnd.nextInt(4) > 0;
+      }
+      // some ids are not in the arrays at all
+      boolean[] pairable1 = new boolean[rnd.nextInt(vocab + 1)];
+      boolean[] pairable2 = new boolean[rnd.nextInt(vocab + 1)];
+      for(int i = 0; i < pairable1.length; i++) {
+        pairable1[i] = rnd.nextBoolean();
+      }
+      for(int i = 0; i < pairable2.length; i++) {
+        pairable2[i] = rnd.nextBoolean();
+      }
+      CollocationsCounter all = new CollocationsCounter(twoTypes, ordered);
+      CollocationsCounter restricted = new CollocationsCounter(twoTypes, ordered);
+      restricted.setPairable(pairable1, twoTypes ? pairable2 : pairable1);
+      CollocationsCounter termsOnly = new CollocationsCounter(twoTypes, ordered);
+      termsOnly.setCounting(true, false);
+      all.countSpan(ids, types, eligible, length, windowSize);
+      restricted.countSpan(ids, types, eligible, length, windowSize);
+      termsOnly.countSpan(ids, types, eligible, length, windowSize);
+      assertEquals(all.contexts, restricted.contexts);
+      assertEquals(all.contexts, termsOnly.contexts);
+      assertSameCounts(all.term1counts, restricted.term1counts);
+      assertSameCounts(all.term2counts, restricted.term2counts);
+      assertSameCounts(all.term1counts, termsOnly.term1counts);
+      assertEquals(0, termsOnly.paircounts.size());
+      LongLongHashMap expected = new LongLongHashMap();
+      all.paircounts.forEach((key, count) -> {
+        int id1 = PairCounts.term1(key);
+        int id2 = PairCounts.term2(key);
+        boolean[] p2 = twoTypes ? pairable2 : pairable1;
+        if(id1 < pairable1.length && pairable1[id1] && id2 < p2.length && p2[id2]) {
+          expected.addTo(key, count);
+        }
+      });
+      assertSameCounts(expected, restricted.paircounts);
+    }
+  }
+
+  @Test
+  public void testBothOrders() {
+    // the ordered counts folded with the counts of both orders must give
+    // the unordered counts
+    Random rnd = new Random(3);
+    for(int run = 0; run < 400; run++) {
+      int length = 2 + rnd.nextInt(40);
+      int windowSize = rnd.nextInt(12);
+      int vocab = 1 + rnd.nextInt(10);
+      int[] ids = new int[length];
+      byte[] types = new byte[length];
+      boolean[] eligible = new boolean[length];
+      for(int i = 0; i < length; i++) {
+        ids[i] = rnd.nextInt(vocab);
+        types[i] = 1;
+        eligible[i] = rnd.nextInt(4) > 0;
+      }
+      CollocationsCounter ordered = new CollocationsCounter(false, true);
+      ordered.setCountBothOrders(true);
+      CollocationsCounter unordered = new CollocationsCounter(false, false);
+      for(int i = 0; i < 2; i++) {
+        ordered.countSpan(ids, types, eligible, length, windowSize);
+        unordered.countSpan(ids, types, eligible, length, windowSize);
+      }
+      LongLongHashMap folded = new LongLongHashMap();
+      ordered.paircounts.forEach((key, count) -> {
+        int id1 = PairCounts.term1(key);
+        int id2 = PairCounts.term2(key);
+        folded.addTo(PairCounts.pairKey(Math.min(id1, id2), Math.max(id1, id2)), count);
+      });
+      ordered.bothcounts.forEach((key, count) -> folded.addTo(key, -count));
+      assertSameCounts(unordered.paircounts, folded);
+    }
+  }
+
+  @Test
+  public void testMaxPairsPerContext() {
+    // with the limit, each whole span context counts a sample of its pairs,
+    // a limit which is not reached does not change anything
+    Random rnd = new Random(4);
+    for(int run = 0; run < 400; run++) {
+      boolean twoTypes = rnd.nextBoolean();
+      boolean ordered = rnd.nextBoolean();
+      int length = 2 + rnd.nextInt(40);
+      int vocab = 1 + rnd.nextInt(20);
+      int[] ids = new int[length];
+      byte[] types = new byte[length];
+      boolean[] eligible = new boolean[length];
+      for(int i = 0; i < length; i++) {
+        ids[i] = rnd.nextInt(vocab);
+        types[i] = (byte)(1 + rnd.nextInt(2));
+        eligible[i] = rnd.nextInt(4) > 0;
+      }
+      CollocationsCounter all = new CollocationsCounter(twoTypes, ordered);
+      all.countSpan(ids, types, eligible, length, 0);
+      int nPairs = all.paircounts.size();
+      CollocationsCounter unlimited = new CollocationsCounter(twoTypes, ordered);
+      unlimited.setMaxPairsPerContext(nPairs + 1, new Random(run));
+      unlimited.countSpan(ids, types, eligible, length, 0);
+      assertSameCounts(all.paircounts, unlimited.paircounts);
+      assertEquals(nPairs, unlimited.contextPairs);
+      assertEquals(nPairs, unlimited.contextPairsKept);
+      int max = 1 + rnd.nextInt(5);
+      CollocationsCounter limited = new CollocationsCounter(twoTypes, ordered);
+      limited.setMaxPairsPerContext(max, new Random(run));
+      limited.countSpan(ids, types, eligible, length, 0);
+      assertEquals(Math.min(max, nPairs), limited.paircounts.size());
+      assertEquals(nPairs, limited.contextPairs);
+      assertEquals(Math.min(max, nPairs), limited.contextPairsKept);
+      limited.paircounts.forEach((key, count) -> assertEquals(1, all.paircounts.get(key)));
+      // with a seed for the span, the sample does not depend on the spans
+      // counted before, e.g. by another thread
+      CollocationsCounter after = new CollocationsCounter(twoTypes, ordered);
+      after.setMaxPairsPerContext(max, new Random());
+      after.countSpan(ids, types, eligible, length, 0);
+      after.reset();
+      after.setSeed(run);
+      after.countSpan(ids, types, eligible, length, 0);
+      assertSameCounts(limited.paircounts, after.paircounts);
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void testMaxPairsPerContextLongSpan() {
+    // with the limit, the cost of a whole span does not grow with the 
+    // square of its length
+    Random rnd = new Random(5);
+    int length = 1000000;
+    int[] ids = new int[length];
+    byte[] types = new byte[length];
+    boolean[] eligible = new boolean[length];
+    boolean[] seen = new boolean[50000];
+    int nTerms = 0;
+    for(int i = 0; i < length; i++) {
+      ids[i] = rnd.nextInt(seen.length);
+      types[i] = 1;
+      eligible[i] = true;
+      if (!seen[ids[i]]) {
+        seen[ids[i]] = true;
+        nTerms++;
+      }
+    }
+    CollocationsCounter counter = new CollocationsCounter(false, false);
+    counter.setMaxPairsPerContext(1000, new Random(5));
+    counter.countSpan(ids, types, eligible, length, 0);
+    assertEquals(nTerms, counter.term1counts.size());
+    assertEquals(1000, counter.paircounts.size());
+    assertEquals((long) nTerms * (nTerms - 1) / 2, counter.contextPairs);
+    assertEquals(1000, counter.contextPairsKept);
+  }
+
+  @Test
+  public void testSplitWindows() {
+    // counting the pieces of a span separately, as the parallel processing
+    // does, gives the same counts as counting the span, also with a limit
+    // on the pairs, which must not be used for any piece
+    Random rnd = new Random(6);
+    for(int run = 0; run < 400; run++) {
+      boolean twoTypes = rnd.nextBoolean();
+      boolean ordered = rnd.nextBoolean();
+      int length = 3 + rnd.nextInt(40);
+      int windowSize = 2 + rnd.nextInt(length - 2);
+      int windowsPerPiece = 1 + rnd.nextInt(6);
+      int max = 1 + rnd.nextInt(3);
+      int[] ids = new int[length];
+      byte[] types = new byte[length];
+      boolean[] eligible = new boolean[length];
+      for(int i = 0; i < length; i++) {
+        ids[i] = rnd.nextInt(1 + length / 2);
+        types[i] = (byte)(1 + rnd.nextInt(2));
+        eligible[i] = rnd.nextInt(4) > 0;
+      }
+      CollocationsCounter sequential = new CollocationsCounter(twoTypes, ordered);
+      sequential.setCountBothOrders(true);
+      sequential.setMaxPairsPerContext(max, new Random(run));
+      sequential.countSpan(ids, types, eligible, length, windowSize);
+      CollocationsCounter pieces = new CollocationsCounter(twoTypes, ordered);
+      pieces.setCountBothOrders(true);
+      pieces.setMaxPairsPerContext(max, new Random(run));
+      List<int[]> ranges = CollocationsCounter.splitWindows(length, windowSize, windowsPerPiece);
+      int nWindows = 0;
+      int expectedFrom = 0;
+      for(int[] range : ranges) {
+        assertEquals(expectedFrom, range[0]);
+        assertTrue(range[1] - range[0] > windowSize);
+        nWindows += range[1] - range[0] - windowSize + 1;
+        expectedFrom = range[1] - windowSize + 1;
+        pieces.countSpan(
+                Arrays.copyOfRange(ids, range[0], range[1]),
+                Arrays.copyOfRange(types, range[0], range[1]),
+                Arrays.copyOfRange(eligible, range[0], range[1]),
+                range[1] - range[0], windowSize);
+      }
+      assertEquals(length, ranges.get(ranges.size() - 1)[1]);
+      assertEquals(length - windowSize + 1, nWindows);
+      assertSameCounts(sequential.term1counts, pieces.term1counts);
+      assertSameCounts(sequential.term2counts, pieces.term2counts);
+      assertSameCounts(sequential.paircounts, pieces.paircounts);
+      assertSameCounts(sequential.bothcounts, pieces.bothcounts);
+      assertEquals(sequential.contexts, pieces.contexts);
+      assertEquals(0, pieces.contextPairs);
+    }
+  }
+}
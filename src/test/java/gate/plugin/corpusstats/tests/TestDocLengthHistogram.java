@@ -0,0 +1,62 @@
+/* 
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.corpusstats.tests;
+
+import gate.plugin.corpusstats.DocLengthHistogram;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Johann Petrak
+ */
+public class TestDocLengthHistogram {
+  @Test
+  public void testBuckets() {
+    // every length must fall into the bucket it is reported in and the 
+    // buckets must be adjacent
+    for(long len = 0; len < 100000; len++) {
+      int idx = DocLengthHistogram.bucketIndex(len);
+      assertTrue(DocLengthHistogram.bucketFrom(idx) <= len);
+      assertTrue(DocLengthHistogram.bucketTo(idx) > len);
+      if(idx > 0) {
+        assertEquals(DocLengthHistogram.bucketTo(idx-1), DocLengthHistogram.bucketFrom(idx));
+      }
+    }
+    int idx = DocLengthHistogram.bucketIndex(Long.MAX_VALUE);
+    assertTrue(DocLengthHistogram.bucketFrom(idx) <= Long.MAX_VALUE);
+  }
+  
+  @Test
+  public void testQuantiles() {
+    DocLengthHistogram h = new DocLengthHistogram();
+    for(int len = 1; len <= 10000; len++) {
+      h.add(len);
+    }
+    assertEquals(10000, h.getNDocs());
+    assertEquals(5000.5, h.getMean(), 1e-9);
+    // the estimate must be within the relative bucket width 
+    assertEquals(5000.0, h.getQuantile(0.5), 5000.0/16);
+    assertEquals(9000.0, h.getQuantile(0.9), 9000.0/16);
+    assertEquals(10.0, h.getQuantile(0.001), 1.0);
+  }
+  
+} // class
@@ -0,0 +1,145 @@
+/* 
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.corpusstats.tests;
+
+import gate.plugin.corpusstats.LongLongHashMap;
+import gate.plugin.corpusstats.LongStampSet;
+import gate.plugin.corpusstats.PairCounts;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Johann Petrak
+ */
+public class TestLongLongHashMap {
+  @Test
+  public void testAgainstHashMap() {
+    // random operations on a small key range, so that there are many 
+    // collisions and removals in the middle of probe sequences
+    Random rnd = new Random(1);
+    LongLongHashMap map = new LongLongHashMap();
+    Map<Long,Long> ref = new HashMap<>();
+    for(int i = 0; i < 200000; i++) {
+      long key = rnd.nextInt(2000) - 5;
+      int op = rnd.nextInt(3);
+      if(op == 0) {
+        map.remove(key);
+        ref.remove(key);
+      } else {
+        map.addTo(key, op);
+        ref.merge(key, (long)op, Long::sum);
+      }
+    }
+    assertEquals(ref.size(), map.size());
+    for(long key = -5; key < 2000; key++) {
+      assertEquals(ref.containsKey(key), map.containsKey(key));
+      assertEquals(ref.getOrDefault(key, 0L).longValue(), map.get(key));
+    }
+    long[] sum = new long[1];
+    map.forEach((k,v) -> sum[0] += v);
+    assertEquals(ref.values().stream().mapToLong(Long::longValue).sum(), sum[0]);
+  }
+  
+  @Test
+  public void testPairCounts() {
+    long key = PairCounts.pairKey(7, Integer.MAX_VALUE);
+    assertEquals(7, PairCounts.term1(key));
+    assertEquals(Integer.MAX_VALUE, PairCounts.term2(key));
+    PairCounts counts = new PairCounts();
+    LongLongHashMap local = new LongLongHashMap();
+    for(int i = 0; i < 1000; i++) {
+      local.addTo(PairCounts.pairKey(i, i+1), i);
+    }
+    counts.addAll(local);
+    counts.addAll(local);
+    assertEquals(1000, counts.size());
+    assertEquals(2*999, counts.get(PairCounts.pairKey(999, 1000)));
+    assertEquals(0, counts.get(PairCounts.pairKey(1000, 999)));
+  }
+  
+  @Test
+  public void testSpilledPairCounts() {
+    // with a budget of 100 pairs, the counts get spilled many times, the
+    // merged counts must be the same as without spilling
+    Random rnd = new Random(4);
+    PairCounts counts = new PairCounts();
+    counts.setMemoryBudget(100 * PairCounts.BYTES_PER_PAIR);
+    Map<Long, Long> ref = new HashMap<>();
+    try {
+      for(int doc = 0; doc < 200; doc++) {
+        LongLongHashMap local = new LongLongHashMap();
+        for(int i = 0; i < 20; i++) {
+          long key = PairCounts.pairKey(rnd.nextInt(40), rnd.nextInt(40));
+          local.addTo(key, 1 + rnd.nextInt(3));
+        }
+        local.forEach((key, count) -> ref.merge(key, count, Long::sum));
+        counts.addAll(local);
+      }
+      counts.add(PairCounts.pairKey(0, 0), 5);
+      ref.merge(PairCounts.pairKey(0, 0), 5L, Long::sum);
+      assertTrue(counts.isSpilled());
+      assertEquals(ref.size(), counts.size());
+      for(Map.Entry<Long, Long> entry : ref.entrySet()) {
+        assertEquals((long)entry.getValue(), counts.get(entry.getKey()));
+      }
+      Map<Long, Long> merged = new HashMap<>();
+      for(int p = 0; p < counts.getNumberOfPartitions(); p++) {
+        long[] last = { Long.MIN_VALUE };
+        counts.forEachInPartition(p, 0, counts.getPartitionCapacity(p), (key, count) -> {
+          // each pair only once and in key order
+          assertTrue(key > last[0]);
+          last[0] = key;
+          assertNull(merged.put(key, count));
+        });
+      }
+      assertEquals(ref, merged);
+    } finally {
+      counts.deleteRuns();
+    }
+  }
+
+  @Test
+  public void testStampSet() {
+    // the set is cleared often and grows while it contains keys
+    Random rnd = new Random(2);
+    LongStampSet set = new LongStampSet(4);
+    Set<Long> ref = new HashSet<>();
+    for(int i = 0; i < 100000; i++) {
+      if(rnd.nextInt(500) == 0) {
+        set.clear();
+        ref.clear();
+      }
+      long key = rnd.nextInt(3000) - 5;
+      assertEquals(ref.add(key), set.add(key));
+      assertEquals(ref.size(), set.size());
+    }
+    for(long key = -5; key < 3000; key++) {
+      assertEquals(ref.contains(key), set.contains(key));
+    }
+  }
+  
+} // class
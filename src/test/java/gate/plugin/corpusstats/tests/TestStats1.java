@@ -38,7 +38,7 @@ public class TestStats1 {
     // example 1: table 5.8 from Manning1999
     cs.nDocs.add(1);
     cs.totalContexts.add(8+15820+4667+14287173);
-    cs.countsPairs.computeIfAbsent("companies\tnew", (var -> new LongAdder())).add(8);
+    cs.addPairCount("companies", "new", 8);
     cs.countsTerms1.computeIfAbsent("companies", (var -> new LongAdder())).add(8+4667);
     cs.countsTerms1.computeIfAbsent("new", (var -> new LongAdder())).add(8+15820);    
     cs.initStats();
@@ -58,7 +58,7 @@ public class TestStats1 {
     cs = new CorpusStatsCollocationsData();
     cs.nDocs.add(1);
     cs.totalContexts.add(31950+12004+4793+848330);
-    cs.countsPairs.computeIfAbsent("chambre\thouse", (var -> new LongAdder())).add(31950);
+    cs.addPairCount("chambre", "house", 31950);
     cs.countsTerms1.computeIfAbsent("chambre", (var -> new LongAdder())).add(31950+4793);
     cs.countsTerms1.computeIfAbsent("house", (var -> new LongAdder())).add(31950+12004);
     cs.initStats();
@@ -71,16 +71,16 @@ public class TestStats1 {
     // example 3: Jurafsky2016
     cs = new CorpusStatsCollocationsData();
     cs.totalContexts.add(19);
-    cs.countsPairs.computeIfAbsent("computer\tdigital", (var -> new LongAdder())).add(2);
-    cs.countsPairs.computeIfAbsent("computer\tinformation", (var -> new LongAdder())).add(1);
-    cs.countsPairs.computeIfAbsent("data\tdigital", (var -> new LongAdder())).add(1);
-    cs.countsPairs.computeIfAbsent("data\tinformation", (var -> new LongAdder())).add(6);
-    cs.countsPairs.computeIfAbsent("apricot\tpinch", (var -> new LongAdder())).add(1);
-    cs.countsPairs.computeIfAbsent("pinch\tpineapple", (var -> new LongAdder())).add(1);
-    cs.countsPairs.computeIfAbsent("digital\tresult", (var -> new LongAdder())).add(1);
-    cs.countsPairs.computeIfAbsent("information\tresult", (var -> new LongAdder())).add(4);
-    cs.countsPairs.computeIfAbsent("apricot\tsugar", (var -> new LongAdder())).add(1);
-    cs.countsPairs.computeIfAbsent("pineapple\tsugar", (var -> new LongAdder())).add(1);
+    cs.addPairCount("computer", "digital", 2);
+    cs.addPairCount("computer", "information", 1);
+    cs.addPairCount("data", "digital", 1);
+    cs.addPairCount("data", "information", 6);
+    cs.addPairCount("apricot", "pinch", 1);
+    cs.addPairCount("pinch", "pineapple", 1);
+    cs.addPairCount("digital", "result", 1);
+    cs.addPairCount("information", "result", 4);
+    cs.addPairCount("apricot", "sugar", 1);
+    cs.addPairCount("pineapple", "sugar", 1);
     
     cs.countsTerms1.computeIfAbsent("computer", (var -> new LongAdder())).add(3);
     cs.countsTerms1.computeIfAbsent("data", (var -> new LongAdder())).add(7);
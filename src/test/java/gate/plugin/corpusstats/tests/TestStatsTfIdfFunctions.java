@@ -0,0 +1,88 @@
+/* 
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.corpusstats.tests;
+
+import gate.plugin.corpusstats.StatsTfIdfFunction;
+import gate.plugin.corpusstats.StatsTfIdfFunctions;
+import gate.plugin.corpusstats.TermStats;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Johann Petrak
+ */
+public class TestStatsTfIdfFunctions {
+
+  private static StatsTfIdfFunction function(String name) {
+    return StatsTfIdfFunctions.names2functions(name).get(name);
+  }
+
+  // a term which occurs in 2 of the 10 documents
+  private static TermStats termStats() {
+    TermStats ts = new TermStats();
+    ts.incrementDf();
+    ts.incrementDf();
+    return ts;
+  }
+
+  @Test
+  public void testBm25() {
+    StatsTfIdfFunction bm25 = function("bm25");
+    Map<String,Object> options = new HashMap<>();
+    options.put("k1", 1.2);
+    options.put("b", 0.75);
+    options.put("avgdl", 100.0);
+    // tf 3 in a document of length 50:
+    // idf = ln(1 + (10 - 2 + 0.5) / (2 + 0.5)) = ln(4.4) = 1.48160
+    // tf part = 3 * 2.2 / (3 + 1.2 * (0.25 + 0.75 * 50 / 100)) = 6.6 / 3.75 = 1.76
+    assertEquals(2.60762399, bm25.apply(termStats(), 10, 1000, 100, 3, 5, 50, options), 1e-8);
+    assertEquals(0.0, bm25.apply(termStats(), 10, 1000, 100, 0, 5, 50, options), 0.0);
+    // an average length of 0 is used as 1: 
+    // tf part = 6.6 / (3 + 1.2 * (0.25 + 0.75 * 50)) = 0.136645
+    options.put("avgdl", 0.0);
+    assertEquals(0.20245528, bm25.apply(termStats(), 10, 1000, 100, 3, 5, 50, options), 1e-8);
+    // without the option, the average is nWords/nDocs, also if there are no words
+    options.remove("avgdl");
+    assertEquals(0.20245528, bm25.apply(termStats(), 10, 0, 100, 3, 5, 50, options), 1e-8);
+  }
+
+  @Test
+  public void testPivTfIdf() {
+    StatsTfIdfFunction pivtfidf = function("pivtfidf");
+    Map<String,Object> options = new HashMap<>();
+    options.put("slope", 0.2);
+    options.put("pivot", 40.0);
+    // tf 3 in a document of length 50:
+    // lltf = 1 + ln(1 + ln(3)) = 1.741276
+    // norm = 0.8 + 0.2 * 50 / 40 = 1.05
+    // idf = 1 + ln(11 / 3) = 2.299283
+    assertEquals(3.81303523, pivtfidf.apply(termStats(), 10, 1000, 100, 3, 5, 50, options), 1e-8);
+    assertEquals(0.0, pivtfidf.apply(termStats(), 10, 1000, 100, 0, 5, 50, options), 0.0);
+    // a pivot of 0 is used as 1: norm = 0.8 + 0.2 * 50 = 10.8
+    options.put("pivot", 0.0);
+    assertEquals(0.37071176, pivtfidf.apply(termStats(), 10, 1000, 100, 3, 5, 50, options), 1e-8);
+    options.remove("pivot");
+    assertEquals(0.37071176, pivtfidf.apply(termStats(), 10, 0, 100, 3, 5, 50, options), 1e-8);
+  }
+}
@@ -0,0 +1,81 @@
+/* 
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.corpusstats.tests;
+
+import gate.plugin.corpusstats.TermDictionary;
+import gate.plugin.corpusstats.TfTable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Johann Petrak
+ */
+public class TestTfTable {
+  @Test
+  public void testGzipTsv() throws Exception {
+    File file = File.createTempFile("tftable", ".tsv.gz");
+    file.deleteOnExit();
+    try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+            new GZIPOutputStream(new FileOutputStream(file)), StandardCharsets.UTF_8))) {
+      pw.println("term\tdf\ttf");
+      pw.println("Apple\t1\t3");
+      pw.println("banana\t2\t1.5");
+      pw.println("apple\t1\t4");
+    }
+    TfTable table = TfTable.fromTsv(file.toURI().toURL(), false, Locale.ENGLISH);
+    assertEquals(3, table.size());
+    assertSame(table, TfTable.fromTsv(file.toURI().toURL(), false, Locale.ENGLISH));
+    TermDictionary dict = new TermDictionary();
+    int cherry = dict.intern("cherry");
+    float[] tfById = table.bind(dict);
+    assertEquals(4.0f, tfById[dict.getId("apple")], 0.0f);
+    assertEquals(1.5f, tfById[dict.getId("banana")], 0.0f);
+    assertTrue(Float.isNaN(tfById[cherry]));
+    assertTrue(dict.intern("date") >= tfById.length);
+  }
+
+  @Test
+  public void testChangedFile() throws Exception {
+    File file = File.createTempFile("tftable", ".tsv");
+    file.deleteOnExit();
+    try (PrintWriter pw = new PrintWriter(file, "UTF-8")) {
+      pw.println("term\ttf");
+      pw.println("apple\t3");
+    }
+    TfTable table = TfTable.fromTsv(file.toURI().toURL(), true, Locale.ENGLISH);
+    assertEquals(1, table.size());
+    try (PrintWriter pw = new PrintWriter(file, "UTF-8")) {
+      pw.println("term\ttf");
+      pw.println("apple\t3");
+      pw.println("banana\t2");
+    }
+    // the changed file gets loaded again instead of using the cached table
+    assertEquals(2, TfTable.fromTsv(file.toURI().toURL(), true, Locale.ENGLISH).size());
+  }
+}
@@ -0,0 +1,165 @@
+/* 
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.corpusstats.tests;
+
+import gate.plugin.corpusstats.CorpusStatsCollocationsData;
+import gate.plugin.corpusstats.TopKPairs;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Johann Petrak
+ */
+public class TestTopKPairs {
+  @Test
+  public void testTopKPairs() {
+    // merging heaps filled from parts of the input gives the same result
+    // as a single heap, ties are broken by the smaller key
+    Random rnd = new Random(3);
+    TopKPairs all = new TopKPairs(100);
+    TopKPairs part1 = new TopKPairs(100);
+    TopKPairs part2 = new TopKPairs(100);
+    double[] scores = new double[5000];
+    for(int i = 0; i < scores.length; i++) {
+      scores[i] = rnd.nextInt(300) / 10.0;
+      all.offer(scores[i], i);
+      (i % 2 == 0 ? part1 : part2).offer(scores[i], i);
+    }
+    all.offer(Double.NaN, -1);
+    part1.addAll(part2);
+    long[] expected = all.drainKeys();
+    assertEquals(100, expected.length);
+    assertArrayEquals(expected, part1.drainKeys());
+    for(int i = 1; i < expected.length; i++) {
+      double s1 = scores[(int)expected[i-1]];
+      double s2 = scores[(int)expected[i]];
+      assertTrue(s1 > s2 || (s1 == s2 && expected[i-1] < expected[i]));
+    }
+    double[] sorted = scores.clone();
+    Arrays.sort(sorted);
+    assertEquals(sorted[sorted.length - 100], scores[(int)expected[99]], 0.0);
+  }
+
+  // Some pairs of the terms a, b, c, d in 10 contexts, all with different
+  // pair counts so that the prob gives the order. The pairs get added with
+  // c first, so that the term ids are not in lexical order.
+  private static CorpusStatsCollocationsData makeData(boolean orderIsSignificant) {
+    CorpusStatsCollocationsData cs = new CorpusStatsCollocationsData();
+    cs.orderIsSignificant = orderIsSignificant;
+    cs.nDocs.add(1);
+    cs.totalContexts.add(10);
+    cs.addPairCount("c", "d", 1);
+    cs.addPairCount("b", "d", 4);
+    cs.addPairCount("a", "c", 3);
+    cs.addPairCount("b", "c", 2);
+    cs.addPairCount("a", "b", 5);
+    cs.countsTerms1.computeIfAbsent("a", (var -> new LongAdder())).add(8);
+    cs.countsTerms1.computeIfAbsent("b", (var -> new LongAdder())).add(9);
+    cs.countsTerms1.computeIfAbsent("c", (var -> new LongAdder())).add(6);
+    cs.countsTerms1.computeIfAbsent("d", (var -> new LongAdder())).add(5);
+    cs.topKMetric = "prob";
+    return cs;
+  }
+
+  // The rows of a saved pair stats file without the header
+  private static List<String[]> readRows(File file) throws Exception {
+    List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    List<String[]> rows = new ArrayList<>();
+    for (String line : lines.subList(1, lines.size())) {
+      rows.add(line.split("\t"));
+    }
+    return rows;
+  }
+
+  // The term1, term2, freqp, freqt1 and freqt2 columns of the rows
+  private static List<String> counts(List<String[]> rows) {
+    List<String> ret = new ArrayList<>();
+    for (String[] row : rows) {
+      ret.add(String.join(" ", Arrays.copyOf(row, 5)));
+    }
+    return ret;
+  }
+
+  @Test
+  public void testSaveTopK() throws Exception {
+    File dir = Files.createTempDirectory("topkpairs").toFile();
+    // all pairs, to compare the statistics of the selected ones
+    File allFile = new File(dir, "all.tsv");
+    makeData(false).save(null, null, allFile.toURI().toURL(), 0);
+    Map<String, String[]> all = new HashMap<>();
+    for (String[] row : readRows(allFile)) {
+      all.put(row[0] + " " + row[1], row);
+    }
+    assertEquals(5, all.size());
+
+    CorpusStatsCollocationsData cs = makeData(false);
+    cs.topK = 2;
+    cs.topKPerTerm1 = 2;
+    File file = new File(dir, "pairs.tsv");
+    cs.save(null, null, file.toURI().toURL(), 0);
+    List<String[]> top = readRows(file);
+    assertEquals(Arrays.asList("a b 5 8 9", "b d 4 9 5"), counts(top));
+    for (String[] row : top) {
+      assertArrayEquals(all.get(row[0] + " " + row[1]), row);
+    }
+    // for unordered pairs, each term of a pair gets the other as a 
+    // partner, the terms are sorted and the partners best first
+    List<String[]> perTerm1 = readRows(new File(dir, "pairs-perterm1.tsv"));
+    assertEquals(Arrays.asList(
+            "a b 5 8 9", "a c 3 8 6", 
+            "b a 5 9 8", "b d 4 9 5", 
+            "c a 3 6 8", "c b 2 6 9", 
+            "d b 4 5 9", "d c 1 5 6"), counts(perTerm1));
+    // the other statistics are symmetric, so a row in the other direction
+    // has the same ones as the row in the saved direction
+    for (String[] row : perTerm1) {
+      String[] expected = all.get(row[0] + " " + row[1]);
+      if (expected == null) {
+        expected = all.get(row[1] + " " + row[0]);
+      }
+      assertArrayEquals(Arrays.copyOfRange(expected, 5, expected.length), 
+              Arrays.copyOfRange(row, 5, row.length));
+    }
+
+    // for ordered pairs, only the pairs in which the term is first
+    cs = makeData(true);
+    cs.topKPerTerm1 = 2;
+    file = new File(dir, "ordered.tsv");
+    cs.save(null, null, file.toURI().toURL(), 0);
+    assertEquals(5, readRows(file).size());
+    assertEquals(Arrays.asList(
+            "a b 5 8 9", "a c 3 8 6", 
+            "b d 4 9 5", "b c 2 9 6", 
+            "c d 1 6 5"), counts(readRows(new File(dir, "ordered-perterm1.tsv"))));
+  }
+
+} // class
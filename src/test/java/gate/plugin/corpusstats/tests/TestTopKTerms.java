@@ -0,0 +1,107 @@
+/* 
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.corpusstats.tests;
+
+import gate.plugin.corpusstats.AssignStatsTfIdfPR;
+import gate.plugin.corpusstats.TopKTerms;
+import gate.util.GateRuntimeException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Johann Petrak
+ */
+public class TestTopKTerms {
+  @Test
+  public void testSelect() {
+    // the bounded heap gives the same as sorting all terms, in any order
+    Random rnd = new Random(1);
+    for(int run = 0; run < 200; run++) {
+      int n = rnd.nextInt(50);
+      int k = 1 + rnd.nextInt(10);
+      Map<String,Double> scores = new HashMap<>();
+      for(int i = 0; i < n; i++) {
+        // few different values, so that there are many ties
+        scores.put("t" + i, (double) rnd.nextInt(5));
+      }
+      List<String> terms = new ArrayList<>(scores.keySet());
+      Collections.shuffle(terms, rnd);
+      Map<String,Double> top = TopKTerms.select(terms, k, scores::get);
+      List<String> expected = new ArrayList<>(scores.keySet());
+      expected.sort((t1, t2) -> {
+        int ret = Double.compare(scores.get(t2), scores.get(t1));
+        return ret != 0 ? ret : t1.compareTo(t2);
+      });
+      expected = expected.subList(0, Math.min(k, n));
+      assertEquals(expected, new ArrayList<>(top.keySet()));
+      for(String term : expected) {
+        assertEquals(scores.get(term), top.get(term));
+      }
+    }
+  }
+
+  @Test
+  public void testTiesAndMissingScores() {
+    Map<String,Double> scores = new HashMap<>();
+    scores.put("cherry", 2.0);
+    scores.put("banana", 2.0);
+    scores.put("apple", 1.0);
+    scores.put("date", 2.0);
+    scores.put("fig", Double.NaN);
+    // elderberry has no score
+    List<String> terms = Arrays.asList("date", "fig", "cherry", "apple", "elderberry", "banana");
+    assertEquals(Arrays.asList("banana", "cherry"), 
+            new ArrayList<>(TopKTerms.select(terms, 2, scores::get).keySet()));
+    assertEquals(Arrays.asList("banana", "cherry", "date", "apple"), 
+            new ArrayList<>(TopKTerms.select(terms, 10, scores::get).keySet()));
+    assertTrue(TopKTerms.select(terms, 0, scores::get).isEmpty());
+    // with a containing annotation, only the terms in it are candidates, 
+    // the scores are still those for the whole document
+    assertEquals(Arrays.asList("date", "apple"), 
+            new ArrayList<>(TopKTerms.select(Arrays.asList("apple", "date"), 2, scores::get).keySet()));
+  }
+
+  @Test
+  public void testTopKStatistic() {
+    AssignStatsTfIdfPR pr = new AssignStatsTfIdfPR();
+    pr.setTopKStatistic("bm25");
+    assertEquals("bm25", pr.getTopKStatistic());
+    // a cleared parameter means the default
+    pr.setTopKStatistic(null);
+    assertEquals("tfidf", pr.getTopKStatistic());
+    pr.setTopKStatistic(" ");
+    assertEquals("tfidf", pr.getTopKStatistic());
+    try {
+      pr.setTopKStatistic("nosuchstatistic");
+      fail("unknown statistic accepted");
+    } catch(GateRuntimeException ex) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/* 
+ * Copyright (C) 2015-2018 The University of Sheffield.
+ *
+ * This file is part of gateplugin-CorpusStats
+ * (see https://github.com/GateNLP/gateplugin-CorpusStats)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gate.plugin.corpusstats.tests;
+
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.plugin.corpusstats.CorpusStatsCollocationsPR;
+import gate.plugin.corpusstats.UrlUtils;
+import gate.util.GateRuntimeException;
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Johann Petrak
+ */
+public class TestWindowSizes {
+
+  @BeforeClass
+  public static void init() throws Exception {
+    if (!Gate.isInitialised()) {
+      Gate.init();
+    }
+  }
+
+  private static List<Document> makeDocs() throws Exception {
+    Random rnd = new Random(1);
+    List<Document> docs = new ArrayList<>();
+    for (int d = 0; d < 20; d++) {
+      int nTokens = 3 + rnd.nextInt(40);
+      StringBuilder sb = new StringBuilder();
+      List<String> words = new ArrayList<>();
+      for (int i = 0; i < nTokens; i++) {
+        String word = "w" + (int) Math.floor(Math.pow(rnd.nextDouble(), 2.0) * 15);
+        words.add(word);
+        sb.append(word).append(' ');
+      }
+      Document doc = Factory.newDocument(sb.toString());
+      long offset = 0;
+      for (String word : words) {
+        FeatureMap fm = Factory.newFeatureMap();
+        fm.put("string", word);
+        doc.getAnnotations().add(offset, offset + word.length(), "Token", fm);
+        offset += word.length() + 1;
+      }
+      docs.add(doc);
+    }
+    return docs;
+  }
+
+  // Count the documents with the given window sizes and save the pairs and
+  // sums to dir/pairs.tsv and dir/sums.tsv
+  private static void run(List<Document> docs, File dir, int windowSize, String windowSizes) throws Exception {
+    CorpusStatsCollocationsPR pr = new CorpusStatsCollocationsPR();
+    pr.setInputAnnotationSet("");
+    pr.setInputAnnotationType1("Token");
+    pr.setInputAnnotationType2("Token");
+    pr.setStringFeature("string");
+    pr.setSpanAnnotationType("");
+    pr.setSplitAnnotationType("");
+    pr.setCaseSensitive(true);
+    pr.setCaseConversionLanguage("en");
+    pr.setOrderIsSignificant(false);
+    pr.setMinContextsT1(1);
+    pr.setMinContextsT2(1);
+    pr.setMinContextsP(1);
+    pr.setReuseExisting(false);
+    pr.setMinTf(0.0);
+    pr.setLaplaceCoefficient(0.0);
+    pr.setSlidingWindowSize(windowSize);
+    pr.setSlidingWindowSizes(windowSizes);
+    pr.setPairStatsFileUrl(new File(dir, "pairs.tsv").toURI().toURL());
+    pr.setSumsFileUrl(new File(dir, "sums.tsv").toURI().toURL());
+    pr.init();
+    try {
+      pr.controllerExecutionStarted(null);
+      try {
+        for (Document doc : docs) {
+          pr.setDocument(doc);
+          pr.execute();
+        }
+      } catch (RuntimeException ex) {
+        pr.controllerExecutionAborted(null, ex);
+        throw ex;
+      }
+      pr.controllerExecutionFinished(null);
+    } finally {
+      pr.cleanup();
+    }
+  }
+
+  private static List<String> sortedLines(File file) throws Exception {
+    List<String> lines = new ArrayList<>(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+    Collections.sort(lines);
+    return lines;
+  }
+
+  @Test
+  public void testSeveralWindowSizes() throws Exception {
+    // counting several window sizes in one pass gives the same files as 
+    // counting each size on its own, with the size inserted into the name
+    List<Document> docs = makeDocs();
+    File dir = Files.createTempDirectory("windowsizes").toFile();
+    File both = new File(dir, "both");
+    File w2 = new File(dir, "w2");
+    File w5 = new File(dir, "w5");
+    both.mkdir();
+    w2.mkdir();
+    w5.mkdir();
+    run(docs, both, 0, "2, 5");
+    run(docs, w2, 2, "");
+    run(docs, w5, 5, "");
+    assertFalse(new File(both, "pairs.tsv").exists());
+    assertEquals(sortedLines(new File(w2, "pairs.tsv")), sortedLines(new File(both, "pairs-w2.tsv")));
+    assertEquals(sortedLines(new File(w5, "pairs.tsv")), sortedLines(new File(both, "pairs-w5.tsv")));
+    assertEquals(sortedLines(new File(w2, "sums.tsv")), sortedLines(new File(both, "sums-w2.tsv")));
+    assertEquals(sortedLines(new File(w5, "sums.tsv")), sortedLines(new File(both, "sums-w5.tsv")));
+    assertNotEquals(sortedLines(new File(w2, "pairs.tsv")), sortedLines(new File(w5, "pairs.tsv")));
+    // a single size in the list does not change the names
+    File one = new File(dir, "one");
+    one.mkdir();
+    run(docs, one, 0, "5");
+    assertEquals(sortedLines(new File(w5, "pairs.tsv")), sortedLines(new File(one, "pairs.tsv")));
+    for (Document doc : docs) {
+      Factory.deleteResource(doc);
+    }
+  }
+
+  @Test
+  public void testInvalidWindowSizes() throws Exception {
+    List<Document> docs = makeDocs();
+    File dir = Files.createTempDirectory("windowsizes").toFile();
+    for (String sizes : new String[] { "2,5,2", "2,x", "2,,5", "2,-1" }) {
+      try {
+        run(docs, dir, 0, sizes);
+        fail("window sizes accepted: " + sizes);
+      } catch (GateRuntimeException ex) {
+        // expected
+      }
+      assertFalse(new File(dir, "pairs-w2.tsv").exists());
+    }
+    for (Document doc : docs) {
+      Factory.deleteResource(doc);
+    }
+  }
+
+  @Test
+  public void testInsertBeforeExtension() throws Exception {
+    assertEquals(new URL("file:/dir/pairs-w5.tsv"), 
+            UrlUtils.insertBeforeExtension(new URL("file:/dir/pairs.tsv"), "-w5"));
+    assertEquals(new URL("file:/dir/first-w5.bin.gz"), 
+            UrlUtils.insertBeforeExtension(new URL("file:/dir/first.bin.gz"), "-w5"));
+    assertEquals(new URL("file:/dir/data-w5.gz"), 
+            UrlUtils.insertBeforeExtension(new URL("file:/dir/data.gz"), "-w5"));
+    assertEquals(new URL("file:/dir.x/pairs-w5"), 
+            UrlUtils.insertBeforeExtension(new URL("file:/dir.x/pairs"), "-w5"));
+  }
+}